@@ -0,0 +1,125 @@
+package vttp.final_project.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.slf4j.LoggerFactory;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.encoder.PatternLayoutEncoder;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.core.OutputStreamAppender;
+import vttp.final_project.services.GeminiResponseParser;
+
+/**
+ * Cost of parsing Gemini generateContent responses, per payload shape (see
+ * src/test/resources/gemini) and log level, for the streaming parser and the DOM and
+ * regex parser it replaced. Log output is formatted as in production but discarded,
+ * so logLevel=INFO shows what logging costs.
+ * Add -prof gc for allocation rates: -Djmh.args="GeminiParsing -prof gc"
+ *
+ * GeminiResponseParserTest checks the parser against the titles the old parser gave for these payloads.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class GeminiParsingBenchmark {
+
+    // clean: plain JSON array, fenced: array in a markdown code block,
+    // truncated: cut off by the output token limit, lines: a plain numbered list instead of JSON,
+    // malformed: response body cut off
+    @Param({"clean", "fenced", "truncated", "lines", "malformed"})
+    public String payload;
+
+    @Param({"INFO", "WARN"})
+    public String logLevel;
+
+    private GeminiResponseParser parser;
+    private LegacyGeminiResponseParser legacyParser;
+    private String responseBody;
+    private byte[] responseBytes;
+
+    @Setup
+    public void setup() throws IOException {
+        configureLogging(Level.valueOf(logLevel));
+        parser = new GeminiResponseParser();
+        legacyParser = new LegacyGeminiResponseParser();
+        responseBody = readPayload(payload);
+        responseBytes = responseBody.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * What GeminiService does now: parse the body bytes as they are read
+     */
+    @Benchmark
+    public List<Map<String, String>> streaming() throws IOException {
+        return parser.parseSongRecommendations(new ByteArrayInputStream(responseBytes));
+    }
+
+    /**
+     * The old path: body as a String, envelope and inner array as DOMs, regex fallback
+     */
+    @Benchmark
+    public List<Map<String, String>> legacy() {
+        return legacyParser.parseSongRecommendations(responseBody);
+    }
+
+    /**
+     * The old regex fallback on its own, applied to the raw body
+     */
+    @Benchmark
+    public List<Map<String, String>> legacyRegex() {
+        return legacyParser.parseRecommendationsWithRegex(responseBody);
+    }
+
+    private static String readPayload(String name) throws IOException {
+        try (InputStream in = GeminiParsingBenchmark.class.getResourceAsStream("/gemini/" + name + ".json")) {
+            if (in == null) {
+                throw new IllegalStateException("Missing payload gemini/" + name + ".json");
+            }
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+
+    private static void configureLogging(Level level) {
+        LoggerContext context = (LoggerContext) LoggerFactory.getILoggerFactory();
+        Logger root = context.getLogger(org.slf4j.Logger.ROOT_LOGGER_NAME);
+        root.detachAndStopAllAppenders();
+
+        PatternLayoutEncoder encoder = new PatternLayoutEncoder();
+        encoder.setContext(context);
+        encoder.setPattern("%d %5p [%t] %logger{39} : %m%n");
+        encoder.start();
+
+        OutputStreamAppender<ILoggingEvent> appender = new OutputStreamAppender<>();
+        appender.setContext(context);
+        appender.setEncoder(encoder);
+        appender.setOutputStream(OutputStream.nullOutputStream());
+        appender.start();
+
+        root.addAppender(appender);
+        root.setLevel(level);
+    }
+}
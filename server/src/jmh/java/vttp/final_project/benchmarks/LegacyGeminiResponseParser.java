@@ -0,0 +1,261 @@
+package vttp.final_project.benchmarks;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import jakarta.json.Json;
+import jakarta.json.JsonArray;
+import jakarta.json.JsonObject;
+import jakarta.json.JsonReader;
+import jakarta.json.JsonValue;
+
+/**
+ * The DOM and regex based parser GeminiResponseParser replaced, kept to compare
+ * results and cost against in GeminiParsingBenchmark.
+ */
+public class LegacyGeminiResponseParser {
+
+    private static final Logger logger = LoggerFactory.getLogger(LegacyGeminiResponseParser.class);
+
+    /**
+     * Parses song recommendations from Gemini API response.
+     * Modified to only extract song titles, not artists.
+     * 
+     * @param jsonData The JSON response from Gemini API
+     * @return List of song recommendations
+     */
+    public List<Map<String, String>> parseSongRecommendations(String jsonData) {
+        List<Map<String, String>> recommendations = new ArrayList<>();
+        
+        // Log the raw response data (truncate if very long)
+        if (jsonData != null) {
+            int maxLogLength = 500; // Truncate long responses for logging
+            String logData = jsonData.length() > maxLogLength ? 
+                jsonData.substring(0, maxLogLength) + "... (truncated, full length: " + jsonData.length() + ")" : jsonData;
+            logger.info("Raw Gemini response: {}", logData);
+        } else {
+            logger.warn("Received null JSON data from Gemini API");
+            return recommendations;
+        }
+        
+        try {
+            // First, try parsing the outer JSON structure
+            logger.info("Attempting to parse outer JSON structure");
+            try (JsonReader jsonReader = Json.createReader(new StringReader(jsonData))) {
+                JsonObject jsonObject = jsonReader.readObject();
+                logger.info("Successfully parsed outer JSON object");
+                
+                // Extract the text content that should contain our recommendations
+                JsonArray candidatesArray = jsonObject.getJsonArray("candidates");
+                if (candidatesArray == null || candidatesArray.isEmpty()) {
+                    logger.error("No candidates found in Gemini response");
+                    return recommendations;
+                }
+                
+                logger.info("Found {} candidates in Gemini response", candidatesArray.size());
+                
+                JsonObject firstCandidate = candidatesArray.getJsonObject(0);
+                JsonObject content = firstCandidate.getJsonObject("content");
+                JsonArray parts = content.getJsonArray("parts");
+                
+                if (parts == null || parts.isEmpty()) {
+                    logger.error("No parts found in Gemini response content");
+                    return recommendations;
+                }
+                
+                JsonObject firstPart = parts.getJsonObject(0);
+                
+                // Get the text which should contain our JSON array of recommendations
+                String text = firstPart.getString("text");
+                
+                // Log the inner text content (truncate if very long)
+                if (text != null) {
+                    int maxTextLogLength = 1000;
+                    String logText = text.length() > maxTextLogLength ? 
+                        text.substring(0, maxTextLogLength) + "... (truncated, full length: " + text.length() + ")" : text;
+                    logger.info("Inner text content: {}", logText);
+                    
+                    // Check if it looks like a valid JSON array
+                    boolean startsWithBracket = text.trim().startsWith("[");
+                    boolean endsWithBracket = text.trim().endsWith("]");
+                    logger.info("Inner text format check - starts with '[': {}, ends with ']': {}", 
+                        startsWithBracket, endsWithBracket);
+                    
+                    // Check for markdown code blocks
+                    if (text.contains("```")) {
+                        logger.info("Text contains markdown code blocks that need to be removed");
+                        // Remove markdown code blocks
+                        text = text.replaceAll("```json", "")
+                                .replaceAll("```", "")
+                                .trim();
+                    }
+                }
+                
+                // Try to find and extract just the JSON array
+                if (text != null) {
+                    int startIndex = text.indexOf('[');
+                    int endIndex = text.lastIndexOf(']');
+                    
+                    if (startIndex >= 0 && endIndex > startIndex) {
+                        // Extract just the JSON array part
+                        text = text.substring(startIndex, endIndex + 1);
+                        logger.info("Extracted JSON array from text, length: {}", text.length());
+                    }
+                }
+                
+                // Now try to parse the inner JSON array
+                try {
+                    logger.info("Attempting to parse inner JSON content as array");
+                    try (JsonReader nestedReader = Json.createReader(new StringReader(text))) {
+                        JsonArray songsArray = nestedReader.readArray();
+                        logger.info("Successfully parsed inner JSON array with {} elements", songsArray.size());
+                        
+                        for (JsonValue value : songsArray) {
+                            if (value.getValueType() == JsonValue.ValueType.OBJECT) {
+                                JsonObject songObject = value.asJsonObject();
+                                Map<String, String> songInfo = new LinkedHashMap<>();
+                                
+                                // Safely extract song title with fallback
+                                try {
+                                    songInfo.put("song_title", songObject.getString("song_title", "Unknown Title"));
+                                } catch (Exception e) {
+                                    logger.warn("Error extracting song_title: {}", e.getMessage());
+                                    songInfo.put("song_title", "Unknown Title");
+                                }
+                                
+                                // We're not extracting artist anymore, but adding a placeholder
+                                // This is to maintain compatibility with existing code until it's updated
+                                songInfo.put("artist", ""); 
+                                
+                                recommendations.add(songInfo);
+                                logger.debug("Added recommendation: {}", songInfo.get("song_title"));
+                            } else {
+                                logger.warn("Unexpected value type in songs array: {}", value.getValueType());
+                            }
+                        }
+                    }
+                } catch (Exception e) {
+                    logger.error("Error parsing inner JSON array: {}", e.getMessage());
+                    
+                    // Fallback: Try to parse with regex if JSON parsing fails
+                    logger.info("Attempting fallback parsing with regex");
+                    recommendations = parseRecommendationsWithRegex(text);
+                }
+            }
+        } catch (Exception e) {
+            logger.error("Error parsing Gemini response: {}", e.getMessage());
+            logger.error("Exception type: {}", e.getClass().getName());
+            
+            // Detailed logging for JSON parsing errors
+            if (e.getMessage() != null && e.getMessage().contains("Unexpected char")) {
+                logger.error("JSON parsing error details: {}", e.getMessage());
+                
+                // Try to locate the problem area
+                if (jsonData != null) {
+                    try {
+                        String[] errorParts = e.getMessage().split("at \\(line no=|, column no=|, offset=|\\)");
+                        if (errorParts.length >= 4) {
+                            int offset = Integer.parseInt(errorParts[3].trim());
+                            int contextSize = 50; // Characters before and after the problem
+                            int start = Math.max(0, offset - contextSize);
+                            int end = Math.min(jsonData.length(), offset + contextSize);
+                            
+                            String context = jsonData.substring(start, end).replace("\n", "\\n");
+                            logger.error("Context around problematic character (offset {}): \"{}\"", offset, context);
+                            
+                            // Mark the exact position with a pointer
+                            StringBuilder pointer = new StringBuilder();
+                            for (int i = 0; i < (offset - start); i++) {
+                                pointer.append(" ");
+                            }
+                            pointer.append("^");
+                            logger.error("Problem position: {}", pointer.toString());
+                        }
+                    } catch (Exception ex) {
+                        logger.error("Error while trying to locate problem area: {}", ex.getMessage());
+                    }
+                }
+            }
+            
+            // Try fallback parsing with regex
+            logger.info("Attempting fallback parsing with regex after outer JSON parse failure");
+            recommendations = parseRecommendationsWithRegex(jsonData);
+        }
+        
+        logger.info("Finished parsing, extracted {} recommendations", recommendations.size());
+        return recommendations;
+    }
+    
+    /**
+     * Fallback method to extract recommendations using regex when JSON parsing fails
+     * Modified to focus on extracting just song titles
+     * 
+     * @param text The text to parse
+     * @return List of extracted recommendations
+     */
+    public List<Map<String, String>> parseRecommendationsWithRegex(String text) {
+        List<Map<String, String>> recommendations = new ArrayList<>();
+        
+        if (text == null || text.isEmpty()) {
+            logger.warn("Empty text provided for regex parsing");
+            return recommendations;
+        }
+        
+        try {
+            logger.info("Parsing recommendations with regex from {} characters of text", text.length());
+            
+            // Pattern 1: Look for JSON-like objects with song_title
+            Pattern pattern = Pattern.compile("\"song_title\"\\s*:\\s*\"([^\"]+)\"");
+            Matcher matcher = pattern.matcher(text);
+            
+            while (matcher.find()) {
+                Map<String, String> songInfo = new LinkedHashMap<>();
+                songInfo.put("song_title", matcher.group(1));
+                songInfo.put("artist", ""); // Empty placeholder
+                recommendations.add(songInfo);
+            }
+            
+            // If we found recommendations with the first pattern, return them
+            if (!recommendations.isEmpty()) {
+                logger.info("Found {} recommendations using JSON-like pattern", recommendations.size());
+                return recommendations;
+            }
+            
+            // Pattern 2: Look for lines with numbered items
+            String[] lines = text.split("\n");
+            for (String line : lines) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("{") || line.startsWith("[") || 
+                    line.startsWith("}") || line.startsWith("]")) {
+                    continue;
+                }
+                
+                // Remove bullet points or numbers at the start
+                line = line.replaceAll("^\\d+\\.\\s*", "").replaceAll("^-\\s*", "").trim();
+                
+                // If line has any content after cleaning, add it as a song title
+                if (!line.isEmpty()) {
+                    Map<String, String> songInfo = new LinkedHashMap<>();
+                    songInfo.put("song_title", line);
+                    songInfo.put("artist", ""); // Empty placeholder
+                    recommendations.add(songInfo);
+                }
+            }
+            
+            logger.info("Found {} recommendations using line-by-line parsing", recommendations.size());
+            
+        } catch (Exception e) {
+            logger.error("Error during regex parsing: {}", e.getMessage());
+        }
+        
+        return recommendations;
+    }
+}
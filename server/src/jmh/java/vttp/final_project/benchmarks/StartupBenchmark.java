@@ -0,0 +1,61 @@
+package vttp.final_project.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.boot.SpringApplication;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import vttp.final_project.FinalProjectApplication;
+
+/**
+ * Cold start time of the application, one start per forked JVM, with and without AOT.
+ * Manual only: it needs the same MySQL, Redis and secrets.properties as running the app
+ * locally, and nothing in the build runs it. The build's regression check is
+ * StartupBudgetTest, which needs no external services. aot=true needs the classes
+ * the fast-startup profile generates at prepare-package, so build with package instead of compile:
+ * ./mvnw -Pjmh,fast-startup package -Dmaven.test.skip=true exec:exec -Djmh.args="Startup -p aot=false,true"
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 0)
+@Measurement(iterations = 1)
+@Fork(5)
+public class StartupBenchmark {
+
+    @Param({"false"})
+    public boolean aot;
+
+    private ConfigurableApplicationContext context;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        System.setProperty("spring.aot.enabled", String.valueOf(aot));
+    }
+
+    @Benchmark
+    public ConfigurableApplicationContext startup() {
+        context = SpringApplication.run(FinalProjectApplication.class, "--server.port=0");
+        return context;
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() {
+        if (context != null) {
+            context.close();
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package vttp.final_project.benchmarks;
+
+import java.nio.charset.StandardCharsets;
+import java.security.Key;
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import vttp.final_project.services.TokenEncryptionService;
+
+/**
+ * Token decrypt/encrypt throughput of the per-call AES/ECB code TokenEncryptionService
+ * used to have ("legacy") against the current AES-GCM service, which builds the key once
+ * and keeps one Cipher per thread.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+public class TokenEncryptionBenchmark {
+
+    // 32 bytes, AES-256
+    private static final String SECRET = "benchmark-secret-0123456789abcde";
+
+    // Roughly the size of a Spotify access token
+    private static final String ACCESS_TOKEN = "BQ" + "x".repeat(250);
+
+    private TokenEncryptionService encryptionService;
+    private String legacyEncrypted;
+    private String gcmEncrypted;
+
+    @Setup
+    public void setup() throws Exception {
+        encryptionService = new TokenEncryptionService(SECRET);
+        legacyEncrypted = legacyEncrypt(ACCESS_TOKEN);
+        gcmEncrypted = encryptionService.encrypt(ACCESS_TOKEN);
+    }
+
+    @Benchmark
+    public String legacyDecrypt() throws Exception {
+        Key key = new SecretKeySpec(SECRET.getBytes(StandardCharsets.UTF_8), "AES");
+        Cipher cipher = Cipher.getInstance("AES");
+        cipher.init(Cipher.DECRYPT_MODE, key);
+        return new String(cipher.doFinal(Base64.getDecoder().decode(legacyEncrypted)), StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public String legacyEncrypt() throws Exception {
+        return legacyEncrypt(ACCESS_TOKEN);
+    }
+
+    @Benchmark
+    public String gcmDecrypt() {
+        return encryptionService.decrypt(gcmEncrypted);
+    }
+
+    @Benchmark
+    public String gcmEncrypt() {
+        return encryptionService.encrypt(ACCESS_TOKEN);
+    }
+
+    @Benchmark
+    public String legacyFormatDecryptWithPerThreadCipher() {
+        return encryptionService.decrypt(legacyEncrypted);
+    }
+
+    private static String legacyEncrypt(String data) throws Exception {
+        Key key = new SecretKeySpec(SECRET.getBytes(StandardCharsets.UTF_8), "AES");
+        Cipher cipher = Cipher.getInstance("AES");
+        cipher.init(Cipher.ENCRYPT_MODE, key);
+        return Base64.getEncoder().encodeToString(cipher.doFinal(data.getBytes(StandardCharsets.UTF_8)));
+    }
+}
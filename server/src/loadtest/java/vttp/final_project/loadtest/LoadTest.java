@@ -0,0 +1,238 @@
+package vttp.final_project.loadtest;
+
+import java.net.CookieManager;
+import java.net.CookiePolicy;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.stream.Collectors;
+
+/**
+ * Drives scripted workloads against a running instance of the app and reports latency
+ * percentiles and throughput per workload. The app should run with the loadtest profile
+ * so it talks to the stand-ins this harness starts instead of Spotify and Gemini:
+ *
+ *   ./mvnw spring-boot:run -Dspring-boot.run.profiles=loadtest
+ *   ./mvnw -Ploadtest compile exec:java -Dloadtest.users=50 -Dloadtest.duration=120 -Dstandin.gemini.error-rate=0.05
+ *
+ * Settings (system properties): loadtest.target, loadtest.users, loadtest.duration (seconds),
+ * loadtest.workloads (comma separated), loadtest.playlists (distinct playlist IDs requested),
+ * loadtest.standins (false to use stand-ins started separately), plus the standin.* settings
+ * read by UpstreamProfile.
+ */
+public final class LoadTest {
+
+    enum Workload {
+        RECOMMENDATIONS("recommendations"),
+        PREVIEW_BATCH("preview-batch"),
+        TOP_TRACKS("top-tracks");
+
+        private final String name;
+
+        Workload(String name) {
+            this.name = name;
+        }
+
+        static Workload fromName(String name) {
+            return Arrays.stream(values())
+                    .filter(workload -> workload.name.equals(name))
+                    .findFirst()
+                    .orElseThrow(() -> new IllegalArgumentException("Unknown workload: " + name));
+        }
+    }
+
+    private static final String[] TIME_RANGES = {"short_term", "medium_term", "long_term"};
+    private static final Duration REQUEST_TIMEOUT = Duration.ofSeconds(60);
+
+    private final URI target = URI.create(System.getProperty("loadtest.target", "http://localhost:8080"));
+    private final int users = Integer.getInteger("loadtest.users", 20);
+    private final Duration duration = Duration.ofSeconds(Long.getLong("loadtest.duration", 60));
+    private final int playlists = Integer.getInteger("loadtest.playlists", 100);
+    private final List<Workload> workloads = Arrays.stream(
+                    System.getProperty("loadtest.workloads", "recommendations,preview-batch,top-tracks").split(","))
+            .map(String::trim)
+            .map(Workload::fromName)
+            .toList();
+
+    private final Map<Workload, LatencyRecorder> recorders = new EnumMap<>(Workload.class);
+
+    public static void main(String[] args) throws Exception {
+        LoadTest loadTest = new LoadTest();
+
+        if (Boolean.parseBoolean(System.getProperty("loadtest.standins", "true"))) {
+            try (StandInServers standIns = new StandInServers()) {
+                standIns.start();
+                standIns.getProfiles().forEach(profile -> System.out.println("  " + profile));
+                loadTest.run();
+            }
+        } else {
+            loadTest.run();
+        }
+    }
+
+    private void run() throws Exception {
+        workloads.forEach(workload -> recorders.put(workload, new LatencyRecorder()));
+
+        System.out.printf("Running %s against %s with %d users for %d s%n",
+                workloads.stream().map(workload -> workload.name).collect(Collectors.joining(", ")),
+                target, users, duration.toSeconds());
+
+        long deadline = System.nanoTime() + duration.toNanos();
+        long started = System.nanoTime();
+
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            List<Future<?>> virtualUsers = new ArrayList<>();
+            for (int i = 0; i < users; i++) {
+                virtualUsers.add(executor.submit(() -> {
+                    runVirtualUser(deadline);
+                    return null;
+                }));
+            }
+            for (Future<?> virtualUser : virtualUsers) {
+                virtualUser.get();
+            }
+        }
+
+        report(Duration.ofNanos(System.nanoTime() - started));
+    }
+
+    private void runVirtualUser(long deadline) throws Exception {
+        // Each user has its own cookies, so its own session and Spotify account
+        HttpClient client = HttpClient.newBuilder()
+                .cookieHandler(new CookieManager(null, CookiePolicy.ACCEPT_ALL))
+                .followRedirects(HttpClient.Redirect.NEVER)
+                .connectTimeout(Duration.ofSeconds(5))
+                .build();
+
+        login(client);
+
+        int next = ThreadLocalRandom.current().nextInt(workloads.size());
+        while (System.nanoTime() < deadline) {
+            Workload workload = workloads.get(next++ % workloads.size());
+            HttpRequest request = buildRequest(workload);
+
+            long start = System.nanoTime();
+            boolean ok;
+            try {
+                HttpResponse<Void> response = client.send(request, HttpResponse.BodyHandlers.discarding());
+                ok = response.statusCode() >= 200 && response.statusCode() < 300;
+            } catch (Exception e) {
+                ok = false;
+            }
+            recorders.get(workload).record(System.nanoTime() - start, ok);
+        }
+    }
+
+    /**
+     * Goes through the app's Spotify login with the stand-in accounts server approving
+     * straight away, leaving the client with an authenticated session cookie
+     */
+    private void login(HttpClient client) throws Exception {
+        URI authorizeUri = redirectOf(client, target.resolve("/api/auth/spotify"));
+        URI callbackUri = redirectOf(client, authorizeUri);
+        URI landingUri = redirectOf(client, callbackUri);
+
+        if (!landingUri.getPath().endsWith("/dashboard")) {
+            throw new IllegalStateException("Login failed, redirected to " + landingUri);
+        }
+    }
+
+    private URI redirectOf(HttpClient client, URI uri) throws Exception {
+        HttpResponse<Void> response = client.send(
+                HttpRequest.newBuilder(uri).timeout(REQUEST_TIMEOUT).GET().build(),
+                HttpResponse.BodyHandlers.discarding());
+
+        String location = response.headers().firstValue("Location")
+                .orElseThrow(() -> new IllegalStateException("Expected a redirect from " + uri
+                        + " but got " + response.statusCode()));
+        return uri.resolve(location);
+    }
+
+    private HttpRequest buildRequest(Workload workload) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+
+        return switch (workload) {
+            case RECOMMENDATIONS -> get("/api/gemini/recommendations?playlistId=pl-" + random.nextInt(playlists)
+                    + "&limit=10&offset=0");
+            case TOP_TRACKS -> get("/api/gemini/top-tracks-recommendations?timeRange="
+                    + TIME_RANGES[random.nextInt(TIME_RANGES.length)] + "&limit=10&offset=0");
+            case PREVIEW_BATCH -> {
+                // Ten titles from the same catalogue the stand-in Gemini recommends from
+                String body = random.ints(10, 0, StandInServers.SONG_CATALOGUE_SIZE)
+                        .mapToObj(song -> "{\"song_title\":\"Stand-in Song " + song + "\"}")
+                        .collect(Collectors.joining(",", "[", "]"));
+                yield HttpRequest.newBuilder(target.resolve("/api/spotify/preview/batch"))
+                        .timeout(REQUEST_TIMEOUT)
+                        .header("Content-Type", "application/json")
+                        .POST(HttpRequest.BodyPublishers.ofString(body))
+                        .build();
+            }
+        };
+    }
+
+    private HttpRequest get(String path) {
+        return HttpRequest.newBuilder(target.resolve(path)).timeout(REQUEST_TIMEOUT).GET().build();
+    }
+
+    private void report(Duration elapsed) {
+        double seconds = elapsed.toNanos() / 1e9;
+
+        System.out.println();
+        System.out.printf("%-16s %9s %7s %9s %9s %9s %9s%n",
+                "workload", "requests", "errors", "req/s", "p50 ms", "p99 ms", "max ms");
+        for (Workload workload : workloads) {
+            LatencyRecorder.Summary summary = recorders.get(workload).summarize();
+            System.out.printf("%-16s %9d %7d %9.1f %9.1f %9.1f %9.1f%n",
+                    workload.name, summary.count(), summary.errors(), summary.count() / seconds,
+                    summary.p50Ms(), summary.p99Ms(), summary.maxMs());
+        }
+    }
+
+    /**
+     * Latencies of every request in a workload, kept in full since a run is at most a few
+     * hundred thousand requests
+     */
+    static final class LatencyRecorder {
+        private long[] latencies = new long[1024];
+        private int count;
+        private int errors;
+
+        record Summary(int count, int errors, double p50Ms, double p99Ms, double maxMs) {}
+
+        synchronized void record(long latencyNanos, boolean ok) {
+            if (count == latencies.length) {
+                latencies = Arrays.copyOf(latencies, count * 2);
+            }
+            latencies[count++] = latencyNanos;
+            if (!ok) {
+                errors++;
+            }
+        }
+
+        synchronized Summary summarize() {
+            if (count == 0) {
+                return new Summary(0, 0, 0, 0, 0);
+            }
+            long[] sorted = Arrays.copyOf(latencies, count);
+            Arrays.sort(sorted);
+            return new Summary(count, errors, percentileMs(sorted, 0.50), percentileMs(sorted, 0.99),
+                    sorted[count - 1] / 1e6);
+        }
+
+        private static double percentileMs(long[] sorted, double percentile) {
+            int index = (int) Math.ceil(percentile * sorted.length) - 1;
+            return sorted[Math.max(0, index)] / 1e6;
+        }
+    }
+}
@@ -0,0 +1,297 @@
+package vttp.final_project.loadtest;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Local stand-ins for api.spotify.com, accounts.spotify.com, open.spotify.com and the
+ * Gemini API, answering just enough of each for the app's recommendation, preview and
+ * login flows. Each one adds latency and errors per its UpstreamProfile.
+ *
+ * Every login through the stand-in authorize endpoint creates a new Spotify user, and
+ * access tokens carry the user ID so /v1/me can answer without any state.
+ *
+ * Run on their own with: ./mvnw -Ploadtest compile exec:java -Dexec.mainClass=vttp.final_project.loadtest.StandInServers
+ */
+final class StandInServers implements AutoCloseable {
+
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+
+    // Size of the song catalogue Gemini recommends from, so searches and previews get some cache hits
+    static final int SONG_CATALOGUE_SIZE = 500;
+
+    private final UpstreamProfile spotifyApi = UpstreamProfile.fromSystemProperties("spotify-api", 60, 300);
+    private final UpstreamProfile spotifyAccounts = UpstreamProfile.fromSystemProperties("spotify-accounts", 80, 400);
+    private final UpstreamProfile spotifyWeb = UpstreamProfile.fromSystemProperties("spotify-web", 150, 800);
+    private final UpstreamProfile gemini = UpstreamProfile.fromSystemProperties("gemini", 2500, 8000);
+
+    private final int spotifyApiPort = Integer.getInteger("standin.spotify-api.port", 9101);
+    private final int spotifyAccountsPort = Integer.getInteger("standin.spotify-accounts.port", 9102);
+    private final int spotifyWebPort = Integer.getInteger("standin.spotify-web.port", 9103);
+    private final int geminiPort = Integer.getInteger("standin.gemini.port", 9104);
+
+    private final AtomicLong userSequence = new AtomicLong();
+    private final AtomicLong tokenSequence = new AtomicLong();
+
+    private final List<HttpServer> servers = new ArrayList<>();
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+
+    public static void main(String[] args) throws IOException {
+        StandInServers standIns = new StandInServers();
+        standIns.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(standIns::close));
+    }
+
+    void start() throws IOException {
+        start(spotifyApi, spotifyApiPort, this::handleSpotifyApi);
+        start(spotifyAccounts, spotifyAccountsPort, this::handleSpotifyAccounts);
+        start(spotifyWeb, spotifyWebPort, this::handleSpotifyWeb);
+        start(gemini, geminiPort, this::handleGemini);
+    }
+
+    List<UpstreamProfile> getProfiles() {
+        return List.of(spotifyApi, spotifyAccounts, spotifyWeb, gemini);
+    }
+
+    @Override
+    public void close() {
+        servers.forEach(server -> server.stop(0));
+        executor.shutdownNow();
+    }
+
+    @FunctionalInterface
+    private interface Handler {
+        void handle(HttpExchange exchange) throws IOException;
+    }
+
+    private void start(UpstreamProfile profile, int port, Handler handler) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress(port), 0);
+        server.setExecutor(executor);
+        server.createContext("/", exchange -> {
+            try (exchange) {
+                // Read the request up front, handlers that need it (token requests) take it from here
+                exchange.setAttribute("body", new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8));
+                Thread.sleep(profile.sampleLatencyMs());
+
+                if (profile.sampleError()) {
+                    if (profile.errorStatus() == 429) {
+                        exchange.getResponseHeaders().set("Retry-After", "1");
+                    }
+                    sendJson(exchange, profile.errorStatus(),
+                            Map.of("error", Map.of("status", profile.errorStatus(), "message", "Stand-in error")));
+                    return;
+                }
+
+                handler.handle(exchange);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (Exception e) {
+                sendJson(exchange, 500, Map.of("error", Map.of("status", 500, "message", String.valueOf(e))));
+            }
+        });
+        server.start();
+        servers.add(server);
+        System.out.printf("Stand-in %s listening on http://localhost:%d%n", profile.name(), port);
+    }
+
+    // api.spotify.com
+
+    private void handleSpotifyApi(HttpExchange exchange) throws IOException {
+        String userId = userIdFromAccessToken(exchange.getRequestHeaders().getFirst("Authorization"));
+        if (userId == null) {
+            sendJson(exchange, 401, Map.of("error", Map.of("status", 401, "message", "Invalid access token")));
+            return;
+        }
+
+        String path = exchange.getRequestURI().getPath();
+        Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+
+        if (path.equals("/v1/me")) {
+            sendJson(exchange, 200, Map.of("id", userId, "display_name", "Load test " + userId,
+                    "email", userId + "@loadtest.invalid", "country", "SG"));
+        } else if (path.equals("/v1/me/playlists")) {
+            int limit = Integer.parseInt(query.getOrDefault("limit", "20"));
+            List<Object> items = new ArrayList<>();
+            for (int i = 0; i < limit; i++) {
+                String playlistId = "pl-" + Math.floorMod((userId + i).hashCode(), 1000);
+                items.add(Map.of("id", playlistId, "name", "Playlist " + playlistId, "images", List.of(),
+                        "tracks", Map.of("total", 20)));
+            }
+            sendJson(exchange, 200, Map.of("items", items, "limit", limit, "offset", 0, "total", limit));
+        } else if (path.startsWith("/v1/playlists/") && path.endsWith("/tracks")) {
+            sendJson(exchange, 201, Map.of("snapshot_id", Long.toHexString(tokenSequence.incrementAndGet())));
+        } else if (path.startsWith("/v1/playlists/")) {
+            String playlistId = path.substring("/v1/playlists/".length());
+            List<Object> items = new ArrayList<>();
+            for (int i = 0; i < 20; i++) {
+                items.add(Map.of("track", track(playlistId + "-" + i)));
+            }
+            sendJson(exchange, 200, Map.of("id", playlistId, "name", "Playlist " + playlistId,
+                    "tracks", Map.of("items", items, "total", items.size())));
+        } else if (path.equals("/v1/search")) {
+            String trackId = "t" + Integer.toHexString(query.getOrDefault("q", "").hashCode());
+            sendJson(exchange, 200, Map.of("tracks", Map.of("items", List.of(track(trackId)))));
+        } else if (path.equals("/v1/me/top/tracks")) {
+            int limit = Integer.parseInt(query.getOrDefault("limit", "20"));
+            String timeRange = query.getOrDefault("time_range", "medium_term");
+            List<Object> items = new ArrayList<>();
+            for (int i = 0; i < limit; i++) {
+                items.add(track(userId + "-" + timeRange + "-" + i));
+            }
+            sendJson(exchange, 200, Map.of("items", items, "limit", limit, "total", limit));
+        } else if (path.equals("/v1/tracks")) {
+            List<Object> tracks = new ArrayList<>();
+            for (String trackId : query.getOrDefault("ids", "").split(",")) {
+                tracks.add(track(trackId));
+            }
+            sendJson(exchange, 200, Map.of("tracks", tracks));
+        } else {
+            sendJson(exchange, 404, Map.of("error", Map.of("status", 404, "message", "Not found")));
+        }
+    }
+
+    private Map<String, Object> track(String trackId) {
+        return Map.of(
+                "id", trackId,
+                "name", "Track " + trackId,
+                "artists", List.of(Map.of("name", "Artist " + Math.floorMod(trackId.hashCode(), 50))),
+                "external_urls", Map.of("spotify", "http://localhost:" + spotifyWebPort + "/track/" + trackId),
+                "uri", "spotify:track:" + trackId);
+    }
+
+    // accounts.spotify.com
+
+    private void handleSpotifyAccounts(HttpExchange exchange) throws IOException {
+        String path = exchange.getRequestURI().getPath();
+
+        if (path.equals("/authorize")) {
+            // Approve straight away as a new user and send the browser back to the app
+            Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+            String userId = "user-" + userSequence.incrementAndGet();
+            String location = query.get("redirect_uri")
+                    + "?code=" + URLEncoder.encode("code-" + userId, StandardCharsets.UTF_8)
+                    + "&state=" + URLEncoder.encode(query.getOrDefault("state", ""), StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Location", location);
+            exchange.sendResponseHeaders(302, -1);
+        } else if (path.equals("/api/token")) {
+            Map<String, String> form = parseQuery((String) exchange.getAttribute("body"));
+
+            String userId = switch (form.getOrDefault("grant_type", "")) {
+                case "authorization_code" -> stripPrefix(form.get("code"), "code-");
+                case "refresh_token" -> stripPrefix(form.get("refresh_token"), "rt-");
+                default -> null;
+            };
+            if (userId == null) {
+                sendJson(exchange, 400, Map.of("error", "invalid_grant"));
+                return;
+            }
+
+            sendJson(exchange, 200, Map.of(
+                    "access_token", "at-" + userId + "-" + tokenSequence.incrementAndGet(),
+                    "token_type", "Bearer",
+                    "expires_in", 3600,
+                    "refresh_token", "rt-" + userId,
+                    "scope", "user-read-private user-read-email playlist-read-private user-top-read"));
+        } else {
+            sendJson(exchange, 404, Map.of("error", "not_found"));
+        }
+    }
+
+    // open.spotify.com
+
+    private void handleSpotifyWeb(HttpExchange exchange) throws IOException {
+        String path = exchange.getRequestURI().getPath();
+        if (!path.startsWith("/track/")) {
+            send(exchange, 404, "text/html", "<html><body>Not found</body></html>");
+            return;
+        }
+
+        String trackId = path.substring("/track/".length());
+        String previewId = HexFormat.of().formatHex(trackId.getBytes(StandardCharsets.UTF_8));
+        send(exchange, 200, "text/html",
+                "<html><head><meta property=\"og:audio\" content=\"https://p.scdn.co/mp3-preview/" + previewId
+                + "\"></head><body>Track " + trackId + "</body></html>");
+    }
+
+    // generativelanguage.googleapis.com
+
+    private void handleGemini(HttpExchange exchange) throws IOException {
+        String path = exchange.getRequestURI().getPath();
+
+        List<Object> songs = new ArrayList<>();
+        for (int i = 0; i < 30; i++) {
+            songs.add(Map.of("song_title", "Stand-in Song " + ThreadLocalRandom.current().nextInt(SONG_CATALOGUE_SIZE)));
+        }
+        Map<String, Object> envelope = Map.of(
+                "candidates", List.of(Map.of(
+                        "content", Map.of("parts", List.of(Map.of("text", objectMapper.writeValueAsString(songs))),
+                                "role", "model"),
+                        "finishReason", "STOP")),
+                "modelVersion", "gemini-2.0-flash");
+
+        if (path.endsWith(":generateContent")) {
+            sendJson(exchange, 200, envelope);
+        } else if (path.endsWith(":streamGenerateContent")) {
+            send(exchange, 200, "text/event-stream", "data: " + objectMapper.writeValueAsString(envelope) + "\r\n\r\n");
+        } else {
+            sendJson(exchange, 404, Map.of("error", Map.of("code", 404, "message", "Not found")));
+        }
+    }
+
+    private String userIdFromAccessToken(String authorization) {
+        if (authorization == null || !authorization.startsWith("Bearer at-")) {
+            return null;
+        }
+        String token = authorization.substring("Bearer at-".length());
+        int sequenceStart = token.lastIndexOf('-');
+        return sequenceStart > 0 ? token.substring(0, sequenceStart) : null;
+    }
+
+    private static String stripPrefix(String value, String prefix) {
+        return value != null && value.startsWith(prefix) ? value.substring(prefix.length()) : null;
+    }
+
+    private static Map<String, String> parseQuery(String query) {
+        Map<String, String> params = new HashMap<>();
+        if (query == null || query.isEmpty()) {
+            return params;
+        }
+        for (String pair : query.split("&")) {
+            int separator = pair.indexOf('=');
+            String key = separator >= 0 ? pair.substring(0, separator) : pair;
+            String value = separator >= 0 ? pair.substring(separator + 1) : "";
+            params.put(URLDecoder.decode(key, StandardCharsets.UTF_8), URLDecoder.decode(value, StandardCharsets.UTF_8));
+        }
+        return params;
+    }
+
+    private static void sendJson(HttpExchange exchange, int status, Object body) throws IOException {
+        send(exchange, status, "application/json", objectMapper.writeValueAsString(body));
+    }
+
+    private static void send(HttpExchange exchange, int status, String contentType, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", contentType);
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package vttp.final_project.loadtest;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Latency and error behaviour of one stand-in upstream. Latency is log-normal, set by
+ * its median and p99 in milliseconds. A fraction errorRate of requests fail with
+ * errorStatus (a 429 also carries Retry-After: 1).
+ *
+ * Read from system properties standin.&lt;name&gt;.median, .p99, .error-rate and .error-status.
+ */
+record UpstreamProfile(String name, double medianMs, double p99Ms, double errorRate, int errorStatus) {
+
+    // z-score of the 99th percentile of a standard normal distribution
+    private static final double Z_99 = 2.326;
+
+    static UpstreamProfile fromSystemProperties(String name, double medianMs, double p99Ms) {
+        String prefix = "standin." + name + ".";
+        return new UpstreamProfile(name,
+                Double.parseDouble(System.getProperty(prefix + "median", String.valueOf(medianMs))),
+                Double.parseDouble(System.getProperty(prefix + "p99", String.valueOf(p99Ms))),
+                Double.parseDouble(System.getProperty(prefix + "error-rate", "0")),
+                Integer.parseInt(System.getProperty(prefix + "error-status", "503")));
+    }
+
+    long sampleLatencyMs() {
+        if (medianMs <= 0) {
+            return 0;
+        }
+        double sigma = p99Ms > medianMs ? Math.log(p99Ms / medianMs) / Z_99 : 0;
+        return Math.round(medianMs * Math.exp(sigma * ThreadLocalRandom.current().nextGaussian()));
+    }
+
+    boolean sampleError() {
+        return errorRate > 0 && ThreadLocalRandom.current().nextDouble() < errorRate;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s: median %.0f ms, p99 %.0f ms, %.1f%% errors (%d)",
+                name, medianMs, p99Ms, errorRate * 100, errorStatus);
+    }
+}
@@ -0,0 +1,73 @@
+package vttp.final_project.configurations;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.springframework.data.redis.serializer.JdkSerializationRedisSerializer;
+import org.springframework.data.redis.serializer.RedisSerializer;
+import org.springframework.data.redis.serializer.SerializationException;
+
+/**
+ * Session values are almost all strings, booleans and numbers, so these are written as a
+ * one byte type tag followed by the raw value instead of a full JDK serialization stream.
+ * Anything else falls back to JDK serialization. Types round-trip exactly, which Spring
+ * Session relies on for creationTime (Long) and maxInactiveInterval (Integer).
+ */
+class CompactSessionSerializer implements RedisSerializer<Object> {
+
+    private static final byte STRING = 's';
+    private static final byte BOOLEAN = 'b';
+    private static final byte LONG = 'l';
+    private static final byte INTEGER = 'i';
+    private static final byte JDK = 'j';
+
+    private final JdkSerializationRedisSerializer fallback = new JdkSerializationRedisSerializer();
+
+    @Override
+    public byte[] serialize(Object value) throws SerializationException {
+        if (value == null) {
+            return null;
+        }
+        if (value instanceof String string) {
+            return tagged(STRING, string.getBytes(StandardCharsets.UTF_8));
+        }
+        if (value instanceof Boolean bool) {
+            return new byte[] { BOOLEAN, (byte) (bool ? 1 : 0) };
+        }
+        if (value instanceof Long number) {
+            return ByteBuffer.allocate(9).put(LONG).putLong(number).array();
+        }
+        if (value instanceof Integer number) {
+            return ByteBuffer.allocate(5).put(INTEGER).putInt(number).array();
+        }
+        return tagged(JDK, fallback.serialize(value));
+    }
+
+    @Override
+    public Object deserialize(byte[] bytes) throws SerializationException {
+        if (bytes == null || bytes.length == 0) {
+            return null;
+        }
+
+        ByteBuffer buffer = ByteBuffer.wrap(bytes, 1, bytes.length - 1);
+        switch (bytes[0]) {
+            case STRING:
+                return new String(bytes, 1, bytes.length - 1, StandardCharsets.UTF_8);
+            case BOOLEAN:
+                return bytes[1] != 0;
+            case LONG:
+                return buffer.getLong();
+            case INTEGER:
+                return buffer.getInt();
+            case JDK:
+                return fallback.deserialize(Arrays.copyOfRange(bytes, 1, bytes.length));
+            default:
+                throw new SerializationException("Unknown session value type tag: " + bytes[0]);
+        }
+    }
+
+    private static byte[] tagged(byte tag, byte[] payload) {
+        return ByteBuffer.allocate(payload.length + 1).put(tag).put(payload).array();
+    }
+}
@@ -1,6 +1,10 @@
 package vttp.final_project.configurations;
 
 import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
 
 import javax.sql.DataSource;
 
@@ -11,6 +15,11 @@ import org.springframework.context.annotation.Configuration;
 import org.springframework.core.io.ClassPathResource;
 import org.springframework.jdbc.datasource.init.ScriptUtils;
 
+/**
+ * Runs schema.sql once at startup (spring.sql.init is disabled so it isn't run twice).
+ * Every statement in it is idempotent, and indexes added after the table was first
+ * created are checked for and created separately.
+ */
 @Configuration
 public class DatabaseInitializationConfig {
     
@@ -21,9 +30,35 @@ public class DatabaseInitializationConfig {
         try (Connection connection = dataSource.getConnection()) {
             logger.info("Initializing database schema...");
             ScriptUtils.executeSqlScript(connection, new ClassPathResource("schema.sql"));
+            
+            // CREATE TABLE IF NOT EXISTS doesn't add indexes to tables created before them
+            ensureIndex(connection, "spotify_tokens", "idx_spotify_tokens_expiry",
+                    "CREATE INDEX idx_spotify_tokens_expiry ON spotify_tokens (access_token_expiry)");
+            ensureIndex(connection, "spotify_tokens", "idx_spotify_tokens_issued_at",
+                    "CREATE INDEX idx_spotify_tokens_issued_at ON spotify_tokens (issued_at)");
             logger.info("Database schema initialization completed successfully.");
         } catch (Exception e) {
             logger.error("Error initializing database schema", e);
         }
     }
+    
+    private void ensureIndex(Connection connection, String table, String indexName, String ddl) throws SQLException {
+        String sql = "SELECT COUNT(*) FROM information_schema.statistics " +
+                     "WHERE table_schema = DATABASE() AND table_name = ? AND index_name = ?";
+        
+        try (PreparedStatement ps = connection.prepareStatement(sql)) {
+            ps.setString(1, table);
+            ps.setString(2, indexName);
+            try (ResultSet rs = ps.executeQuery()) {
+                if (rs.next() && rs.getInt(1) > 0) {
+                    return;
+                }
+            }
+        }
+        
+        logger.info("Creating index {} on {}", indexName, table);
+        try (Statement statement = connection.createStatement()) {
+            statement.execute(ddl);
+        }
+    }
 }
\ No newline at end of file
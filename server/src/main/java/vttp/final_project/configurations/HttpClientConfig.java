@@ -0,0 +1,141 @@
+package vttp.final_project.configurations;
+
+import org.apache.hc.client5.http.config.ConnectionConfig;
+import org.apache.hc.client5.http.config.RequestConfig;
+import org.apache.hc.client5.http.impl.classic.CloseableHttpClient;
+import org.apache.hc.client5.http.impl.classic.HttpClients;
+import org.apache.hc.client5.http.impl.io.PoolingHttpClientConnectionManager;
+import org.apache.hc.client5.http.impl.io.PoolingHttpClientConnectionManagerBuilder;
+import org.apache.hc.core5.util.TimeValue;
+import org.apache.hc.core5.util.Timeout;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.http.client.HttpComponentsClientHttpRequestFactory;
+import org.springframework.web.client.RestTemplate;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.httpcomponents.hc5.PoolingHttpClientConnectionManagerMetricsBinder;
+import vttp.final_project.services.UpstreamMetricsService;
+
+/**
+ * Outbound HTTP clients, one pooled keep-alive client per upstream dependency.
+ * Pool usage is exported as httpcomponents.httpclient.pool.* tagged with the client name,
+ * and every request is timed as app.upstream.requests (see UpstreamMetricsInterceptor).
+ */
+@Configuration
+public class HttpClientConfig {
+
+    @Value("${app.http.spotify-api.connect-timeout:2000}")
+    private int spotifyApiConnectTimeout;
+
+    @Value("${app.http.spotify-api.read-timeout:5000}")
+    private int spotifyApiReadTimeout;
+
+    @Value("${app.http.spotify-api.max-connections:100}")
+    private int spotifyApiMaxConnections;
+
+    @Value("${app.http.spotify-accounts.connect-timeout:2000}")
+    private int spotifyAccountsConnectTimeout;
+
+    @Value("${app.http.spotify-accounts.read-timeout:5000}")
+    private int spotifyAccountsReadTimeout;
+
+    @Value("${app.http.spotify-accounts.max-connections:20}")
+    private int spotifyAccountsMaxConnections;
+
+    @Value("${app.http.spotify-web.connect-timeout:2000}")
+    private int spotifyWebConnectTimeout;
+
+    @Value("${app.http.spotify-web.read-timeout:3000}")
+    private int spotifyWebReadTimeout;
+
+    @Value("${app.http.spotify-web.max-connections:50}")
+    private int spotifyWebMaxConnections;
+
+    @Value("${app.http.gemini.connect-timeout:3000}")
+    private int geminiConnectTimeout;
+
+    @Value("${app.http.gemini.read-timeout:30000}")
+    private int geminiReadTimeout;
+
+    @Value("${app.http.gemini.max-connections:20}")
+    private int geminiMaxConnections;
+
+    // How long a caller waits for a free pooled connection before failing
+    @Value("${app.http.pool.acquire-timeout:2000}")
+    private int poolAcquireTimeout;
+
+    // Idle connections older than this (in seconds) are closed in the background
+    @Value("${app.http.pool.idle-eviction:30}")
+    private int idleEvictionSeconds;
+
+    /**
+     * Client for api.spotify.com (profile, playlists, search, top tracks)
+     */
+    @Bean
+    public RestTemplate spotifyApiRestTemplate(MeterRegistry registry, UpstreamMetricsService upstreamMetrics) {
+        return buildRestTemplate("spotify-api", spotifyApiConnectTimeout, spotifyApiReadTimeout,
+                spotifyApiMaxConnections, registry, upstreamMetrics);
+    }
+
+    /**
+     * Client for accounts.spotify.com (code exchange and token refresh)
+     */
+    @Bean
+    public RestTemplate spotifyAccountsRestTemplate(MeterRegistry registry, UpstreamMetricsService upstreamMetrics) {
+        return buildRestTemplate("spotify-accounts", spotifyAccountsConnectTimeout, spotifyAccountsReadTimeout,
+                spotifyAccountsMaxConnections, registry, upstreamMetrics);
+    }
+
+    /**
+     * Client for open.spotify.com track pages scraped for preview URLs
+     */
+    @Bean
+    public RestTemplate spotifyWebRestTemplate(MeterRegistry registry, UpstreamMetricsService upstreamMetrics) {
+        return buildRestTemplate("spotify-web", spotifyWebConnectTimeout, spotifyWebReadTimeout,
+                spotifyWebMaxConnections, registry, upstreamMetrics);
+    }
+
+    /**
+     * Client for the Gemini generative language API
+     */
+    @Bean
+    public RestTemplate geminiRestTemplate(MeterRegistry registry, UpstreamMetricsService upstreamMetrics) {
+        return buildRestTemplate("gemini", geminiConnectTimeout, geminiReadTimeout,
+                geminiMaxConnections, registry, upstreamMetrics);
+    }
+
+    private RestTemplate buildRestTemplate(String name, int connectTimeoutMs, int readTimeoutMs,
+            int maxConnections, MeterRegistry registry, UpstreamMetricsService upstreamMetrics) {
+
+        ConnectionConfig connectionConfig = ConnectionConfig.custom()
+                .setConnectTimeout(Timeout.ofMilliseconds(connectTimeoutMs))
+                .setSocketTimeout(Timeout.ofMilliseconds(readTimeoutMs))
+                .build();
+
+        // Each client only talks to one host, so the per-route limit is the pool size
+        PoolingHttpClientConnectionManager connectionManager = PoolingHttpClientConnectionManagerBuilder.create()
+                .setMaxConnTotal(maxConnections)
+                .setMaxConnPerRoute(maxConnections)
+                .setDefaultConnectionConfig(connectionConfig)
+                .build();
+
+        new PoolingHttpClientConnectionManagerMetricsBinder(connectionManager, name).bindTo(registry);
+
+        RequestConfig requestConfig = RequestConfig.custom()
+                .setConnectionRequestTimeout(Timeout.ofMilliseconds(poolAcquireTimeout))
+                .build();
+
+        CloseableHttpClient httpClient = HttpClients.custom()
+                .setConnectionManager(connectionManager)
+                .setDefaultRequestConfig(requestConfig)
+                .evictIdleConnections(TimeValue.ofSeconds(idleEvictionSeconds))
+                .evictExpiredConnections()
+                .build();
+
+        RestTemplate restTemplate = new RestTemplate(new HttpComponentsClientHttpRequestFactory(httpClient));
+        restTemplate.getInterceptors().add(new UpstreamMetricsInterceptor(name, upstreamMetrics));
+        return restTemplate;
+    }
+}
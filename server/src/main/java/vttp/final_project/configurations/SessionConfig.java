@@ -0,0 +1,21 @@
+package vttp.final_project.configurations;
+
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.data.redis.serializer.RedisSerializer;
+
+/**
+ * HTTP sessions are stored in Redis by Spring Session (see spring.session.* properties),
+ * so any node can serve any request and restarts don't log users out.
+ */
+@Configuration
+public class SessionConfig {
+
+    /**
+     * Serializer for session attributes and metadata. Picked up by Spring Session by bean name.
+     */
+    @Bean
+    public RedisSerializer<Object> springSessionDefaultRedisSerializer() {
+        return new CompactSessionSerializer();
+    }
+}
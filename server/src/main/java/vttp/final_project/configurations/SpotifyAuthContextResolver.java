@@ -0,0 +1,67 @@
+package vttp.final_project.configurations;
+
+import java.util.Optional;
+
+import org.springframework.core.MethodParameter;
+import org.springframework.web.bind.support.WebDataBinderFactory;
+import org.springframework.web.context.request.NativeWebRequest;
+import org.springframework.web.method.support.HandlerMethodArgumentResolver;
+import org.springframework.web.method.support.ModelAndViewContainer;
+
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpSession;
+import vttp.final_project.exceptions.SpotifyAuthException;
+import vttp.final_project.models.SpotifyAuthContext;
+import vttp.final_project.services.SpotifyAuthService;
+
+/**
+ * Resolves SpotifyAuthContext controller parameters. The session is checked and the
+ * access token looked up (and refreshed if due) once per request, and the result is
+ * kept as a request attribute so further parameters in the same request reuse it.
+ */
+class SpotifyAuthContextResolver implements HandlerMethodArgumentResolver {
+
+    private static final String AUTH_CONTEXT_ATTRIBUTE = SpotifyAuthContext.class.getName();
+
+    private final SpotifyAuthService spotifyAuthService;
+
+    SpotifyAuthContextResolver(SpotifyAuthService spotifyAuthService) {
+        this.spotifyAuthService = spotifyAuthService;
+    }
+
+    @Override
+    public boolean supportsParameter(MethodParameter parameter) {
+        return SpotifyAuthContext.class.equals(parameter.getParameterType());
+    }
+
+    @Override
+    public Object resolveArgument(MethodParameter parameter, ModelAndViewContainer mavContainer,
+            NativeWebRequest webRequest, WebDataBinderFactory binderFactory) {
+        HttpServletRequest request = webRequest.getNativeRequest(HttpServletRequest.class);
+
+        SpotifyAuthContext auth = (SpotifyAuthContext) request.getAttribute(AUTH_CONTEXT_ATTRIBUTE);
+        if (auth == null) {
+            auth = resolve(request);
+            request.setAttribute(AUTH_CONTEXT_ATTRIBUTE, auth);
+        }
+        return auth;
+    }
+
+    private SpotifyAuthContext resolve(HttpServletRequest request) {
+        HttpSession session = request.getSession(false);
+        if (session == null || session.getAttribute("authenticated") == null
+                || session.getAttribute("userId") == null) {
+            throw new SpotifyAuthException("Not authenticated");
+        }
+
+        String userId = (String) session.getAttribute("userId");
+        Optional<String> accessTokenOpt = spotifyAuthService.getValidAccessToken(userId);
+
+        if (accessTokenOpt.isEmpty()) {
+            session.invalidate();
+            throw new SpotifyAuthException("Invalid token");
+        }
+
+        return new SpotifyAuthContext(userId, accessTokenOpt.get());
+    }
+}
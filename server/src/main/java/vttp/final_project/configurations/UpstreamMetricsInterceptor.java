@@ -0,0 +1,78 @@
+package vttp.final_project.configurations;
+
+import java.io.IOException;
+import java.util.Set;
+
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpRequest;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.client.ClientHttpRequestExecution;
+import org.springframework.http.client.ClientHttpRequestInterceptor;
+import org.springframework.http.client.ClientHttpResponse;
+
+import vttp.final_project.services.UpstreamMetricsService;
+
+/**
+ * Times every request made through one upstream's RestTemplate and counts 429 and
+ * Retry-After responses. The timing ends when the response headers arrive, so bodies
+ * streamed by the caller afterwards are not included.
+ */
+public class UpstreamMetricsInterceptor implements ClientHttpRequestInterceptor {
+
+    // Path segments followed by an ID in Spotify URLs, the ID is replaced to keep tag values bounded
+    private static final Set<String> ID_PARENTS = Set.of(
+            "playlists", "tracks", "track", "albums", "artists", "users");
+
+    private final String upstream;
+    private final UpstreamMetricsService metricsService;
+
+    public UpstreamMetricsInterceptor(String upstream, UpstreamMetricsService metricsService) {
+        this.upstream = upstream;
+        this.metricsService = metricsService;
+    }
+
+    @Override
+    public ClientHttpResponse intercept(HttpRequest request, byte[] body, ClientHttpRequestExecution execution)
+            throws IOException {
+        String operation = request.getMethod().name() + " " + templatePath(request.getURI().getRawPath());
+        long start = System.nanoTime();
+
+        ClientHttpResponse response;
+        try {
+            response = execution.execute(request, body);
+        } catch (IOException e) {
+            metricsService.recordRequest(upstream, operation, "IO_ERROR", System.nanoTime() - start);
+            throw e;
+        }
+
+        int status = response.getStatusCode().value();
+        metricsService.recordRequest(upstream, operation, (status / 100) + "xx", System.nanoTime() - start);
+
+        if (status == HttpStatus.TOO_MANY_REQUESTS.value()) {
+            metricsService.incrementThrottled(upstream, operation);
+        }
+        if (response.getHeaders().containsKey(HttpHeaders.RETRY_AFTER)) {
+            metricsService.incrementRetryAfter(upstream, operation);
+        }
+
+        return response;
+    }
+
+    /**
+     * Replaces IDs in a path with {id}, e.g. /v1/playlists/abc123/tracks becomes
+     * /v1/playlists/{id}/tracks
+     */
+    static String templatePath(String path) {
+        if (path == null || path.isEmpty()) {
+            return "/";
+        }
+
+        String[] segments = path.split("/");
+        StringBuilder templated = new StringBuilder(path.length());
+        for (int i = 1; i < segments.length; i++) {
+            templated.append('/');
+            templated.append(ID_PARENTS.contains(segments[i - 1]) ? "{id}" : segments[i]);
+        }
+        return templated.length() > 0 ? templated.toString() : "/";
+    }
+}
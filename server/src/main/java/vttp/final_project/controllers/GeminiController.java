@@ -1,21 +1,30 @@
 package vttp.final_project.controllers;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.http.HttpStatus;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.CrossOrigin;
+import org.springframework.web.bind.annotation.DeleteMapping;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
-import jakarta.servlet.http.HttpServletRequest;
-import jakarta.servlet.http.HttpSession;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import vttp.final_project.models.SpotifyAuthContext;
 import vttp.final_project.services.ApiMetricsService;
 import vttp.final_project.services.GeminiService;
 import vttp.final_project.services.SpotifyPreviewService;
@@ -35,14 +44,18 @@ public class GeminiController {
     private SpotifyService spotifyService;
     
     @Autowired
+    @Lazy
     private SpotifyPreviewService previewService;
     
     @Autowired
     private ApiMetricsService apiMetricsService;
     
+    @Autowired
+    private ObjectMapper objectMapper;
+    
     @GetMapping("/recommendations")
     public ResponseEntity<?> getRecommendations(
-            HttpServletRequest request,
+            SpotifyAuthContext auth,
             @RequestParam String playlistId,
             @RequestParam(defaultValue = "false") boolean includePreviewUrls,
             @RequestParam(defaultValue = "10") int limit,
@@ -62,7 +75,7 @@ public class GeminiController {
         }
         
         // First, get the playlist tracks from Spotify
-        ResponseEntity<?> playlistResponse = spotifyService.getPlaylistById(request, playlistId);
+        ResponseEntity<?> playlistResponse = spotifyService.getPlaylistById(auth, playlistId);
         
         if (!playlistResponse.getStatusCode().is2xxSuccessful()) {
             return playlistResponse;
@@ -82,7 +95,7 @@ public class GeminiController {
             List<Map<String, String>> recommendations = (List<Map<String, String>>) recommendationsResponse.getBody();
             
             List<Map<String, Object>> enhancedRecommendations = 
-                    previewService.getPreviewUrlsForRecommendations(request, recommendations);
+                    previewService.getPreviewUrlsForRecommendations(auth, recommendations);
             
             return ResponseEntity.ok(enhancedRecommendations);
         } catch (Exception e) {
@@ -91,9 +104,80 @@ public class GeminiController {
         }
     }
     
+    /**
+     * Streaming variant of /recommendations. Each recommendation is written as one
+     * NDJSON line as soon as Gemini produces it, instead of waiting for the whole batch.
+     */
+    @GetMapping("/recommendations/stream")
+    public ResponseEntity<?> streamRecommendations(
+            SpotifyAuthContext auth,
+            @RequestParam String playlistId,
+            @RequestParam(defaultValue = "10") int limit,
+            @RequestParam(defaultValue = "0") int offset,
+            @RequestParam(defaultValue = "false") boolean clearCache,
+            @RequestParam(required = false) String customPrompt) {
+        
+        // Track API usage metric
+        apiMetricsService.incrementApiCounter("/api/gemini/recommendations/stream");
+        
+        logger.info("Streaming recommendations for playlist: {}, limit: {}, offset: {}, clearCache: {}, customPrompt: {}", 
+                playlistId, limit, offset, clearCache, customPrompt != null ? "'" + customPrompt + "'" : "null");
+        
+        // Clear the cache if requested
+        if (clearCache && offset == 0) {
+            geminiService.clearRecommendationsCache(playlistId);
+        }
+        
+        // Fetch the playlist before streaming starts so errors still get a proper status code
+        ResponseEntity<?> playlistResponse = spotifyService.getPlaylistById(auth, playlistId);
+        
+        if (!playlistResponse.getStatusCode().is2xxSuccessful()) {
+            return playlistResponse;
+        }
+        
+        Object playlistData = playlistResponse.getBody();
+        
+        StreamingResponseBody body = outputStream -> {
+            AtomicBoolean outputFailed = new AtomicBoolean();
+            try {
+                geminiService.streamSongRecommendationsForPlaylist(playlistData, limit, offset, customPrompt,
+                        recommendation -> {
+                            try {
+                                writeLine(outputStream, recommendation);
+                            } catch (UncheckedIOException e) {
+                                outputFailed.set(true);
+                                throw e;
+                            }
+                        });
+            } catch (Exception e) {
+                if (outputFailed.get()) {
+                    // The client disconnected, there is nowhere to write an error to
+                    logger.warn("Client stopped reading recommendations for playlist {}: {}", playlistId, e.getMessage());
+                    return;
+                }
+                logger.error("Error streaming recommendations for playlist {}", playlistId, e);
+                writeLine(outputStream, Map.of("error", "Failed to get recommendations: " + e.getMessage()));
+            }
+        };
+        
+        return ResponseEntity.ok()
+                .contentType(MediaType.APPLICATION_NDJSON)
+                .body(body);
+    }
+    
+    private void writeLine(OutputStream outputStream, Object value) {
+        try {
+            outputStream.write(objectMapper.writeValueAsBytes(value));
+            outputStream.write('\n');
+            outputStream.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+    
     @GetMapping("/top-tracks-recommendations")
     public ResponseEntity<?> getTopTracksRecommendations(
-            HttpServletRequest request,
+            SpotifyAuthContext auth,
             @RequestParam String timeRange,
             @RequestParam(defaultValue = "false") boolean includePreviewUrls,
             @RequestParam(defaultValue = "10") int limit,
@@ -108,13 +192,7 @@ public class GeminiController {
                 timeRange, limit, offset, clearCache, customPrompt != null ? "'" + customPrompt + "'" : "null");
         
         // Generate a unique cache key based on user ID + time range
-        HttpSession session = request.getSession(false);
-        if (session == null || session.getAttribute("userId") == null) {
-            return ResponseEntity.status(HttpStatus.UNAUTHORIZED).body("Not authenticated");
-        }
-        
-        String userId = (String) session.getAttribute("userId");
-        String cacheKey = userId + "_top_tracks_" + timeRange;
+        String cacheKey = auth.getUserId() + "_top_tracks_" + timeRange;
         
         // Clear the cache if requested
         if (clearCache && offset == 0) {
@@ -122,7 +200,7 @@ public class GeminiController {
         }
         
         // First, get the user's top tracks from Spotify
-        ResponseEntity<?> topTracksResponse = spotifyService.getUserTopTracks(request, timeRange, 20, 0);
+        ResponseEntity<?> topTracksResponse = spotifyService.getUserTopTracks(auth, timeRange, 20, 0);
         
         if (!topTracksResponse.getStatusCode().is2xxSuccessful()) {
             return topTracksResponse; // Return the error response if top tracks fetch failed
@@ -143,7 +221,7 @@ public class GeminiController {
             List<Map<String, String>> recommendations = (List<Map<String, String>>) recommendationsResponse.getBody();
             
             List<Map<String, Object>> enhancedRecommendations = 
-                    previewService.getPreviewUrlsForRecommendations(request, recommendations);
+                    previewService.getPreviewUrlsForRecommendations(auth, recommendations);
             
             return ResponseEntity.ok(enhancedRecommendations);
         } catch (Exception e) {
@@ -151,4 +229,19 @@ public class GeminiController {
             return ResponseEntity.ok(recommendationsResponse.getBody());
         }
     }
-}
\ No newline at end of file
+    
+    /**
+     * Clears the current user's cached top tracks recommendations and custom prompts.
+     * The keys are found by the background SCAN sweep and the request completes
+     * asynchronously once the sweep has finished.
+     */
+    @DeleteMapping("/top-tracks-recommendations/cache")
+    public CompletableFuture<ResponseEntity<?>> clearTopTracksRecommendationsCache(SpotifyAuthContext auth) {
+        apiMetricsService.incrementApiCounter("/api/gemini/top-tracks-recommendations/cache");
+        
+        logger.info("Clearing top tracks recommendation caches for user {}", auth.getUserId());
+        
+        return geminiService.clearUserRecommendationsCache(auth.getUserId())
+                .<ResponseEntity<?>>thenApply(deleted -> ResponseEntity.ok(Map.of("deleted", deleted)));
+    }
+}
@@ -13,7 +13,7 @@ import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
 
-import jakarta.servlet.http.HttpServletRequest;
+import vttp.final_project.models.SpotifyAuthContext;
 import vttp.final_project.services.ApiMetricsService;
 import vttp.final_project.services.SpotifyService;
 
@@ -30,46 +30,46 @@ public class SpotifyApiController {
     ApiMetricsService apiMetricsService;
     
     @GetMapping("/profile")
-    public ResponseEntity<?> getUserProfile(HttpServletRequest request) {
+    public ResponseEntity<?> getUserProfile(SpotifyAuthContext auth) {
         // Track API usage metric
         apiMetricsService.incrementApiCounter("/api/spotify/profile");
         
-        return spotifyService.getUserProfile(request);
+        return spotifyService.getUserProfile(auth);
     }
 
     @GetMapping("/playlists")
-    public ResponseEntity<?> getUserPlaylists(HttpServletRequest request,
+    public ResponseEntity<?> getUserPlaylists(SpotifyAuthContext auth,
         @RequestParam(defaultValue = "5") int limit,
         @RequestParam(defaultValue = "0") int offset) {
         
         // Track API usage metric
         apiMetricsService.incrementApiCounter("/api/spotify/playlists");
         
-        return spotifyService.getUserPlaylists(request, limit, offset);
+        return spotifyService.getUserPlaylists(auth, limit, offset);
     }
 
     @GetMapping("/playlists/{id}")
     public ResponseEntity<?> getPlaylistById(
-        HttpServletRequest request,
+        SpotifyAuthContext auth,
         @PathVariable("id") String playlistId) {
         
         // Track API usage metric
         apiMetricsService.incrementApiCounter("/api/spotify/playlists/{id}");
         
-        return spotifyService.getPlaylistById(request, playlistId);
+        return spotifyService.getPlaylistById(auth, playlistId);
     }
 
     @GetMapping("/tracks")
-    public ResponseEntity<?> getSeveralTracks(HttpServletRequest request,
+    public ResponseEntity<?> getSeveralTracks(SpotifyAuthContext auth,
         @RequestParam String ids) {
         
         apiMetricsService.incrementApiCounter("/api/spotify/tracks");
-        return spotifyService.getSeveralTracks(request, ids);
+        return spotifyService.getSeveralTracks(auth, ids);
     }
 
     @PostMapping("/playlists/{id}/tracks")
     public ResponseEntity<?> addTrackToPlaylist(
-        HttpServletRequest request,
+        SpotifyAuthContext auth,
         @PathVariable("id") String playlistId,
         @RequestBody Map<String, String> requestBody) {
         
@@ -80,18 +80,18 @@ public class SpotifyApiController {
             return ResponseEntity.badRequest().body("Track URI is required");
         }
         
-        return spotifyService.addTrackToPlaylist(request, playlistId, trackUri);
+        return spotifyService.addTrackToPlaylist(auth, playlistId, trackUri);
     }
 
     @GetMapping("/top-tracks")
     public ResponseEntity<?> getUserTopTracks(
-        HttpServletRequest request,
+        SpotifyAuthContext auth,
         @RequestParam(defaultValue = "medium_term") String timeRange,
         @RequestParam(defaultValue = "20") int limit,
         @RequestParam(defaultValue = "0") int offset) {
         
         apiMetricsService.incrementApiCounter("/api/spotify/top-tracks");
 
-        return spotifyService.getUserTopTracks(request, timeRange, limit, offset);
+        return spotifyService.getUserTopTracks(auth, timeRange, limit, offset);
     }
 }
@@ -18,8 +18,10 @@ import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
 import jakarta.servlet.http.HttpSession;
 import vttp.final_project.models.SpotifyTokens;
-import vttp.final_project.repositories.SpotifyTokenRepository;
+import vttp.final_project.services.ActiveSessionRegistry;
+import vttp.final_project.services.RecommendationWarmupService;
 import vttp.final_project.services.SpotifyAuthService;
+import vttp.final_project.services.SpotifyService;
 
 @Controller
 @RequestMapping("/api/auth/spotify")
@@ -35,7 +37,13 @@ public class SpotifyAuthController {
     private SpotifyAuthService spotifyAuthService;
     
     @Autowired
-    private SpotifyTokenRepository tokenRepository;
+    private SpotifyService spotifyService;
+    
+    @Autowired
+    private RecommendationWarmupService warmupService;
+    
+    @Autowired
+    private ActiveSessionRegistry activeSessionRegistry;
     
     @GetMapping
     public RedirectView startAuth(HttpServletRequest request) {
@@ -109,7 +117,8 @@ public class SpotifyAuthController {
             // Exchange code for tokens
             SpotifyTokens tokens = spotifyAuthService.exchangeCodeForTokens(code, codeVerifier);
             
-            String userId = session.getId();
+            // Key tokens and caches by the Spotify account so they're shared across sessions and devices
+            String userId = spotifyService.getCurrentUserId(spotifyAuthService.decryptAccessToken(tokens));
             logger.info("Got tokens for user ID: {}", userId);
             
             // Save tokens to database
@@ -123,8 +132,12 @@ public class SpotifyAuthController {
             // Set a session attribute to indicate user is authenticated
             session.setAttribute("authenticated", true);
             session.setAttribute("userId", userId);
+            activeSessionRegistry.register(session.getId(), userId);
             logger.info("Set authentication attributes in session");
             
+            // Warm the recommendation cache in the background (no-op unless enabled)
+            warmupService.scheduleWarmup(userId);
+            
             // Redirect to frontend
             logger.info("Redirecting to dashboard");
             return new RedirectView(frontendUrl + "/dashboard");
@@ -148,10 +161,13 @@ public class SpotifyAuthController {
             String userId = (String) session.getAttribute("userId");
             logger.info("Logging out user ID: {}", userId);
             
-            if (userId != null) {
-                // Delete the user's tokens from the database
+            if (userId != null && !activeSessionRegistry.hasOtherSessions(userId, session.getId())) {
+                // Stop any queued cache warm-up for this user
+                warmupService.cancelWarmup(userId);
+                
+                // Delete the user's tokens from the database, unless another device is still using them
                 logger.info("Deleting tokens for user ID: {}", userId);
-                tokenRepository.delete(userId);
+                spotifyAuthService.deleteUserTokens(userId);
             }
             
             // Invalidate session
@@ -0,0 +1,18 @@
+package vttp.final_project.controllers;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.ExceptionHandler;
+import org.springframework.web.bind.annotation.RestControllerAdvice;
+
+import vttp.final_project.exceptions.SpotifyAuthException;
+
+@RestControllerAdvice
+public class SpotifyAuthExceptionHandler {
+
+    // Same status and body the services used to return when the session or token was invalid
+    @ExceptionHandler(SpotifyAuthException.class)
+    public ResponseEntity<String> handleSpotifyAuthException(SpotifyAuthException e) {
+        return ResponseEntity.status(HttpStatus.UNAUTHORIZED).body(e.getMessage());
+    }
+}
@@ -4,6 +4,7 @@ import java.util.List;
 import java.util.Map;
 
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Lazy;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.CrossOrigin;
 import org.springframework.web.bind.annotation.GetMapping;
@@ -13,7 +14,7 @@ import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
 
-import jakarta.servlet.http.HttpServletRequest;
+import vttp.final_project.models.SpotifyAuthContext;
 import vttp.final_project.services.SpotifyPreviewService;
 
 @RestController
@@ -22,14 +23,15 @@ import vttp.final_project.services.SpotifyPreviewService;
 public class SpotifyPreviewController {
 
     @Autowired
+    @Lazy
     private SpotifyPreviewService previewService;
     
     @GetMapping
     public ResponseEntity<?> getTrackPreview(
-            HttpServletRequest request,
+            SpotifyAuthContext auth,
             @RequestParam String query) {
         
-        Map<String, Object> result = previewService.getTrackPreviewUrl(request, query);
+        Map<String, Object> result = previewService.getTrackPreviewUrl(auth, query);
         
         if ((boolean) result.get("success")) {
             return ResponseEntity.ok(result);
@@ -40,11 +42,11 @@ public class SpotifyPreviewController {
     
     @PostMapping("/batch")
     public ResponseEntity<?> getPreviewsForRecommendations(
-            HttpServletRequest request,
+            SpotifyAuthContext auth,
             @RequestBody List<Map<String, String>> recommendations) {
         
         List<Map<String, Object>> results = 
-                previewService.getPreviewUrlsForRecommendations(request, recommendations);
+                previewService.getPreviewUrlsForRecommendations(auth, recommendations);
         
         return ResponseEntity.ok(results);
     }
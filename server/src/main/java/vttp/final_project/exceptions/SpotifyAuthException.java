@@ -0,0 +1,14 @@
+package vttp.final_project.exceptions;
+
+/**
+ * Thrown while resolving a SpotifyAuthContext when the session isn't logged in or
+ * its tokens can't be used any more. Mapped to a 401 by SpotifyAuthExceptionHandler.
+ */
+public class SpotifyAuthException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    public SpotifyAuthException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,35 @@
+package vttp.final_project.models;
+
+import org.springframework.http.HttpHeaders;
+
+/**
+ * A user's Spotify identity and a valid access token, resolved once per request
+ * (or once per background job) and handed to the services. Holds no reference to
+ * the HTTP request or session, so it can be used from any thread.
+ */
+public class SpotifyAuthContext {
+    private final String userId;
+    private final String accessToken;
+
+    public SpotifyAuthContext(String userId, String accessToken) {
+        this.userId = userId;
+        this.accessToken = accessToken;
+    }
+
+    public String getUserId() {
+        return userId;
+    }
+
+    public String getAccessToken() {
+        return accessToken;
+    }
+
+    /**
+     * @return New headers carrying the bearer token, callers may add to them
+     */
+    public HttpHeaders createHeaders() {
+        HttpHeaders headers = new HttpHeaders();
+        headers.setBearerAuth(accessToken);
+        return headers;
+    }
+}
@@ -1,7 +1,9 @@
 package vttp.final_project.repositories;
 
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.Timestamp;
+import java.time.Instant;
 import java.util.List;
 import java.util.Optional;
 
@@ -10,8 +12,10 @@ import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.jdbc.core.RowMapper;
 import org.springframework.stereotype.Repository;
 
+import io.micrometer.core.annotation.Timed;
 import vttp.final_project.models.SpotifyTokens;
 
+// Query latency is recorded per method as app.tokens.db.query, tagged with the query name
 @Repository
 public class SpotifyTokenRepository {
     
@@ -31,33 +35,86 @@ public class SpotifyTokenRepository {
         return tokens;
     };
     
+    @Timed(value = "app.tokens.db.query", extraTags = {"query", "find_by_user_id"})
     public Optional<SpotifyTokens> findByUserId(String userId) {
         String sql = "SELECT * FROM spotify_tokens WHERE user_id = ?";
         List<SpotifyTokens> results = jdbcTemplate.query(sql, tokenRowMapper, userId);
         return results.isEmpty() ? Optional.empty() : Optional.of(results.get(0));
     }
     
+    /**
+     * Finds tokens whose access token expires within a window, soonest first.
+     * Uses the index on access_token_expiry.
+     */
+    @Timed(value = "app.tokens.db.query", extraTags = {"query", "find_expiring"})
+    public List<SpotifyTokens> findExpiringBetween(Instant from, Instant to, int limit) {
+        String sql = "SELECT * FROM spotify_tokens WHERE access_token_expiry >= ? AND access_token_expiry < ? " +
+                     "ORDER BY access_token_expiry LIMIT ?";
+        return jdbcTemplate.query(sql, tokenRowMapper, Timestamp.from(from), Timestamp.from(to), limit);
+    }
+    
+    // VALUES() refers to the row being inserted, so each value is only bound once
+    private static final String UPSERT_SQL =
+            "INSERT INTO spotify_tokens (user_id, access_token, refresh_token, access_token_expiry, " +
+            "scope, issued_at) VALUES (?, ?, ?, ?, ?, ?) " +
+            "ON DUPLICATE KEY UPDATE access_token = VALUES(access_token), refresh_token = VALUES(refresh_token), " +
+            "access_token_expiry = VALUES(access_token_expiry), scope = VALUES(scope), issued_at = VALUES(issued_at)";
+    
+    @Timed(value = "app.tokens.db.query", extraTags = {"query", "upsert"})
     public void save(SpotifyTokens tokens) {
-        String sql = "INSERT INTO spotify_tokens (user_id, access_token, refresh_token, access_token_expiry, " +
-                     "scope, issued_at) VALUES (?, ?, ?, ?, ?, ?) " +
-                     "ON DUPLICATE KEY UPDATE access_token = ?, refresh_token = ?, " +
-                     "access_token_expiry = ?, scope = ?, issued_at = ?";
-        
-        jdbcTemplate.update(sql,
+        jdbcTemplate.update(UPSERT_SQL,
                 tokens.getUserId(),
                 tokens.getAccessToken(),
                 tokens.getRefreshToken(),
                 Timestamp.from(tokens.getAccessTokenExpiry()),
                 tokens.getScope(),
-                Timestamp.from(tokens.getIssuedAt()),
-                tokens.getAccessToken(),
-                tokens.getRefreshToken(),
-                Timestamp.from(tokens.getAccessTokenExpiry()),
-                tokens.getScope(),
                 Timestamp.from(tokens.getIssuedAt())
         );
     }
     
+    /**
+     * Upserts several tokens in one JDBC batch
+     */
+    @Timed(value = "app.tokens.db.query", extraTags = {"query", "batch_upsert"})
+    public void batchSave(List<SpotifyTokens> tokensList) {
+        jdbcTemplate.batchUpdate(UPSERT_SQL, tokensList, tokensList.size(), (PreparedStatement ps, SpotifyTokens tokens) -> {
+            ps.setString(1, tokens.getUserId());
+            ps.setString(2, tokens.getAccessToken());
+            ps.setString(3, tokens.getRefreshToken());
+            ps.setTimestamp(4, Timestamp.from(tokens.getAccessTokenExpiry()));
+            ps.setString(5, tokens.getScope());
+            ps.setTimestamp(6, Timestamp.from(tokens.getIssuedAt()));
+        });
+    }
+    
+    /**
+     * Deletes up to limit rows whose tokens were last issued before the cutoff.
+     * Uses the index on issued_at, callers repeat until fewer than limit rows are deleted.
+     * 
+     * @return The number of rows deleted
+     */
+    @Timed(value = "app.tokens.db.query", extraTags = {"query", "delete_issued_before"})
+    public int deleteIssuedBefore(Instant cutoff, int limit) {
+        String sql = "DELETE FROM spotify_tokens WHERE issued_at < ? ORDER BY issued_at LIMIT ?";
+        return jdbcTemplate.update(sql, Timestamp.from(cutoff), limit);
+    }
+    
+    /**
+     * Deletes up to limit rows keyed by a session ID rather than a Spotify user ID, left over
+     * from before tokens were keyed by Spotify account. Matches Tomcat session IDs
+     * (32 upper-case hex characters) and Spring Session IDs (UUIDs), case-sensitively.
+     * 
+     * @return The number of rows deleted
+     */
+    @Timed(value = "app.tokens.db.query", extraTags = {"query", "delete_session_keyed"})
+    public int deleteSessionKeyedRows(int limit) {
+        String sql = "DELETE FROM spotify_tokens WHERE REGEXP_LIKE(user_id, '^[0-9A-F]{32}$', 'c') " +
+                     "OR REGEXP_LIKE(user_id, '^[0-9a-f]{8}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{12}$', 'c') " +
+                     "LIMIT ?";
+        return jdbcTemplate.update(sql, limit);
+    }
+    
+    @Timed(value = "app.tokens.db.query", extraTags = {"query", "delete"})
     public void delete(String userId) {
         String sql = "DELETE FROM spotify_tokens WHERE user_id = ?";
         jdbcTemplate.update(sql, userId);
@@ -0,0 +1,125 @@
+package vttp.final_project.services;
+
+import java.time.Duration;
+import java.time.Instant;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+
+/**
+ * Per-node cache of decrypted Spotify access tokens keyed by user ID.
+ * An entry expires when the token would be due for refresh, so a hit never
+ * hands out a token that getValidAccessToken would have refreshed.
+ */
+@Service
+public class AccessTokenCacheService {
+
+    // Metric tag for this cache
+    private static final String CACHE_NAME = "access_tokens";
+
+    @Value("${app.cache.access-tokens.max-size:10000}")
+    private long maxSize;
+
+    // Entries are dropped this many seconds before the token expires (matches SpotifyTokens.isAlmostExpired)
+    @Value("${app.cache.access-tokens.expiry-margin:300}")
+    private long expiryMarginSeconds;
+
+    @Autowired
+    private ApiMetricsService apiMetricsService;
+
+    private final Counter dbQueriesAvoided;
+
+    private Cache<String, CachedToken> cache;
+
+    private record CachedToken(String accessToken, Instant validUntil) {}
+
+    public AccessTokenCacheService(MeterRegistry meterRegistry) {
+        this.dbQueriesAvoided = Counter.builder("app.tokens.db.queries.avoided")
+            .description("Token lookups served without a database query and decrypt")
+            .register(meterRegistry);
+    }
+
+    @PostConstruct
+    public void init() {
+        cache = Caffeine.newBuilder()
+                .maximumSize(maxSize)
+                .expireAfter(new Expiry<String, CachedToken>() {
+                    @Override
+                    public long expireAfterCreate(String userId, CachedToken token, long currentTime) {
+                        return Math.max(0, Duration.between(Instant.now(), token.validUntil()).toNanos());
+                    }
+
+                    @Override
+                    public long expireAfterUpdate(String userId, CachedToken token, long currentTime,
+                            long currentDuration) {
+                        return expireAfterCreate(userId, token, currentTime);
+                    }
+
+                    @Override
+                    public long expireAfterRead(String userId, CachedToken token, long currentTime,
+                            long currentDuration) {
+                        return currentDuration;
+                    }
+                })
+                .build();
+    }
+
+    /**
+     * Looks up the decrypted access token for a user
+     *
+     * @param userId The user ID the tokens are stored under
+     * @return The access token, or null on a miss
+     */
+    public String getAccessToken(String userId) {
+        CachedToken token = cache.getIfPresent(userId);
+
+        // Caffeine expiry is lazy, check the deadline as well
+        if (token != null && Instant.now().isAfter(token.validUntil())) {
+            cache.invalidate(userId);
+            token = null;
+        }
+
+        apiMetricsService.incrementCacheCounter(CACHE_NAME, token != null ? "hit" : "miss");
+
+        if (token == null) {
+            return null;
+        }
+
+        dbQueriesAvoided.increment();
+        return token.accessToken();
+    }
+
+    /**
+     * Caches a decrypted access token until shortly before it expires
+     *
+     * @param userId The user ID the tokens are stored under
+     * @param accessToken The decrypted access token
+     * @param accessTokenExpiry When Spotify expires the token
+     */
+    public void cacheAccessToken(String userId, String accessToken, Instant accessTokenExpiry) {
+        Instant validUntil = accessTokenExpiry.minusSeconds(expiryMarginSeconds);
+        if (validUntil.isAfter(Instant.now())) {
+            cache.put(userId, new CachedToken(accessToken, validUntil));
+        } else {
+            cache.invalidate(userId);
+        }
+    }
+
+    /**
+     * Drops the cached token for a user, e.g. after the stored tokens changed or were deleted
+     *
+     * @param userId The user ID the tokens are stored under
+     */
+    public void invalidate(String userId) {
+        cache.invalidate(userId);
+    }
+}
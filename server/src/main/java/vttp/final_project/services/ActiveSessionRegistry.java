@@ -0,0 +1,134 @@
+package vttp.final_project.services;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import jakarta.servlet.http.HttpSessionEvent;
+import jakarta.servlet.http.HttpSessionListener;
+
+/**
+ * Tracks live sessions across all nodes in a Redis hash (session ID -> user ID, empty
+ * until the user logs in), plus a set of session IDs per logged-in user so a user's
+ * sessions can be counted without reading the whole hash. Session events come from
+ * Spring Session and reach every node, so the updates are written to be idempotent.
+ */
+@Component
+public class ActiveSessionRegistry implements HttpSessionListener {
+
+    private static final Logger logger = LoggerFactory.getLogger(ActiveSessionRegistry.class);
+
+    private static final String ACTIVE_SESSIONS_KEY = "active_sessions";
+    private static final String USER_SESSIONS_KEY_PREFIX = "active_sessions:user:";
+
+    // Where Spring Session keeps session hashes, used to prune entries whose expiry event was missed
+    @Value("${spring.session.redis.namespace:spring:session}")
+    private String sessionNamespace;
+
+    @Autowired
+    private StringRedisTemplate redisTemplate;
+
+    /**
+     * Records that a session now belongs to an authenticated user
+     *
+     * @param sessionId The HTTP session ID
+     * @param userId The user ID the Spotify tokens are stored under
+     */
+    public void register(String sessionId, String userId) {
+        // The session may have been logged in as another user before
+        Object previousUserId = redisTemplate.opsForHash().get(ACTIVE_SESSIONS_KEY, sessionId);
+        redisTemplate.opsForHash().put(ACTIVE_SESSIONS_KEY, sessionId, userId);
+        if (previousUserId != null && !previousUserId.toString().isEmpty() && !userId.equals(previousUserId.toString())) {
+            redisTemplate.opsForSet().remove(USER_SESSIONS_KEY_PREFIX + previousUserId, sessionId);
+        }
+        redisTemplate.opsForSet().add(USER_SESSIONS_KEY_PREFIX + userId, sessionId);
+    }
+
+    /**
+     * @return User IDs with at least one live session on any node
+     */
+    public Set<String> getActiveUserIds() {
+        return redisTemplate.opsForHash().values(ACTIVE_SESSIONS_KEY).stream()
+                .map(Object::toString)
+                .filter(userId -> !userId.isEmpty())
+                .collect(Collectors.toSet());
+    }
+
+    /**
+     * Whether a user is logged in through any session other than the given one,
+     * e.g. on another device
+     *
+     * @param userId The user ID the Spotify tokens are stored under
+     * @param sessionId The session to leave out
+     */
+    public boolean hasOtherSessions(String userId, String sessionId) {
+        String userSessionsKey = USER_SESSIONS_KEY_PREFIX + userId;
+        Long sessions = redisTemplate.opsForSet().size(userSessionsKey);
+        if (sessions == null || sessions == 0) {
+            return false;
+        }
+        boolean current = Boolean.TRUE.equals(redisTemplate.opsForSet().isMember(userSessionsKey, sessionId));
+        return sessions - (current ? 1 : 0) > 0;
+    }
+
+    /**
+     * @return Number of live sessions on all nodes, logged in or not
+     */
+    public long getActiveSessionCount() {
+        Long count = redisTemplate.opsForHash().size(ACTIVE_SESSIONS_KEY);
+        return count != null ? count : 0;
+    }
+
+    @Override
+    public void sessionCreated(HttpSessionEvent se) {
+        redisTemplate.opsForHash().putIfAbsent(ACTIVE_SESSIONS_KEY, se.getSession().getId(), "");
+    }
+
+    @Override
+    public void sessionDestroyed(HttpSessionEvent se) {
+        remove(se.getSession().getId());
+    }
+
+    private void remove(Object sessionId) {
+        Object userId = redisTemplate.opsForHash().get(ACTIVE_SESSIONS_KEY, sessionId);
+        redisTemplate.opsForHash().delete(ACTIVE_SESSIONS_KEY, sessionId);
+        if (userId != null && !userId.toString().isEmpty()) {
+            redisTemplate.opsForSet().remove(USER_SESSIONS_KEY_PREFIX + userId, sessionId);
+        }
+    }
+
+    /**
+     * Drops entries for sessions that no longer exist, in case every node was down
+     * when their expiry event fired. Live logged-in sessions are re-added to their
+     * user's set, which also fills the sets in for sessions registered before they existed.
+     */
+    @Scheduled(fixedDelayString = "${app.sessions.prune-interval:600000}")
+    public void pruneExpiredSessions() {
+        Map<Object, Object> sessions = Map.copyOf(redisTemplate.opsForHash().entries(ACTIVE_SESSIONS_KEY));
+        int pruned = 0;
+
+        for (Map.Entry<Object, Object> session : sessions.entrySet()) {
+            Object sessionId = session.getKey();
+            String userId = session.getValue().toString();
+
+            if (!Boolean.TRUE.equals(redisTemplate.hasKey(sessionNamespace + ":sessions:" + sessionId))) {
+                remove(sessionId);
+                pruned++;
+            } else if (!userId.isEmpty()) {
+                redisTemplate.opsForSet().add(USER_SESSIONS_KEY_PREFIX + userId, sessionId.toString());
+            }
+        }
+
+        if (pruned > 0) {
+            logger.info("Pruned {} expired sessions from the active session registry", pruned);
+        }
+    }
+}
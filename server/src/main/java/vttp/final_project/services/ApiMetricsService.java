@@ -3,7 +3,6 @@ package vttp.final_project.services;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicInteger;
 
 import org.springframework.stereotype.Service;
 
@@ -11,22 +10,22 @@ import io.micrometer.core.instrument.Counter;
 import io.micrometer.core.instrument.Gauge;
 import io.micrometer.core.instrument.MeterRegistry;
 import io.micrometer.core.instrument.Timer;
-import jakarta.servlet.http.HttpSessionEvent;
-import jakarta.servlet.http.HttpSessionListener;
 
 @Service
-public class ApiMetricsService implements HttpSessionListener {
+public class ApiMetricsService {
     
     private final MeterRegistry meterRegistry;
+    private final ActiveSessionRegistry activeSessionRegistry;
     private final Map<String, Counter> apiCounters = new ConcurrentHashMap<>();
-    private final AtomicInteger activeSessions = new AtomicInteger(0);
+    private final Map<String, Counter> cacheCounters = new ConcurrentHashMap<>();
     private final Timer geminiResponseTimer;
     
-    public ApiMetricsService(MeterRegistry meterRegistry) {
+    public ApiMetricsService(MeterRegistry meterRegistry, ActiveSessionRegistry activeSessionRegistry) {
         this.meterRegistry = meterRegistry;
+        this.activeSessionRegistry = activeSessionRegistry;
         
-        // Register the gauge for active sessions
-        Gauge.builder("app.sessions.active", activeSessions, AtomicInteger::get)
+        // Register the gauge for active sessions, read from Redis so every node reports the cluster-wide count
+        Gauge.builder("app.sessions.active", activeSessionRegistry, ActiveSessionRegistry::getActiveSessionCount)
             .description("Number of active user sessions")
             .register(meterRegistry);
             
@@ -49,6 +48,21 @@ public class ApiMetricsService implements HttpSessionListener {
         ).increment();
     }
     
+    /**
+     * Increment counter for a cache lookup
+     * @param cache The cache being read (e.g. preview_urls)
+     * @param result The lookup result (hit, miss, negative_hit)
+     */
+    public void incrementCacheCounter(String cache, String result) {
+        cacheCounters.computeIfAbsent(cache + ":" + result, key ->
+            Counter.builder("app.cache.requests")
+                .description("Number of cache lookups by result")
+                .tag("cache", cache)
+                .tag("result", result)
+                .register(meterRegistry)
+        ).increment();
+    }
+    
     /**
      * Record the time taken for a Gemini API call
      * @param timeMs Time in milliseconds
@@ -65,21 +79,11 @@ public class ApiMetricsService implements HttpSessionListener {
         return geminiResponseTimer;
     }
     
-    @Override
-    public void sessionCreated(HttpSessionEvent se) {
-        activeSessions.incrementAndGet();
-    }
-    
-    @Override
-    public void sessionDestroyed(HttpSessionEvent se) {
-        activeSessions.decrementAndGet();
-    }
-    
     /**
-     * Get the current number of active sessions
+     * Get the current number of active sessions across all nodes
      * @return The count of active sessions
      */
-    public int getActiveSessionCount() {
-        return activeSessions.get();
+    public long getActiveSessionCount() {
+        return activeSessionRegistry.getActiveSessionCount();
     }
 }
\ No newline at end of file
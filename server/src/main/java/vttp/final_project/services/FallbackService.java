@@ -7,8 +7,11 @@ import java.util.Map;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.context.annotation.Lazy;
 import org.springframework.stereotype.Service;
 
+// Only needed once Gemini fails, so it isn't created at startup
+@Lazy
 @Service
 public class FallbackService {
 
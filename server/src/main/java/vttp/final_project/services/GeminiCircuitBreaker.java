@@ -0,0 +1,204 @@
+package vttp.final_project.services;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+
+/**
+ * Circuit breaker for Gemini API calls. Outcomes of the most recent calls are kept in a
+ * count-based window, and once the failure rate crosses the threshold the breaker opens
+ * so callers go straight to the fallback recommendations. After the open duration a single
+ * probe call is let through (half-open) and its outcome closes or reopens the breaker.
+ *
+ * Each permitted call gets a Permission and reports its outcome with it. Outcomes of calls
+ * permitted before the last state change are ignored, so a slow call that started while
+ * closed cannot close the breaker or end the half-open probe.
+ *
+ * The state is exported as app.gemini.circuit.state (0 = closed, 1 = open, 2 = half-open).
+ */
+@Service
+public class GeminiCircuitBreaker {
+
+    private static final Logger logger = LoggerFactory.getLogger(GeminiCircuitBreaker.class);
+
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    /**
+     * Handed out for each permitted call and passed back with its outcome
+     */
+    public static final class Permission {
+        private final long generation;
+        private final boolean probe;
+
+        private Permission(long generation, boolean probe) {
+            this.generation = generation;
+            this.probe = probe;
+        }
+    }
+
+    // Failure rate in percent at which the breaker opens
+    @Value("${app.gemini.circuit-breaker.failure-rate-threshold:50}")
+    private int failureRateThreshold;
+
+    // Number of recent calls the failure rate is computed over
+    @Value("${app.gemini.circuit-breaker.window-size:20}")
+    private int windowSize;
+
+    // Calls needed in the window before the failure rate is evaluated
+    @Value("${app.gemini.circuit-breaker.minimum-calls:10}")
+    private int minimumCalls;
+
+    // How long the breaker stays open before letting a probe through, in milliseconds
+    @Value("${app.gemini.circuit-breaker.open-duration:30000}")
+    private long openDurationMs;
+
+    private State state = State.CLOSED;
+    private boolean[] outcomes;
+    private int outcomeIndex;
+    private int recordedCalls;
+    private int failedCalls;
+    private long openedAt;
+    private boolean probeInFlight;
+    // Bumped on every state change, outcomes of permissions from older generations are dropped
+    private long generation;
+
+    private final MeterRegistry meterRegistry;
+
+    public GeminiCircuitBreaker(MeterRegistry meterRegistry) {
+        this.meterRegistry = meterRegistry;
+    }
+
+    // Registered once constructed, the gauge keeps a reference to this breaker
+    @PostConstruct
+    public void registerStateGauge() {
+        Gauge.builder("app.gemini.circuit.state", this, breaker -> breaker.getState().ordinal())
+            .description("State of the Gemini circuit breaker (0 = closed, 1 = open, 2 = half-open)")
+            .register(meterRegistry);
+    }
+
+    /**
+     * Asks whether a Gemini call may be made now. Every permitted call must be followed
+     * by recordSuccess or recordFailure with the returned permission.
+     *
+     * @return The permission for the call, or null if the caller should use the fallback
+     */
+    public synchronized Permission tryAcquirePermission() {
+        moveToHalfOpenIfDue();
+
+        switch (state) {
+            case CLOSED:
+                return new Permission(generation, false);
+            case HALF_OPEN:
+                // Only one probe at a time while half-open
+                if (probeInFlight) {
+                    return null;
+                }
+                probeInFlight = true;
+                return new Permission(generation, true);
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Records a call that reached Gemini and got a usable answer
+     */
+    public synchronized void recordSuccess(Permission permission) {
+        if (!isCurrent(permission)) {
+            return;
+        }
+        if (permission.probe) {
+            probeInFlight = false;
+            transitionTo(State.CLOSED);
+            return;
+        }
+        recordOutcome(false);
+    }
+
+    /**
+     * Records a call that failed because of Gemini (timeouts, 5xx, 429)
+     */
+    public synchronized void recordFailure(Permission permission) {
+        if (!isCurrent(permission)) {
+            return;
+        }
+        if (permission.probe) {
+            probeInFlight = false;
+            transitionTo(State.OPEN);
+            return;
+        }
+        recordOutcome(true);
+
+        if (recordedCalls >= minimumCalls && failedCalls * 100 >= failureRateThreshold * recordedCalls) {
+            transitionTo(State.OPEN);
+        }
+    }
+
+    public synchronized State getState() {
+        // Keeps the gauge and other readers from seeing OPEN after the open duration has passed
+        moveToHalfOpenIfDue();
+        return state;
+    }
+
+    private void moveToHalfOpenIfDue() {
+        if (state == State.OPEN && System.currentTimeMillis() - openedAt >= openDurationMs) {
+            transitionTo(State.HALF_OPEN);
+        }
+    }
+
+    /**
+     * A permission only counts in the state it was handed out in: closed-state calls
+     * while still closed and the probe while still half-open
+     */
+    private boolean isCurrent(Permission permission) {
+        if (permission == null || permission.generation != generation) {
+            return false;
+        }
+        return permission.probe ? state == State.HALF_OPEN : state == State.CLOSED;
+    }
+
+    private void recordOutcome(boolean failed) {
+        if (outcomes == null) {
+            outcomes = new boolean[windowSize];
+        }
+
+        // Overwrite the oldest outcome once the window is full
+        if (recordedCalls == outcomes.length) {
+            if (outcomes[outcomeIndex]) {
+                failedCalls--;
+            }
+        } else {
+            recordedCalls++;
+        }
+
+        outcomes[outcomeIndex] = failed;
+        if (failed) {
+            failedCalls++;
+        }
+        outcomeIndex = (outcomeIndex + 1) % outcomes.length;
+    }
+
+    private void transitionTo(State newState) {
+        logger.warn("Gemini circuit breaker {} -> {} ({} of the last {} calls failed)",
+                state, newState, failedCalls, recordedCalls);
+
+        state = newState;
+        generation++;
+
+        if (newState == State.OPEN) {
+            openedAt = System.currentTimeMillis();
+        }
+
+        // Start from a clean window whenever the breaker closes or reopens
+        outcomeIndex = 0;
+        recordedCalls = 0;
+        failedCalls = 0;
+    }
+}
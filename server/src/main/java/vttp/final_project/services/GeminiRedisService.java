@@ -1,22 +1,37 @@
 package vttp.final_project.services;
 
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataAccessException;
+import org.springframework.data.redis.core.Cursor;
 import org.springframework.data.redis.core.HashOperations;
+import org.springframework.data.redis.core.RedisOperations;
 import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.ScanOptions;
+import org.springframework.data.redis.core.SessionCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.core.script.RedisScript;
 import org.springframework.stereotype.Service;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.ObjectMapper;
 
+import jakarta.annotation.PreDestroy;
+
 @Service
 public class GeminiRedisService {
     
@@ -24,12 +39,30 @@ public class GeminiRedisService {
     
     // Redis key prefixes
     private static final String RECOMMENDATIONS_KEY_PREFIX = "recommendations:";
+    private static final String RECOMMENDATIONS_LIST_KEY_PREFIX = "recommendations:list:";
     private static final String CUSTOM_PROMPT_KEY_PREFIX = "custom_prompt:";
+    private static final String GENERATION_LEASE_KEY_PREFIX = "generation_lease:";
+    // When the latest batch was stored, taken by the first cache hit after it
+    private static final String GENERATED_AT_KEY_PREFIX = "recommendations:generated_at:";
+    
+    // Deletes the lease only if it still belongs to the caller
+    private static final RedisScript<Long> RELEASE_LEASE_SCRIPT = new DefaultRedisScript<>(
+            "if redis.call('get', KEYS[1]) == ARGV[1] then return redis.call('del', KEYS[1]) else return 0 end",
+            Long.class);
+    
+    // Extends the lease only if it still belongs to the caller
+    private static final RedisScript<Long> RENEW_LEASE_SCRIPT = new DefaultRedisScript<>(
+            "if redis.call('get', KEYS[1]) == ARGV[1] then return redis.call('pexpire', KEYS[1], ARGV[2]) else return 0 end",
+            Long.class);
     
-    // Hash keys
+    // Hash keys (recommendations hash is the legacy single-blob layout, read only for migration)
     private static final String RECOMMENDATIONS_HASH_KEY = "recommendations_data";
     private static final String CUSTOM_PROMPT_HASH_KEY = "custom_prompt_data";
     
+    // Keys requested per SCAN call and keys per UNLINK when sweeping caches
+    private static final int SWEEP_SCAN_COUNT = 1000;
+    private static final int SWEEP_BATCH_SIZE = 500;
+    
     // Default TTL for cache entries (24 hours)
     @Value("${app.cache.recommendations.ttl:86400}")
     private long recommendationsTtl;
@@ -40,46 +73,177 @@ public class GeminiRedisService {
     @Autowired
     private ObjectMapper objectMapper;
     
+    // Generation leases are plain strings so the lease scripts can compare tokens and take a TTL argument
+    @Autowired
+    private StringRedisTemplate stringRedisTemplate;
+    
+    // Cache sweeps run one at a time off the request thread
+    private final ExecutorService sweepExecutor = Executors.newSingleThreadExecutor();
+    
     /**
-     * Stores recommendations in Redis cache
+     * Replaces the cached recommendations for a playlist
      * 
      * @param playlistId The playlist ID or cache key
      * @param recommendations The list of recommendations to cache
      */
     public void cacheRecommendations(String playlistId, List<Map<String, String>> recommendations) {
+        replaceList(playlistId, recommendations, true);
+        
+        logger.info("Cached {} recommendations for playlist {}", 
+                recommendations.size(), playlistId);
+    }
+    
+    /**
+     * Replaces the cached list in one transaction
+     * 
+     * @param generated Whether the list was just generated, which starts the time-to-first-hit
+     *     measurement. False for lists that were only moved from the legacy layout.
+     */
+    private void replaceList(String playlistId, List<Map<String, String>> recommendations, boolean generated) {
+        String redisKey = RECOMMENDATIONS_LIST_KEY_PREFIX + playlistId;
+        List<Object> items = serializeRecommendations(recommendations);
+        
+        executeInTransaction(operations -> {
+            operations.delete(redisKey);
+            if (!items.isEmpty()) {
+                operations.opsForList().rightPushAll(redisKey, items);
+                operations.expire(redisKey, recommendationsTtl, TimeUnit.SECONDS);
+                if (generated) {
+                    markGenerated(operations, playlistId);
+                }
+            }
+        });
+    }
+    
+    /**
+     * Appends a batch of recommendations to the end of the cached list in one transaction
+     * 
+     * @param playlistId The playlist ID or cache key
+     * @param recommendations The new recommendations to append
+     */
+    public void appendRecommendations(String playlistId, List<Map<String, String>> recommendations) {
+        if (recommendations.isEmpty()) {
+            return;
+        }
+        
+        String redisKey = RECOMMENDATIONS_LIST_KEY_PREFIX + playlistId;
+        List<Object> items = serializeRecommendations(recommendations);
+        
+        executeInTransaction(operations -> {
+            operations.opsForList().rightPushAll(redisKey, items);
+            operations.expire(redisKey, recommendationsTtl, TimeUnit.SECONDS);
+            markGenerated(operations, playlistId);
+        });
+        
+        logger.info("Appended {} recommendations for playlist {}", 
+                recommendations.size(), playlistId);
+    }
+    
+    private void markGenerated(RedisOperations<String, Object> operations, String playlistId) {
+        operations.opsForValue().set(GENERATED_AT_KEY_PREFIX + playlistId,
+                String.valueOf(System.currentTimeMillis()), recommendationsTtl, TimeUnit.SECONDS);
+    }
+    
+    /**
+     * Returns and removes the time the latest batch for a playlist was stored, so only
+     * the first cache hit after a generation sees it
+     * 
+     * @param playlistId The playlist ID or cache key
+     * @return Epoch milliseconds the batch was stored at, or null if already taken
+     */
+    public Long takeGeneratedAt(String playlistId) {
+        Object generatedAt = redisTemplate.opsForValue().getAndDelete(GENERATED_AT_KEY_PREFIX + playlistId);
+        if (generatedAt == null) {
+            return null;
+        }
+        
         try {
-            String recommendationsJson = objectMapper.writeValueAsString(recommendations);
-            String redisKey = RECOMMENDATIONS_KEY_PREFIX + playlistId;
-            
-            HashOperations<String, String, String> hashOps = redisTemplate.opsForHash();
-            hashOps.put(redisKey, RECOMMENDATIONS_HASH_KEY, recommendationsJson);
-            
-            // Set expiry for the Redis key
-            redisTemplate.expire(redisKey, recommendationsTtl, TimeUnit.SECONDS);
-            
-            logger.info("Cached {} recommendations for playlist {}", 
-                    recommendations.size(), playlistId);
-            
-        } catch (JsonProcessingException e) {
-            logger.error("Error serializing recommendations for caching", e);
+            return Long.parseLong(generatedAt.toString());
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+    
+    /**
+     * Returns the number of cached recommendations for a playlist
+     * 
+     * @param playlistId The playlist ID or cache key
+     * @return The number of cached recommendations, 0 if none are cached
+     */
+    public long getCachedRecommendationCount(String playlistId) {
+        String redisKey = RECOMMENDATIONS_LIST_KEY_PREFIX + playlistId;
+        Long count = redisTemplate.opsForList().size(redisKey);
+        
+        if (count == null || count == 0) {
+            count = migrateLegacyRecommendations(playlistId);
+        }
+        
+        if (count == 0) {
+            logger.info("No cached recommendations found for playlist {}", playlistId);
         }
+        
+        return count;
     }
     
     /**
-     * Retrieves cached recommendations from Redis
+     * Retrieves one page of cached recommendations from Redis
+     * 
+     * @param playlistId The playlist ID or cache key
+     * @param offset Index of the first recommendation to return
+     * @param limit Maximum number of recommendations to return
+     * @return The cached recommendations in the requested range, empty if out of range
+     */
+    public List<Map<String, String>> getCachedRecommendationsPage(String playlistId, int offset, int limit) {
+        if (limit <= 0) {
+            return new ArrayList<>();
+        }
+        
+        String redisKey = RECOMMENDATIONS_LIST_KEY_PREFIX + playlistId;
+        List<Object> items = redisTemplate.opsForList().range(redisKey, offset, (long) offset + limit - 1);
+        
+        List<Map<String, String>> recommendations = deserializeRecommendations(items);
+        
+        logger.info("Retrieved {} cached recommendations for playlist {} (offset {})", 
+                recommendations.size(), playlistId, offset);
+        
+        return recommendations;
+    }
+    
+    /**
+     * Retrieves all cached recommendations from Redis
      * 
      * @param playlistId The playlist ID or cache key
      * @return The cached recommendations, or null if not found
      */
     public List<Map<String, String>> getCachedRecommendations(String playlistId) {
-        String redisKey = RECOMMENDATIONS_KEY_PREFIX + playlistId;
-        HashOperations<String, String, String> hashOps = redisTemplate.opsForHash();
+        if (getCachedRecommendationCount(playlistId) == 0) {
+            return null;
+        }
+        
+        String redisKey = RECOMMENDATIONS_LIST_KEY_PREFIX + playlistId;
+        List<Object> items = redisTemplate.opsForList().range(redisKey, 0, -1);
         
-        String recommendationsJson = hashOps.get(redisKey, RECOMMENDATIONS_HASH_KEY);
+        List<Map<String, String>> recommendations = deserializeRecommendations(items);
         
+        logger.info("Retrieved {} cached recommendations for playlist {}", 
+                recommendations.size(), playlistId);
+        
+        return recommendations;
+    }
+    
+    /**
+     * Moves recommendations stored in the old single JSON hash field into the list layout
+     * 
+     * @param playlistId The playlist ID or cache key
+     * @return The number of migrated recommendations, 0 if there was nothing to migrate
+     */
+    private long migrateLegacyRecommendations(String playlistId) {
+        String legacyKey = RECOMMENDATIONS_KEY_PREFIX + playlistId;
+        HashOperations<String, String, String> hashOps = redisTemplate.opsForHash();
+        
+        String recommendationsJson = hashOps.get(legacyKey, RECOMMENDATIONS_HASH_KEY);
         if (recommendationsJson == null) {
-            logger.info("No cached recommendations found for playlist {}", playlistId);
-            return null;
+            return 0;
         }
         
         try {
@@ -88,16 +252,68 @@ public class GeminiRedisService {
                     new TypeReference<List<Map<String, String>>>() {}
             );
             
-            logger.info("Retrieved {} cached recommendations for playlist {}", 
+            // Not a new generation, so no generated_at marker (and no size sample from GeminiService)
+            replaceList(playlistId, recommendations, false);
+            redisTemplate.delete(legacyKey);
+            
+            logger.info("Migrated {} legacy cached recommendations for playlist {}", 
                     recommendations.size(), playlistId);
             
-            return recommendations;
+            return recommendations.size();
         } catch (JsonProcessingException e) {
-            logger.error("Error deserializing cached recommendations", e);
-            return null;
+            logger.error("Error deserializing legacy cached recommendations, discarding them", e);
+            redisTemplate.delete(legacyKey);
+            return 0;
         }
     }
     
+    private List<Object> serializeRecommendations(List<Map<String, String>> recommendations) {
+        List<Object> items = new ArrayList<>(recommendations.size());
+        for (Map<String, String> recommendation : recommendations) {
+            try {
+                items.add(objectMapper.writeValueAsString(recommendation));
+            } catch (JsonProcessingException e) {
+                logger.error("Error serializing recommendation for caching", e);
+            }
+        }
+        return items;
+    }
+    
+    private List<Map<String, String>> deserializeRecommendations(List<Object> items) {
+        List<Map<String, String>> recommendations = new ArrayList<>();
+        if (items == null) {
+            return recommendations;
+        }
+        
+        for (Object item : items) {
+            try {
+                recommendations.add(objectMapper.readValue(
+                        (String) item,
+                        new TypeReference<Map<String, String>>() {}
+                ));
+            } catch (JsonProcessingException e) {
+                logger.error("Error deserializing cached recommendation", e);
+            }
+        }
+        return recommendations;
+    }
+    
+    /**
+     * Runs the given Redis commands inside MULTI/EXEC so they are applied atomically
+     */
+    private void executeInTransaction(Consumer<RedisOperations<String, Object>> commands) {
+        redisTemplate.execute(new SessionCallback<List<Object>>() {
+            @Override
+            @SuppressWarnings("unchecked")
+            public <K, V> List<Object> execute(RedisOperations<K, V> operations) throws DataAccessException {
+                RedisOperations<String, Object> stringOperations = (RedisOperations<String, Object>) operations;
+                stringOperations.multi();
+                commands.accept(stringOperations);
+                return stringOperations.exec();
+            }
+        });
+    }
+    
     /**
      * Stores a custom prompt for a playlist in Redis
      * 
@@ -143,12 +359,16 @@ public class GeminiRedisService {
      * Removes cached recommendations for a playlist
      * 
      * @param playlistId The playlist ID or cache key
+     * @return true if anything was cached
      */
-    public void clearCachedRecommendations(String playlistId) {
-        String redisKey = RECOMMENDATIONS_KEY_PREFIX + playlistId;
-        redisTemplate.delete(redisKey);
+    public boolean clearCachedRecommendations(String playlistId) {
+        Long deleted = redisTemplate.delete(List.of(
+                RECOMMENDATIONS_LIST_KEY_PREFIX + playlistId,
+                RECOMMENDATIONS_KEY_PREFIX + playlistId,
+                GENERATED_AT_KEY_PREFIX + playlistId));
         
         logger.info("Cleared cached recommendations for playlist {}", playlistId);
+        return deleted != null && deleted > 0;
     }
     
     /**
@@ -174,13 +394,130 @@ public class GeminiRedisService {
     }
     
     /**
-     * Clears all cached recommendations and custom prompts
+     * Tries to take the cross-node lease for generating recommendations for a cache key
+     * 
+     * @param playlistId The playlist ID or cache key
+     * @param token Unique token identifying the lease holder
+     * @param ttlMs Lease expiry in milliseconds, in case the holder dies
+     * @return true if the lease was acquired
      */
-    public void clearAllCaches() {
-        // Find all keys with prefixes
-        redisTemplate.delete(redisTemplate.keys(RECOMMENDATIONS_KEY_PREFIX + "*"));
-        redisTemplate.delete(redisTemplate.keys(CUSTOM_PROMPT_KEY_PREFIX + "*"));
+    public boolean tryAcquireGenerationLease(String playlistId, String token, long ttlMs) {
+        Boolean acquired = stringRedisTemplate.opsForValue()
+                .setIfAbsent(GENERATION_LEASE_KEY_PREFIX + playlistId, token, Duration.ofMillis(ttlMs));
+        return Boolean.TRUE.equals(acquired);
+    }
+    
+    /**
+     * Extends the generation lease, only if it is still held with the given token
+     * 
+     * @param playlistId The playlist ID or cache key
+     * @param token The token used to acquire the lease
+     * @param ttlMs New lease expiry in milliseconds
+     * @return true if the lease was still held and has been extended
+     */
+    public boolean renewGenerationLease(String playlistId, String token, long ttlMs) {
+        Long renewed = stringRedisTemplate.execute(RENEW_LEASE_SCRIPT,
+                List.of(GENERATION_LEASE_KEY_PREFIX + playlistId), token, String.valueOf(ttlMs));
+        return renewed != null && renewed == 1;
+    }
+    
+    /**
+     * Releases the generation lease, only if it is still held with the given token
+     * 
+     * @param playlistId The playlist ID or cache key
+     * @param token The token used to acquire the lease
+     */
+    public void releaseGenerationLease(String playlistId, String token) {
+        stringRedisTemplate.execute(RELEASE_LEASE_SCRIPT, List.of(GENERATION_LEASE_KEY_PREFIX + playlistId), token);
+    }
+    
+    /**
+     * Clears all cached recommendations and custom prompts in the background
+     * using incremental SCAN and non-blocking UNLINK
+     * 
+     * @return Future completed with the number of deleted keys
+     */
+    public CompletableFuture<Long> clearAllCaches() {
+        return sweepInBackground("all caches",
+                RECOMMENDATIONS_KEY_PREFIX + "*",
+                CUSTOM_PROMPT_KEY_PREFIX + "*");
+    }
+    
+    /**
+     * Clears the cached top tracks recommendations and custom prompts of one user in the background
+     * 
+     * @param userId The user whose cache namespace should be cleared
+     * @return Future completed with the number of deleted keys
+     */
+    public CompletableFuture<Long> clearUserCaches(String userId) {
+        String userPattern = escapeGlob(userId) + "_top_tracks_*";
+        return sweepInBackground("user " + userId,
+                RECOMMENDATIONS_KEY_PREFIX + userPattern,
+                RECOMMENDATIONS_LIST_KEY_PREFIX + userPattern,
+                GENERATED_AT_KEY_PREFIX + userPattern,
+                CUSTOM_PROMPT_KEY_PREFIX + userPattern);
+    }
+    
+    @PreDestroy
+    public void shutdownSweepExecutor() {
+        sweepExecutor.shutdownNow();
+    }
+    
+    private CompletableFuture<Long> sweepInBackground(String scope, String... patterns) {
+        return CompletableFuture.supplyAsync(() -> {
+            long deleted = 0;
+            for (String pattern : patterns) {
+                deleted += sweepKeys(pattern);
+            }
+            logger.info("Cleared {} cached keys for {}", deleted, scope);
+            return deleted;
+        }, sweepExecutor);
+    }
+    
+    /**
+     * Walks the keyspace with SCAN and unlinks matching keys in batches,
+     * so Redis is never blocked for longer than one batch
+     * 
+     * @param pattern The key pattern to match
+     * @return The number of deleted keys
+     */
+    private long sweepKeys(String pattern) {
+        ScanOptions options = ScanOptions.scanOptions()
+                .match(pattern)
+                .count(SWEEP_SCAN_COUNT)
+                .build();
         
-        logger.info("Cleared all recommendation and custom prompt caches");
+        long scanned = 0;
+        long deleted = 0;
+        List<String> batch = new ArrayList<>(SWEEP_BATCH_SIZE);
+        
+        try (Cursor<String> cursor = redisTemplate.scan(options)) {
+            while (cursor.hasNext()) {
+                batch.add(cursor.next());
+                scanned++;
+                
+                if (batch.size() >= SWEEP_BATCH_SIZE) {
+                    deleted += unlinkBatch(batch);
+                    logger.info("Cache sweep {}: {} keys matched, {} unlinked so far", pattern, scanned, deleted);
+                }
+            }
+            
+            if (!batch.isEmpty()) {
+                deleted += unlinkBatch(batch);
+            }
+        }
+        
+        logger.info("Cache sweep {} finished: {} keys matched, {} unlinked", pattern, scanned, deleted);
+        return deleted;
+    }
+    
+    private long unlinkBatch(List<String> batch) {
+        Long unlinked = redisTemplate.unlink(batch);
+        batch.clear();
+        return unlinked != null ? unlinked : 0;
+    }
+    
+    private String escapeGlob(String value) {
+        return value.replaceAll("([*?\\[\\]\\\\])", "\\\\$1");
     }
 }
\ No newline at end of file
@@ -0,0 +1,607 @@
+package vttp.final_project.services;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonLocation;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.async.ByteArrayFeeder;
+
+/**
+ * Turns a generateContent response from Gemini into song recommendations in one pass.
+ *
+ * The envelope is read with Jackson's streaming parser straight to
+ * candidates[0].content.parts[0].text and only that string is kept. The text is then read
+ * as a JSON array of objects with a song_title. If the text isn't a valid array (code
+ * fences, cut off at the token limit, a plain list of lines) the
+ * titles are recovered from whatever song_title pairs are complete, or else from the text
+ * line by line. A response body that ends early still yields the titles in the part of
+ * the text that arrived.
+ *
+ * Streamed responses (streamGenerateContent) go through a SongTitleStream, which reports
+ * each title as soon as it is complete.
+ */
+@Component
+public class GeminiResponseParser {
+
+    private static final Logger logger = LoggerFactory.getLogger(GeminiResponseParser.class);
+
+    private static final String SONG_TITLE = "song_title";
+    private static final String DEFAULT_TITLE = "Unknown Title";
+
+    private final JsonFactory jsonFactory = new JsonFactory();
+
+    /**
+     * Parses song recommendations from a Gemini response body as it is read. Stops
+     * reading once the text has been found, callers should drain the stream if they
+     * want the connection reused.
+     *
+     * @param body The response body
+     * @return List of song recommendations
+     * @throws IOException if the body can't be read, content that isn't the expected JSON never throws
+     */
+    public List<Map<String, String>> parseSongRecommendations(InputStream body) throws IOException {
+        int first = body.read();
+        while (first == ' ' || first == '\n' || first == '\r' || first == '\t') {
+            first = body.read();
+        }
+
+        InputStream rest = new SequenceInputStream(new ByteArrayInputStream(new byte[] { (byte) first }), body);
+        if (first != '{') {
+            // Not a generateContent envelope, treat the whole body as the model's text
+            logger.warn("Gemini response is not a JSON object, parsing it as plain text");
+            return parseText(first < 0 ? "" : new String(rest.readAllBytes(), StandardCharsets.UTF_8));
+        }
+
+        RecordingInputStream recording = new RecordingInputStream(rest);
+        try (JsonParser parser = jsonFactory.createParser(recording)) {
+            return parseEnvelope(parser, recording);
+        }
+    }
+
+    /**
+     * Parses song recommendations from a Gemini response body already held in memory
+     *
+     * @param body The response body
+     * @return List of song recommendations
+     */
+    public List<Map<String, String>> parseSongRecommendations(String body) {
+        if (body == null) {
+            logger.warn("Received null response body from Gemini API");
+            return new ArrayList<>();
+        }
+
+        String trimmed = body.stripLeading();
+        if (!trimmed.startsWith("{")) {
+            logger.warn("Gemini response is not a JSON object, parsing it as plain text");
+            return parseText(body);
+        }
+
+        try (JsonParser parser = jsonFactory.createParser(trimmed)) {
+            return parseEnvelope(parser, textStart -> trimmed.substring((int) textStart.getCharOffset() + 1));
+        } catch (IOException e) {
+            // Only a stream can fail to be read, a String never does
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Starts reading a streamed response. Each chunk's text is appended and song titles
+     * are reported as soon as their closing quote arrives.
+     *
+     * @param onTitle Receives each song title once, in order
+     */
+    public SongTitleStream streamSongTitles(Consumer<String> onTitle) {
+        return new SongTitleStream(onTitle);
+    }
+
+    /**
+     * @param partialText Gives the raw rest of the body from the location of the text's
+     *     opening quote, used when the body ends inside the text
+     */
+    private List<Map<String, String>> parseEnvelope(JsonParser parser, PartialText partialText) throws IOException {
+        try {
+            if (!findText(parser)) {
+                logger.warn("No candidates[0].content.parts[0].text in Gemini response");
+                return new ArrayList<>();
+            }
+            if (partialText instanceof RecordingInputStream recording) {
+                // Nothing before the text is needed any more
+                recording.keepFrom(parser.currentTokenLocation().getByteOffset());
+            }
+            return parseText(parser.getText());
+        } catch (JsonProcessingException e) {
+            // Covers a body cut off inside the text, whether it just ends or ends in a stray newline
+            String text = recoverText(parser, partialText);
+            if (text == null || text.isEmpty()) {
+                logger.warn("Could not read Gemini response: {}", e.getOriginalMessage());
+                return new ArrayList<>();
+            }
+            logger.warn("Gemini response ended early, recovering from {} characters of text", text.length());
+            return parseText(text);
+        }
+    }
+
+    /**
+     * Walks the envelope to candidates[0].content.parts[0].text, leaving the parser on the
+     * text's token. The string itself is only decoded by getText.
+     *
+     * @return false if the envelope doesn't have the text
+     */
+    private boolean findText(JsonParser parser) throws IOException {
+        return parser.nextToken() == JsonToken.START_OBJECT
+                && enterMember(parser, "candidates") && enterFirstElement(parser)
+                && enterMember(parser, "content")
+                && enterMember(parser, "parts") && enterFirstElement(parser)
+                && enterMember(parser, "text")
+                && parser.currentToken() == JsonToken.VALUE_STRING;
+    }
+
+    /**
+     * Moves from the start of an object to the value of the named member, skipping the others
+     *
+     * @return false if the object has no such member
+     */
+    private boolean enterMember(JsonParser parser, String name) throws IOException {
+        if (parser.currentToken() != JsonToken.START_OBJECT) {
+            return false;
+        }
+
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            boolean found = name.equals(parser.currentName());
+            parser.nextToken();
+            if (found) {
+                return true;
+            }
+            parser.skipChildren();
+        }
+        return false;
+    }
+
+    /**
+     * Moves from the start of an array to its first element
+     *
+     * @return false if the value isn't an array or is empty
+     */
+    private boolean enterFirstElement(JsonParser parser) throws IOException {
+        if (parser.currentToken() != JsonToken.START_ARRAY) {
+            return false;
+        }
+        JsonToken first = parser.nextToken();
+        return first != null && first != JsonToken.END_ARRAY;
+    }
+
+    /**
+     * Decodes as much of the text string as arrived when the body ends inside it.
+     * Stops at the text's closing quote if the error came later in the string.
+     *
+     * @return The partial text, or null if reading didn't fail inside the text
+     */
+    private String recoverText(JsonParser parser, PartialText partialText) throws IOException {
+        if (parser.currentToken() != JsonToken.VALUE_STRING || !"text".equals(parser.currentName())) {
+            return null;
+        }
+
+        String raw = partialText.from(parser.currentTokenLocation());
+        if (raw == null) {
+            return null;
+        }
+
+        // Whitespace after the cut would be an unescaped control character inside the string
+        try (JsonParser stringParser = jsonFactory.createParser("\"" + trimIncompleteEscape(raw.stripTrailing()) + "\"")) {
+            stringParser.nextToken();
+            return stringParser.getText();
+        } catch (JsonProcessingException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Drops an escape sequence (or the partial character) the body was cut off in
+     */
+    private static String trimIncompleteEscape(String raw) {
+        if (raw.endsWith("�")) {
+            raw = raw.substring(0, raw.length() - 1);
+        }
+
+        int backslash = raw.lastIndexOf('\\');
+        if (backslash < 0) {
+            return raw;
+        }
+
+        // An even run of backslashes is complete escaped backslashes
+        int run = 0;
+        for (int i = backslash; i >= 0 && raw.charAt(i) == '\\'; i--) {
+            run++;
+        }
+        if (run % 2 == 0) {
+            return raw;
+        }
+
+        String escape = raw.substring(backslash + 1);
+        if (escape.isEmpty() || (escape.charAt(0) == 'u' && escape.length() < 5)) {
+            return raw.substring(0, backslash);
+        }
+        return raw;
+    }
+
+    private List<Map<String, String>> parseText(String text) {
+        int start = text.indexOf('[');
+        int end = text.lastIndexOf(']');
+
+        if (start >= 0 && end > start) {
+            List<Map<String, String>> recommendations = parseArray(text, start, end + 1);
+            if (recommendations != null) {
+                logger.debug("Parsed {} recommendations from JSON array", recommendations.size());
+                return recommendations;
+            }
+
+            logger.warn("Gemini text is not a valid JSON array, extracting song titles leniently");
+            return parseLeniently(text, start, end + 1);
+        }
+
+        return parseLeniently(text, 0, text.length());
+    }
+
+    /**
+     * Reads text[from, to) as a JSON array, taking song_title from every object in it
+     *
+     * @return The recommendations, or null if the range isn't a valid JSON array
+     */
+    private List<Map<String, String>> parseArray(String text, int from, int to) {
+        List<Map<String, String>> recommendations = new ArrayList<>();
+
+        try (JsonParser parser = jsonFactory.createParser(text.toCharArray(), from, to - from)) {
+            parser.nextToken();
+            for (JsonToken token = parser.nextToken(); token != JsonToken.END_ARRAY; token = parser.nextToken()) {
+                if (token == JsonToken.START_OBJECT) {
+                    recommendations.add(createRecommendation(readSongTitle(parser)));
+                } else {
+                    parser.skipChildren();
+                }
+            }
+
+            if (parser.nextToken() != null) {
+                return null;
+            }
+            return recommendations;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Reads one object and returns its song_title, the last one wins if there are several
+     *
+     * @return The title, or null if the object has no song_title string
+     */
+    private String readSongTitle(JsonParser parser) throws IOException {
+        String songTitle = null;
+
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            boolean isSongTitle = SONG_TITLE.equals(parser.currentName());
+            JsonToken value = parser.nextToken();
+            if (isSongTitle) {
+                songTitle = value == JsonToken.VALUE_STRING ? parser.getText() : null;
+            }
+            parser.skipChildren();
+        }
+        return songTitle;
+    }
+
+    /**
+     * Recovers titles from text that isn't a valid array: complete song_title string members
+     * anywhere in it, or failing that one title per line
+     */
+    private List<Map<String, String>> parseLeniently(String text, int from, int to) {
+        List<Map<String, String>> recommendations = extractSongTitlePairs(text, from, to);
+        if (!recommendations.isEmpty()) {
+            logger.info("Recovered {} recommendations from song_title pairs", recommendations.size());
+            return recommendations;
+        }
+
+        recommendations = extractLines(text, from, to);
+        logger.info("Recovered {} recommendations line by line", recommendations.size());
+        return recommendations;
+    }
+
+    /**
+     * Reads tokens until the JSON breaks, then picks up again at the next object, so
+     * the pairs before a cut or around stray text are all found
+     */
+    private List<Map<String, String>> extractSongTitlePairs(String text, int from, int to) {
+        List<Map<String, String>> recommendations = new ArrayList<>();
+        char[] chars = text.toCharArray();
+        int position = text.indexOf('{', from);
+
+        while (position >= 0 && position < to) {
+            JsonParser parser = null;
+            try {
+                parser = jsonFactory.createParser(chars, position, to - position);
+                boolean songTitleNext = false;
+                for (JsonToken token = parser.nextToken(); token != null; token = parser.nextToken()) {
+                    if (songTitleNext && token == JsonToken.VALUE_STRING && !parser.getText().isEmpty()) {
+                        recommendations.add(createRecommendation(parser.getText()));
+                    }
+                    songTitleNext = token == JsonToken.FIELD_NAME && SONG_TITLE.equals(parser.currentName());
+                }
+                break;
+            } catch (IOException e) {
+                // Not a complete pair, e.g. cut off in the middle of the title
+                int failedAt = position + (int) parser.currentLocation().getCharOffset();
+                position = text.indexOf('{', Math.max(failedAt, position + 1));
+            } finally {
+                closeQuietly(parser);
+            }
+        }
+
+        return recommendations;
+    }
+
+    private List<Map<String, String>> extractLines(String text, int from, int to) {
+        List<Map<String, String>> recommendations = new ArrayList<>();
+        int lineStart = from;
+
+        while (lineStart < to) {
+            int lineEnd = text.indexOf('\n', lineStart);
+            if (lineEnd < 0 || lineEnd > to) {
+                lineEnd = to;
+            }
+
+            String line = stripLine(text.substring(lineStart, lineEnd));
+            if (!line.isEmpty()) {
+                recommendations.add(createRecommendation(line));
+            }
+            lineStart = lineEnd + 1;
+        }
+
+        return recommendations;
+    }
+
+    /**
+     * Removes code fences, list numbering and bullets from a line
+     *
+     * @return The title on the line, or an empty string if there is none
+     */
+    private String stripLine(String line) {
+        line = line.trim();
+        if (line.startsWith("```")) {
+            line = line.substring(line.startsWith("```json") ? 7 : 3).trim();
+        }
+
+        if (line.isEmpty() || line.startsWith("{") || line.startsWith("[")
+                || line.startsWith("}") || line.startsWith("]")) {
+            return "";
+        }
+
+        // "12. Title"
+        int digits = 0;
+        while (digits < line.length() && Character.isDigit(line.charAt(digits))) {
+            digits++;
+        }
+        if (digits > 0 && digits < line.length() && line.charAt(digits) == '.') {
+            line = line.substring(digits + 1).stripLeading();
+        }
+
+        // "- Title"
+        if (line.startsWith("-")) {
+            line = line.substring(1).stripLeading();
+        }
+
+        return line.trim();
+    }
+
+    private Map<String, String> createRecommendation(String songTitle) {
+        Map<String, String> songInfo = new LinkedHashMap<>();
+        songInfo.put("song_title", songTitle != null ? songTitle : DEFAULT_TITLE);
+        // Artists aren't extracted, the empty placeholder keeps the shape callers expect
+        songInfo.put("artist", "");
+        return songInfo;
+    }
+
+    private static void closeQuietly(JsonParser parser) {
+        if (parser == null) {
+            return;
+        }
+        try {
+            parser.close();
+        } catch (IOException e) {
+            // Nothing to release for in-memory input
+        }
+    }
+
+    /**
+     * Reads the chunks of a streamed response. Each chunk is a complete generateContent
+     * envelope carrying the next piece of the text. The text from its first '[' on is fed
+     * to a non-blocking parser, so a song_title is reported as soon as its value is
+     * complete. If the text turns out not to be a JSON array, finish parses the whole
+     * text the lenient way and reports the titles that were not reported yet.
+     */
+    public final class SongTitleStream {
+        private final Consumer<String> onTitle;
+        private final StringBuilder text = new StringBuilder();
+        private final Set<String> reported = new HashSet<>();
+        private JsonParser textParser;
+        private boolean songTitleNext;
+        private boolean complete;
+        private boolean failed;
+
+        private SongTitleStream(Consumer<String> onTitle) {
+            this.onTitle = onTitle;
+        }
+
+        /**
+         * Adds one streamed chunk, unreadable chunks are skipped
+         *
+         * @param chunkJson The JSON of a single chunk
+         */
+        public void acceptChunk(String chunkJson) {
+            String chunkText;
+            try (JsonParser parser = jsonFactory.createParser(chunkJson)) {
+                chunkText = findText(parser) ? parser.getText() : null;
+            } catch (IOException e) {
+                logger.warn("Skipping unreadable Gemini stream chunk: {}", e.getMessage());
+                return;
+            }
+
+            if (chunkText == null || chunkText.isEmpty()) {
+                return;
+            }
+
+            int start = text.length();
+            text.append(chunkText);
+
+            if (textParser == null) {
+                int arrayStart = text.indexOf("[", start);
+                if (arrayStart < 0) {
+                    return;
+                }
+                start = arrayStart;
+            }
+            feed(text.substring(start));
+        }
+
+        /**
+         * Ends the stream, recovering titles from text the incremental parse couldn't read
+         */
+        public void finish() {
+            if (textParser != null && !failed && !complete) {
+                ((ByteArrayFeeder) textParser.getNonBlockingInputFeeder()).endOfInput();
+                readAvailableTokens();
+            }
+            closeQuietly(textParser);
+
+            if (!complete && text.length() > 0) {
+                parseText(text.toString()).forEach(recommendation -> report(recommendation.get(SONG_TITLE)));
+            }
+        }
+
+        private void feed(String piece) {
+            if (failed || complete) {
+                return;
+            }
+
+            try {
+                if (textParser == null) {
+                    textParser = jsonFactory.createNonBlockingByteArrayParser();
+                }
+                byte[] bytes = piece.getBytes(StandardCharsets.UTF_8);
+                ((ByteArrayFeeder) textParser.getNonBlockingInputFeeder()).feedInput(bytes, 0, bytes.length);
+            } catch (IOException e) {
+                failed = true;
+                return;
+            }
+            readAvailableTokens();
+        }
+
+        private void readAvailableTokens() {
+            try {
+                JsonToken token;
+                while ((token = textParser.nextToken()) != null && token != JsonToken.NOT_AVAILABLE) {
+                    if (songTitleNext && token == JsonToken.VALUE_STRING) {
+                        report(textParser.getText());
+                    }
+                    songTitleNext = token == JsonToken.FIELD_NAME && SONG_TITLE.equals(textParser.currentName());
+
+                    if (token == JsonToken.END_ARRAY && textParser.getParsingContext().inRoot()) {
+                        // Anything after the array is a closing code fence or commentary
+                        complete = true;
+                        return;
+                    }
+                }
+            } catch (IOException e) {
+                // Not a JSON array after all, finish falls back to the lenient parse
+                logger.debug("Streamed Gemini text is not a JSON array: {}", e.getMessage());
+                failed = true;
+            }
+        }
+
+        private void report(String title) {
+            if (title != null && !title.isEmpty() && !DEFAULT_TITLE.equals(title) && reported.add(title)) {
+                onTitle.accept(title);
+            }
+        }
+    }
+
+    @FunctionalInterface
+    private interface PartialText {
+        /**
+         * @return The raw body after the opening quote at textStart, or null if it wasn't kept
+         */
+        String from(JsonLocation textStart);
+    }
+
+    /**
+     * Keeps a copy of what is read through it, from the start of the text once that is
+     * known, so the text can still be recovered if the body ends inside it
+     */
+    private static final class RecordingInputStream extends FilterInputStream implements PartialText {
+        private ByteArrayOutputStream copy = new ByteArrayOutputStream();
+        // Offset in the body of the first byte in copy
+        private long copyStart;
+
+        RecordingInputStream(InputStream in) {
+            super(in);
+        }
+
+        void keepFrom(long offset) {
+            if (offset <= copyStart) {
+                return;
+            }
+            byte[] recorded = copy.toByteArray();
+            int skip = (int) Math.min(offset - copyStart, recorded.length);
+            copy = new ByteArrayOutputStream(Math.max(32, recorded.length - skip));
+            copy.write(recorded, skip, recorded.length - skip);
+            copyStart += skip;
+        }
+
+        @Override
+        public String from(JsonLocation textStart) {
+            long start = textStart.getByteOffset() + 1 - copyStart;
+            byte[] recorded = copy.toByteArray();
+            if (textStart.getByteOffset() < 0 || start < 0 || start > recorded.length) {
+                return null;
+            }
+            return new String(recorded, (int) start, recorded.length - (int) start, StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                copy.write(b);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int read = super.read(buffer, offset, length);
+            if (read > 0) {
+                copy.write(buffer, offset, read);
+            }
+            return read;
+        }
+
+        }
+}
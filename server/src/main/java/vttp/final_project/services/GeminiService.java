@@ -1,18 +1,42 @@
 package vttp.final_project.services;
 
-import java.io.StringReader;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Lazy;
 import org.springframework.http.HttpEntity;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpMethod;
@@ -20,18 +44,19 @@ import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Service;
+import org.springframework.util.StreamUtils;
+import org.springframework.web.client.HttpStatusCodeException;
 import org.springframework.web.client.RestTemplate;
 import org.springframework.web.util.UriComponentsBuilder;
 
 import io.micrometer.core.annotation.Timed;
 import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PreDestroy;
 import jakarta.json.Json;
-import jakarta.json.JsonArray;
 import jakarta.json.JsonArrayBuilder;
 import jakarta.json.JsonObject;
 import jakarta.json.JsonObjectBuilder;
-import jakarta.json.JsonReader;
-import jakarta.json.JsonValue;
+import vttp.final_project.services.GeminiResponseParser.SongTitleStream;
 
 @Service
 public class GeminiService {
@@ -39,7 +64,12 @@ public class GeminiService {
     @Value("${gemini.api-key}")
     private String geminiApiKey;
     
+    // Overridden to point at a local stand-in for load testing
+    @Value("${app.gemini.base-url:https://generativelanguage.googleapis.com}")
+    private String geminiBaseUrl;
+    
     @Autowired
+    @Lazy
     private FallbackService fallbackService;
 
     @Autowired
@@ -48,12 +78,52 @@ public class GeminiService {
     @Autowired
     private ApiMetricsService apiMetricsService;
     
+    @Autowired
+    private UpstreamMetricsService upstreamMetricsService;
+    
+    @Autowired
+    private RecommendationCacheMetricsService cacheMetricsService;
+    
+    @Autowired
+    private GeminiCircuitBreaker circuitBreaker;
+    
+    @Autowired
+    private GeminiResponseParser responseParser;
+    
     private static final int MAX_RETRIES = 3;
-    private static final long RETRY_DELAY_MS = 1000; // 1 second delay between retries
+    private static final long LEASE_POLL_INTERVAL_MS = 250;
+    
+    // Exponential backoff between retries, full jitter is applied to the capped delay
+    @Value("${app.gemini.retry.base-delay:250}")
+    private long retryBaseDelayMs;
+    
+    @Value("${app.gemini.retry.max-delay:2000}")
+    private long retryMaxDelayMs;
+    
+    // Longest Retry-After we are willing to wait for before using the fallback
+    @Value("${app.gemini.retry.max-retry-after:5000}")
+    private long maxRetryAfterMs;
+    
+    // Expiry of the generation lease for a cache key, renewed while the generation runs
+    @Value("${app.gemini.generation-lease-ttl:60000}")
+    private long generationLeaseTtlMs;
+    
+    // Longest a caller waits for someone else's generation before using the fallback
+    @Value("${app.gemini.generation-wait:20000}")
+    private long generationWaitMs;
+    
+    // Generations currently running in this JVM, keyed by generation key (cache key and prompt)
+    private final ConcurrentHashMap<String, CompletableFuture<Void>> inFlightGenerations = new ConcurrentHashMap<>();
+    
+    // Extends the leases of generations running on this node
+    private final ScheduledExecutorService leaseRenewalExecutor = Executors.newSingleThreadScheduledExecutor(
+            Thread.ofPlatform().name("gemini-lease-renewal").daemon().factory());
 
     private static final Logger logger = LoggerFactory.getLogger(GeminiService.class);
     
-    private RestTemplate restTemplate = new RestTemplate();
+    @Autowired
+    @Qualifier("geminiRestTemplate")
+    private RestTemplate restTemplate;
     
     public ResponseEntity<?> getSongRecommendationsForPlaylist(Object playlistData) {
         return getSongRecommendationsForPlaylist(playlistData, 10, 0, null);
@@ -76,24 +146,8 @@ public class GeminiService {
             Map<String, Object> playlistMap = (Map<String, Object>) playlistData;
             String playlistId = (String) playlistMap.get("id");
             
-            // Check if the custom prompt has changed - use Redis instead of in-memory map
-            String cachedPrompt = redisService.getCachedCustomPrompt(playlistId);
-            boolean promptChanged = (customPrompt != null && !customPrompt.equals(cachedPrompt)) || 
-                                   (customPrompt == null && cachedPrompt != null);
-            
-            // If the prompt has changed, clear the cache for this playlist
-            if (promptChanged) {
-                logger.info("Custom prompt changed from '{}' to '{}', clearing cache for playlist {}",
-                           cachedPrompt, customPrompt, playlistId);
-                redisService.clearCachedRecommendations(playlistId);
-                
-                // Update the cached prompt in Redis
-                if (customPrompt != null && !customPrompt.trim().isEmpty()) {
-                    redisService.cacheCustomPrompt(playlistId, customPrompt);
-                } else {
-                    redisService.clearCachedCustomPrompt(playlistId);
-                }
-            }
+            // Clear the cache for this playlist if the custom prompt has changed
+            resetCacheIfPromptChanged(playlistId, customPrompt);
             
             // Get recommendations based on these tracks
             List<Map<String, String>> recommendations = getGeminiSongRecommendations(
@@ -107,6 +161,65 @@ public class GeminiService {
         }
     }
     
+    /**
+     * Streams recommendations for a playlist. Recommendations in the requested page are
+     * passed to the consumer as soon as they are parsed from Gemini's streamed response,
+     * while the rest of the batch continues into the cache.
+     * 
+     * @param playlistData The playlist data from Spotify API
+     * @param limit Maximum number of recommendations to deliver
+     * @param offset Starting index for pagination
+     * @param customPrompt Optional custom prompt to influence recommendations
+     * @param onRecommendation Receives each recommendation in the requested page, in order
+     */
+    public void streamSongRecommendationsForPlaylist(Object playlistData, int limit, int offset, String customPrompt,
+            Consumer<Map<String, String>> onRecommendation) {
+        
+        // Extract track titles from the playlist
+        List<String> trackTitles = extractTrackTitles(playlistData);
+        
+        if (trackTitles.isEmpty()) {
+            throw new IllegalArgumentException("No tracks found in the playlist");
+        }
+        
+        Map<String, Object> playlistMap = (Map<String, Object>) playlistData;
+        String playlistId = (String) playlistMap.get("id");
+        
+        // Clear the cache for this playlist if the custom prompt has changed
+        resetCacheIfPromptChanged(playlistId, customPrompt);
+        
+        streamGeminiSongRecommendations(trackTitles, playlistId, limit, offset, customPrompt, onRecommendation);
+    }
+    
+    /**
+     * Clears the cached recommendations for a key when the custom prompt differs from the cached one
+     * 
+     * @param cacheKey Playlist ID or cache key
+     * @param customPrompt The custom prompt of the current request
+     */
+    private void resetCacheIfPromptChanged(String cacheKey, String customPrompt) {
+        // Check if the custom prompt has changed - use Redis instead of in-memory map
+        String cachedPrompt = redisService.getCachedCustomPrompt(cacheKey);
+        boolean promptChanged = (customPrompt != null && !customPrompt.equals(cachedPrompt)) || 
+                               (customPrompt == null && cachedPrompt != null);
+        
+        // If the prompt has changed, clear the cache for this key
+        if (promptChanged) {
+            logger.info("Custom prompt changed from '{}' to '{}', clearing cache for {}",
+                       cachedPrompt, customPrompt, cacheKey);
+            if (redisService.clearCachedRecommendations(cacheKey)) {
+                cacheMetricsService.incrementInvalidation(cacheKey, "prompt_change");
+            }
+            
+            // Update the cached prompt in Redis
+            if (customPrompt != null && !customPrompt.trim().isEmpty()) {
+                redisService.cacheCustomPrompt(cacheKey, customPrompt);
+            } else {
+                redisService.clearCachedCustomPrompt(cacheKey);
+            }
+        }
+    }
+    
     private List<String> extractTrackTitles(Object playlistData) {
         List<String> trackTitles = new ArrayList<>();
         
@@ -162,560 +275,818 @@ public class GeminiService {
         
         try {
             // Check if we have already generated recommendations for this playlist
-            List<Map<String, String>> cachedRecommendations = redisService.getCachedRecommendations(playlistId);
+            long cachedCount = redisService.getCachedRecommendationCount(playlistId);
             
-            // If we have cached recommendations and the offset is within range, use those
-            if (cachedRecommendations != null && offset < cachedRecommendations.size()) {
+            // If we have cached recommendations and the offset is within range, serve just that page
+            if (offset < cachedCount) {
                 logger.info("Using cached recommendations for playlist {} (offset {})", playlistId, offset);
+                recordCacheHit(playlistId);
                 
-                int endIndex = Math.min(offset + limit, cachedRecommendations.size());
-                return cachedRecommendations.subList(offset, endIndex);
+                return redisService.getCachedRecommendationsPage(playlistId, offset, limit);
             }
             
-            // If this is a new request or we need more recommendations than we have cached
-            int recommendationsToGenerate = 30;
-            if (cachedRecommendations != null) {
-                // Generate more recommendations to add to cache
-                logger.info("Generating more recommendations to add to cache for playlist {}", playlistId);
+            cacheMetricsService.incrementLookup(playlistId, false);
+            
+            // Generate (or wait for another caller generating) the next batch for this cache key
+            if (!generateRecommendationsOnce(trackTitles, playlistId, offset, customPrompt)) {
+                logger.warn("Gave up waiting for the generation for playlist {}, using fallback recommendations", playlistId);
+                return getFallbackPage(trackTitles, limit);
             }
             
-            String baseUrl = "https://generativelanguage.googleapis.com/v1beta/models/gemini-2.0-flash:generateContent";
-            String fullUrl = UriComponentsBuilder.fromUriString(baseUrl)
-                    .queryParam("key", geminiApiKey)
-                    .build()
-                    .toUriString();
+            // Return only the requested subset based on offset and limit
+            return redisService.getCachedRecommendationsPage(playlistId, offset, limit);
+        } finally {
+            // Record the total time taken for the method execution
+            methodTimer.stop(apiMetricsService.getGeminiResponseTimer());
+        }
+    }
 
-            // Limit to at most 20 tracks to keep the prompt size reasonable
-            List<String> limitedTracks = trackTitles.stream().limit(20).collect(Collectors.toList());
-            
-            // Create the playlist tracks list as a string
-            String tracksString = limitedTracks.stream()
-                    .map(title -> "- " + title)
-                    .collect(Collectors.joining("\n"));
-            
-            // Build the prompt differently based on whether this is an initial or follow-up request
-            String prompt;
+    /**
+     * Generates the next batch of recommendations for a cache key, making sure only one
+     * generation runs at a time. Callers in this JVM share the in-flight future and callers
+     * on other nodes wait for the Redis generation lease to be released, then read the cache.
+     * Waiting is capped at app.gemini.generation-wait.
+     * 
+     * @param trackTitles List of track titles to base recommendations on
+     * @param playlistId Playlist ID or cache key for storing recommendations
+     * @param offset Starting index the caller wants to read from
+     * @param customPrompt Optional custom prompt to influence recommendations
+     * @return false if the caller gave up waiting for another generation
+     */
+    private boolean generateRecommendationsOnce(
+            List<String> trackTitles, String playlistId, int offset, String customPrompt) {
+        
+        String generationKey = generationKey(playlistId, customPrompt);
+        long deadline = System.currentTimeMillis() + generationWaitMs;
+        
+        while (true) {
+            CompletableFuture<Void> generation = new CompletableFuture<>();
+            CompletableFuture<Void> inFlight = inFlightGenerations.putIfAbsent(generationKey, generation);
             
-            if (cachedRecommendations == null || cachedRecommendations.isEmpty()) {
-                prompt = "Based on the following playlist tracks:\n\n" + 
-                        tracksString + 
-                        "\n\nRecommend " + recommendationsToGenerate + " new songs that would fit well with this playlist. ";
-                
-                // Add custom prompt instruction if provided
-                if (customPrompt != null && !customPrompt.trim().isEmpty()) {
-                    prompt += "I want you to " + customPrompt.trim() + ". ";
-                }
-                
-                prompt += """
-                        Only provide the song titles without artists. The recommendations should feel cohesive with the existing playlist.
-                        DO NOT recommend songs that are already in the input list.
-                        
-                        Your response should be a JSON array with objects containing only 'song_title' field. For example:
-                        [
-                            { "song_title": "Example Song" },
-                            { "song_title": "Another Song" }
-                        ]""";
-            } else {
-                // Follow-up request - ask for more recommendations, avoiding previous ones
-                String previousRecommendations = cachedRecommendations.stream()
-                    .map(rec -> rec.get("song_title"))
-                    .collect(Collectors.joining("\n- ", "- ", ""));
-                
-                prompt = "Based on the following playlist tracks:\n\n" + 
-                        tracksString + 
-                        "\n\nI already recommended these songs:\n\n" +
-                        previousRecommendations +
-                        "\n\nRecommend " + recommendationsToGenerate + " MORE new songs that would fit well with this playlist. ";
-                
-                // Add custom prompt instruction if provided
-                if (customPrompt != null && !customPrompt.trim().isEmpty()) {
-                    prompt += "I want you to " + customPrompt.trim() + ". ";
+            if (inFlight == null) {
+                try {
+                    boolean generated = generateWithLease(trackTitles, playlistId, generationKey, offset, customPrompt, deadline);
+                    generation.complete(null);
+                    return generated;
+                } catch (RuntimeException e) {
+                    generation.completeExceptionally(e);
+                    throw e;
+                } finally {
+                    inFlightGenerations.remove(generationKey, generation);
                 }
-                
-                prompt += """
-                        Only provide the song titles without artists. The recommendations should feel cohesive with the existing playlist.
-                        DO NOT recommend songs that are already in the input list or in the previously recommended songs list.
-                        
-                        Your response should be a JSON array with objects containing only 'song_title' field. For example:
-                        [
-                            { "song_title": "Example Song" },
-                            { "song_title": "Another Song" }
-                        ]""";
             }
             
-            logger.info("Requesting {} more song recommendations with prompt length: {}", 
-                    recommendationsToGenerate, prompt.length());
-            
-            if (customPrompt != null && !customPrompt.trim().isEmpty()) {
-                logger.info("Including custom prompt: '{}'", customPrompt);
+            logger.info("Waiting for in-flight generation for playlist {}", playlistId);
+            if (!awaitGeneration(inFlight, deadline)) {
+                return false;
             }
-
-            // Create the request payload using Jakarta JSON
-            JsonObjectBuilder payloadBuilder = Json.createObjectBuilder();
-            
-            // Build "contents" array
-            JsonArrayBuilder contentsBuilder = Json.createArrayBuilder();
-            JsonObjectBuilder contentItemBuilder = Json.createObjectBuilder();
-            
-            // Build "parts" array
-            JsonArrayBuilder partsBuilder = Json.createArrayBuilder();
-            JsonObjectBuilder partBuilder = Json.createObjectBuilder();
-            partBuilder.add("text", prompt);
-            partsBuilder.add(partBuilder);
-            
-            contentItemBuilder.add("parts", partsBuilder);
-            contentsBuilder.add(contentItemBuilder);
-            payloadBuilder.add("contents", contentsBuilder);
-            
-            // Build "generationConfig" object
-            JsonObjectBuilder generationConfigBuilder = Json.createObjectBuilder();
-            generationConfigBuilder.add("response_mime_type", "application/json");
-            
-            // Build "response_schema" object
-            JsonObjectBuilder responseSchemaBuilder = Json.createObjectBuilder();
-            responseSchemaBuilder.add("type", "ARRAY");
-            
-            // Build "items" object
-            JsonObjectBuilder itemsBuilder = Json.createObjectBuilder();
-            itemsBuilder.add("type", "OBJECT");
             
-            // Build "properties" object
-            JsonObjectBuilder propertiesBuilder = Json.createObjectBuilder();
-            
-            // Build "song_title" object (no artist property now)
-            JsonObjectBuilder songTitleBuilder = Json.createObjectBuilder();
-            songTitleBuilder.add("type", "STRING");
-            
-            propertiesBuilder.add("song_title", songTitleBuilder);
-            itemsBuilder.add("properties", propertiesBuilder);
-            responseSchemaBuilder.add("items", itemsBuilder);
-            
-            generationConfigBuilder.add("response_schema", responseSchemaBuilder);
+            // The generation we joined may have been for an earlier page, if so go round and generate ours
+            if (offset < redisService.getCachedRecommendationCount(playlistId)) {
+                return true;
+            }
+        }
+    }
+    
+    /**
+     * Waits for a generation running in this JVM
+     * 
+     * @return false if the deadline passed first, true once the generation has ended (even if it failed)
+     */
+    private boolean awaitGeneration(CompletableFuture<Void> inFlight, long deadline) {
+        try {
+            inFlight.get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+            return true;
+        } catch (TimeoutException e) {
+            return false;
+        } catch (ExecutionException e) {
+            // The other caller failed, the next round generates for this caller
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+    
+    /**
+     * Takes the Redis generation lease, waiting while another node holds it, and generates
+     * the next batch unless the cache already covers the offset by then
+     * 
+     * @return false if the deadline passed while another node held the lease
+     */
+    private boolean generateWithLease(List<String> trackTitles, String playlistId, String generationKey,
+            int offset, String customPrompt, long deadline) {
+        
+        String leaseToken = UUID.randomUUID().toString();
+        boolean waited = false;
+        
+        while (!redisService.tryAcquireGenerationLease(generationKey, leaseToken, generationLeaseTtlMs)) {
+            if (!waited) {
+                logger.info("Another node is generating recommendations for playlist {}, waiting for it", playlistId);
+                waited = true;
+            }
             
-            // Set a lower temperature for more predictable responses
-            generationConfigBuilder.add("temperature", 0.2);
+            if (System.currentTimeMillis() >= deadline) {
+                return false;
+            }
             
-            payloadBuilder.add("generationConfig", generationConfigBuilder);
+            try {
+                Thread.sleep(LEASE_POLL_INTERVAL_MS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
             
-            // Build the final payload
-            JsonObject payload = payloadBuilder.build();
-            String jsonPayload = payload.toString();
+            if (offset < redisService.getCachedRecommendationCount(playlistId)) {
+                return true;
+            }
+        }
+        
+        ScheduledFuture<?> leaseRenewal = scheduleLeaseRenewal(generationKey, leaseToken);
+        try {
+            // Another caller may have filled the cache while we were acquiring the lease
+            if (offset >= redisService.getCachedRecommendationCount(playlistId)) {
+                generateRecommendations(trackTitles, playlistId, customPrompt);
+            }
+            return true;
+        } finally {
+            leaseRenewal.cancel(false);
+            redisService.releaseGenerationLease(generationKey, leaseToken);
+        }
+    }
+    
+    /**
+     * Keeps a held generation lease from expiring while a slow generation (retries,
+     * backoff, fallback) is still running
+     * 
+     * @return The renewal task, to be cancelled before the lease is released
+     */
+    private ScheduledFuture<?> scheduleLeaseRenewal(String generationKey, String leaseToken) {
+        long intervalMs = Math.max(1, generationLeaseTtlMs / 3);
+        
+        return leaseRenewalExecutor.scheduleAtFixedRate(() -> {
+            try {
+                if (!redisService.renewGenerationLease(generationKey, leaseToken, generationLeaseTtlMs)) {
+                    logger.warn("Generation lease for {} was lost before the generation finished", generationKey);
+                }
+            } catch (RuntimeException e) {
+                // Keep the task scheduled, the next renewal may get through
+                logger.warn("Could not renew generation lease for {}: {}", generationKey, e.getMessage());
+            }
+        }, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+    }
+    
+    /**
+     * Generations are coalesced per cache key and custom prompt, since a batch generated
+     * for one prompt is no use to a caller asking with another
+     */
+    private String generationKey(String playlistId, String customPrompt) {
+        if (customPrompt == null || customPrompt.trim().isEmpty()) {
+            return playlistId;
+        }
+        return playlistId + ":" + Integer.toHexString(customPrompt.trim().hashCode());
+    }
+    
+    private List<Map<String, String>> getFallbackPage(List<String> trackTitles, int limit) {
+        List<Map<String, String>> fallback = fallbackService.getFallbackRecommendations(trackTitles);
+        return new ArrayList<>(fallback.subList(0, Math.min(Math.max(limit, 0), fallback.size())));
+    }
+    
+    @PreDestroy
+    public void shutdownLeaseRenewal() {
+        leaseRenewalExecutor.shutdownNow();
+    }
+    
+    /**
+     * Requests a new batch of recommendations from Gemini (falling back to the
+     * fallback catalog) and adds them to the cache
+     * 
+     * @param trackTitles List of track titles to base recommendations on
+     * @param playlistId Playlist ID or cache key for storing recommendations
+     * @param customPrompt Optional custom prompt to influence recommendations
+     */
+    private void generateRecommendations(List<String> trackTitles, String playlistId, String customPrompt) {
+        // If this is a new request or we need more recommendations than we have cached
+        int recommendationsToGenerate = 30;
+        List<Map<String, String>> cachedRecommendations = null;
+        if (redisService.getCachedRecommendationCount(playlistId) > 0) {
+            // Generate more recommendations to add to cache, the full list is needed for the prompt
+            logger.info("Generating more recommendations to add to cache for playlist {}", playlistId);
+            cachedRecommendations = redisService.getCachedRecommendations(playlistId);
+        }
+        
+        String baseUrl = geminiBaseUrl + "/v1beta/models/gemini-2.0-flash:generateContent";
+        String fullUrl = UriComponentsBuilder.fromUriString(baseUrl)
+                .queryParam("key", geminiApiKey)
+                .build()
+                .toUriString();
 
-            HttpHeaders headers = new HttpHeaders();
-            headers.setContentType(MediaType.APPLICATION_JSON);
+        String prompt = buildRecommendationPrompt(trackTitles, cachedRecommendations, customPrompt, recommendationsToGenerate);
+        
+        logger.info("Requesting {} more song recommendations with prompt length: {}", 
+                recommendationsToGenerate, prompt.length());
+        
+        if (customPrompt != null && !customPrompt.trim().isEmpty()) {
+            logger.info("Including custom prompt: '{}'", customPrompt);
+        }
 
-            // Create the HTTP entity
-            HttpEntity<String> requestEntity = new HttpEntity<>(jsonPayload, headers);
-            
-            // Implement retry logic
-            int retryCount = 0;
-            boolean success = false;
-            List<Map<String, String>> newRecommendations = new ArrayList<>();
-            ResponseEntity<String> response = null;
+        String jsonPayload = buildGeminiPayload(prompt);
 
-            while (!success && retryCount < MAX_RETRIES) {
-                try {
-                    // Log the attempt
-                    logger.info("Attempt #{} to get recommendations from Gemini API", retryCount + 1);
-                    
-                    // Track the start time for the Gemini API call specifically
-                    long geminiCallStartTime = System.currentTimeMillis();
-                    
-                    // Make the POST request
-                    response = restTemplate.exchange(
-                        fullUrl,
-                        HttpMethod.POST,
-                        requestEntity,
-                        String.class
-                    );
+        HttpHeaders headers = new HttpHeaders();
+        headers.setContentType(MediaType.APPLICATION_JSON);
 
-                    // Record the Gemini API call duration using our metrics service
-                    long geminiCallDuration = System.currentTimeMillis() - geminiCallStartTime;
-                    apiMetricsService.recordGeminiResponseTime(geminiCallDuration);
-                    logger.info("Gemini API call took {} ms", geminiCallDuration);
+        // Create the HTTP entity
+        HttpEntity<String> requestEntity = new HttpEntity<>(jsonPayload, headers);
+        
+        // Implement retry logic
+        int retryCount = 0;
+        boolean success = false;
+        List<Map<String, String>> newRecommendations = new ArrayList<>();
+        ResponseEntity<List<Map<String, String>>> response = null;
 
-                    if (response.getStatusCode().is2xxSuccessful()) {
-                        String responseBody = response.getBody();
-                        logger.info("Received successful response from Gemini API with {} characters", 
-                            responseBody != null ? responseBody.length() : 0);
-                        
+        while (!success && retryCount < MAX_RETRIES) {
+            // Skip straight to the fallback while Gemini is known to be failing
+            GeminiCircuitBreaker.Permission permission = circuitBreaker.tryAcquirePermission();
+            if (permission == null) {
+                logger.warn("Gemini circuit breaker is {}, skipping attempt #{}", circuitBreaker.getState(), retryCount + 1);
+                break;
+            }
+            
+            // Set when Gemini tells us how long to wait (429 with Retry-After)
+            Long retryAfterMs = null;
+            
+            // Why this attempt failed, recorded if we go on to retry
+            String retryReason = null;
+            
+            try {
+                // Log the attempt
+                logger.info("Attempt #{} to get recommendations from Gemini API", retryCount + 1);
+                
+                // Track the start time for the Gemini API call specifically
+                long geminiCallStartTime = System.currentTimeMillis();
+                
+                // Make the POST request, parsing the body as it is read rather than buffering it first
+                response = restTemplate.execute(
+                    fullUrl,
+                    HttpMethod.POST,
+                    restTemplate.httpEntityCallback(requestEntity),
+                    clientResponse -> {
                         try {
-                            // Try to parse the recommendations
-                            newRecommendations = parseSongRecommendations(responseBody);
-                            
-                            // If we got some recommendations, consider it a success
-                            if (!newRecommendations.isEmpty()) {
-                                logger.info("Successfully parsed {} recommendations", newRecommendations.size());
-                                success = true;
-                            } else {
-                                // Empty recommendations, retry with a different approach
-                                logger.warn("Received empty recommendations list from Gemini API, retrying with modified prompt");
-                                retryCount++;
-                                
-                                // Modify the prompt slightly for the retry
-                                String retryPrompt = prompt + "\n\nPlease only provide song titles. Your response should be in valid JSON format.";
-                                
-                                // Rebuild the request payload with the updated prompt
-                                payloadBuilder = Json.createObjectBuilder();
-                                contentsBuilder = Json.createArrayBuilder();
-                                contentItemBuilder = Json.createObjectBuilder();
-                                partsBuilder = Json.createArrayBuilder();
-                                partBuilder = Json.createObjectBuilder();
-                                
-                                partBuilder.add("text", retryPrompt);
-                                partsBuilder.add(partBuilder);
-                                contentItemBuilder.add("parts", partsBuilder);
-                                contentsBuilder.add(contentItemBuilder);
-                                payloadBuilder.add("contents", contentsBuilder);
-                                payloadBuilder.add("generationConfig", generationConfigBuilder);
-                                
-                                payload = payloadBuilder.build();
-                                jsonPayload = payload.toString();
-                                
-                                requestEntity = new HttpEntity<>(jsonPayload, headers);
-                            }
-                        } catch (Exception e) {
-                            logger.error("Error parsing response: {}", e.getMessage());
-                            retryCount++;
-                            
-                            // Try to extract recommendations using a more lenient approach on the next attempt
-                            if (retryCount < MAX_RETRIES) {
-                                logger.info("Retrying with a simplified prompt format");
-                                
-                                // Simplify the prompt for the next attempt
-                                String retryPrompt = "Based on the playlist tracks, recommend " + recommendationsToGenerate + 
-                                        " songs. Just give me the song titles only, one per line.";
-                                
-                                // Add custom prompt if available
-                                if (customPrompt != null && !customPrompt.trim().isEmpty()) {
-                                    retryPrompt += " " + customPrompt.trim() + ".";
-                                }
-                                
-                                // Rebuild the request payload with the simplified prompt
-                                payloadBuilder = Json.createObjectBuilder();
-                                contentsBuilder = Json.createArrayBuilder();
-                                contentItemBuilder = Json.createObjectBuilder();
-                                partsBuilder = Json.createArrayBuilder();
-                                partBuilder = Json.createObjectBuilder();
-                                
-                                partBuilder.add("text", retryPrompt);
-                                partsBuilder.add(partBuilder);
-                                contentItemBuilder.add("parts", partsBuilder);
-                                contentsBuilder.add(contentItemBuilder);
-                                payloadBuilder.add("contents", contentsBuilder);
-                                
-                                // Adjust generation config for more reliable output
-                                JsonObjectBuilder simpleConfigBuilder = Json.createObjectBuilder();
-                                simpleConfigBuilder.add("temperature", 0.1); // Lower temperature for more predictable output
-                                
-                                payloadBuilder.add("generationConfig", simpleConfigBuilder);
-                                
-                                payload = payloadBuilder.build();
-                                jsonPayload = payload.toString();
-                                
-                                requestEntity = new HttpEntity<>(jsonPayload, headers);
-                            }
+                            return ResponseEntity.status(clientResponse.getStatusCode())
+                                    .body(responseParser.parseSongRecommendations(clientResponse.getBody()));
+                        } catch (IOException e) {
+                            // Kept apart from connection failures, Gemini has already answered
+                            throw new UncheckedIOException(e);
+                        } finally {
+                            // Read whatever the parser left so the connection goes back to the pool
+                            StreamUtils.drain(clientResponse.getBody());
                         }
+                    }
+                );
+
+                // Record the Gemini API call duration using our metrics service
+                long geminiCallDuration = System.currentTimeMillis() - geminiCallStartTime;
+                apiMetricsService.recordGeminiResponseTime(geminiCallDuration);
+                logger.info("Gemini API call took {} ms", geminiCallDuration);
+
+                if (response.getStatusCode().is2xxSuccessful()) {
+                    // Gemini answered, an empty answer below is not held against it
+                    circuitBreaker.recordSuccess(permission);
+                    
+                    // The recommendations were parsed as the response was read
+                    newRecommendations = response.getBody();
+                    
+                    // If we got some recommendations, consider it a success
+                    if (!newRecommendations.isEmpty()) {
+                        logger.info("Successfully parsed {} recommendations", newRecommendations.size());
+                        success = true;
                     } else {
-                        logger.error("Request failed with status code: {}", response.getStatusCode());
-                        logger.error("Response body: {}", response.getBody());
+                        // Empty recommendations, retry with a different approach
+                        logger.warn("Received empty recommendations list from Gemini API, retrying with modified prompt");
                         retryCount++;
+                        retryReason = "empty_response";
+                        
+                        // Modify the prompt slightly for the retry
+                        String retryPrompt = prompt + "\n\nPlease only provide song titles. Your response should be in valid JSON format.";
+                        
+                        // Rebuild the request payload with the updated prompt
+                        jsonPayload = buildGeminiPayload(retryPrompt);
+                        
+                        requestEntity = new HttpEntity<>(jsonPayload, headers);
                     }
-                } catch (Exception e) {
-                    logger.error("Error communicating with Gemini API: {}", e.getMessage());
+                } else {
+                    logger.error("Request failed with status code: {}", response.getStatusCode());
+                    circuitBreaker.recordFailure(permission);
                     retryCount++;
+                    retryReason = "status";
                 }
+            } catch (HttpStatusCodeException e) {
+                logger.error("Gemini API returned {}: {}", e.getStatusCode(), e.getMessage());
+                retryCount++;
                 
-                // Add a delay between retries
-                if (!success && retryCount < MAX_RETRIES) {
-                    try {
-                        logger.info("Waiting {} ms before retry #{}", RETRY_DELAY_MS, retryCount + 1);
-                        Thread.sleep(RETRY_DELAY_MS);
-                    } catch (InterruptedException e) {
-                        Thread.currentThread().interrupt();
-                    }
+                if (e.getStatusCode().value() == HttpStatus.TOO_MANY_REQUESTS.value()) {
+                    circuitBreaker.recordFailure(permission);
+                    retryAfterMs = parseRetryAfterMs(e.getResponseHeaders());
+                    retryReason = "throttled";
+                } else if (e.getStatusCode().is5xxServerError()) {
+                    circuitBreaker.recordFailure(permission);
+                    retryReason = "server_error";
+                } else {
+                    // Other 4xx responses are problems with our request, not with Gemini
+                    circuitBreaker.recordSuccess(permission);
+                    retryReason = "client_error";
                 }
-            }
-
-            // If all retries failed or we got no recommendations, provide fallback recommendations
-            if (!success || newRecommendations.isEmpty()) {
-                logger.warn("All {} attempts to get recommendations from Gemini API failed, using fallback recommendations", MAX_RETRIES);
-                newRecommendations = fallbackService.getFallbackRecommendations(trackTitles);
+            } catch (UncheckedIOException e) {
+                // Gemini answered 2xx but the body could not be read, which is not held against it
+                logger.error("Error reading Gemini response: {}", e.getMessage());
+                circuitBreaker.recordSuccess(permission);
+                retryCount++;
+                retryReason = "parse_error";
+            } catch (Exception e) {
+                logger.error("Error communicating with Gemini API: {}", e.getMessage());
+                circuitBreaker.recordFailure(permission);
+                retryCount++;
+                retryReason = "error";
             }
             
-            // Update the cache
-            if (cachedRecommendations == null) {
-                // First time, just store the new recommendations
-                redisService.cacheRecommendations(playlistId, newRecommendations);
-            } else {
-                // Merge with existing recommendations
-                List<Map<String, String>> allRecommendations = new ArrayList<>(cachedRecommendations);
+            // Add a delay between retries
+            if (!success && retryCount < MAX_RETRIES) {
+                long delayMs = retryAfterMs != null ? retryAfterMs : computeBackoffDelay(retryCount);
                 
-                // Filter out duplicates
-                for (Map<String, String> newRec : newRecommendations) {
-                    boolean isDuplicate = allRecommendations.stream().anyMatch(existing -> 
-                        existing.get("song_title").equalsIgnoreCase(newRec.get("song_title"))
-                    );
-                    
-                    if (!isDuplicate) {
-                        allRecommendations.add(newRec);
-                    }
+                if (delayMs > maxRetryAfterMs) {
+                    // Not worth holding the request thread that long, use the fallback instead
+                    logger.warn("Gemini asked us to wait {} ms, giving up and using fallback recommendations", delayMs);
+                    break;
                 }
                 
-                // Update the cache with the merged list
-                redisService.cacheRecommendations(playlistId, allRecommendations);
-            }
-            
-            // Get the cached recommendations
-            List<Map<String, String>> allCachedRecommendations = redisService.getCachedRecommendations(playlistId);
-            
-            // Return only the requested subset based on offset and limit
-            int endIndex = Math.min(offset + limit, allCachedRecommendations.size());
-            if (offset >= allCachedRecommendations.size()) {
-                // Return an empty list if offset is beyond our available recommendations
-                return new ArrayList<>();
+                upstreamMetricsService.incrementRetry("gemini", retryReason);
+                
+                try {
+                    logger.info("Waiting {} ms before retry #{}", delayMs, retryCount + 1);
+                    Thread.sleep(delayMs);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
             }
+        }
 
-            return allCachedRecommendations.subList(offset, endIndex);
-        } finally {
-            // Record the total time taken for the method execution
-            methodTimer.stop(apiMetricsService.getGeminiResponseTimer());
+        // If all retries failed or we got no recommendations, provide fallback recommendations
+        if (!success || newRecommendations.isEmpty()) {
+            logger.warn("Could not get recommendations from Gemini API after {} attempts, using fallback recommendations", retryCount);
+            newRecommendations = fallbackService.getFallbackRecommendations(trackTitles);
         }
+        
+        // Update the cache
+        storeGeneratedRecommendations(playlistId, cachedRecommendations, newRecommendations);
     }
 
 
     /**
-     * Parses song recommendations from Gemini API response.
-     * Modified to only extract song titles, not artists.
+     * Capped exponential backoff with full jitter
      * 
-     * @param jsonData The JSON response from Gemini API
-     * @return List of song recommendations
+     * @param attempt Number of attempts made so far (1 for the first retry)
+     * @return Delay in milliseconds before the next attempt
      */
-    private List<Map<String, String>> parseSongRecommendations(String jsonData) {
-        List<Map<String, String>> recommendations = new ArrayList<>();
-        
-        // Log the raw response data (truncate if very long)
-        if (jsonData != null) {
-            int maxLogLength = 500; // Truncate long responses for logging
-            String logData = jsonData.length() > maxLogLength ? 
-                jsonData.substring(0, maxLogLength) + "... (truncated, full length: " + jsonData.length() + ")" : jsonData;
-            logger.info("Raw Gemini response: {}", logData);
-        } else {
-            logger.warn("Received null JSON data from Gemini API");
-            return recommendations;
+    private long computeBackoffDelay(int attempt) {
+        long cappedDelay = Math.min(retryMaxDelayMs, retryBaseDelayMs << Math.min(attempt - 1, 20));
+        return ThreadLocalRandom.current().nextLong(cappedDelay + 1);
+    }
+    
+    /**
+     * Reads a Retry-After header given either in seconds or as an HTTP date
+     * 
+     * @param headers Response headers, may be null
+     * @return Delay in milliseconds, or null if the header is missing or unreadable
+     */
+    private Long parseRetryAfterMs(HttpHeaders headers) {
+        String retryAfter = headers != null ? headers.getFirst(HttpHeaders.RETRY_AFTER) : null;
+        if (retryAfter == null || retryAfter.isBlank()) {
+            return null;
         }
         
         try {
-            // First, try parsing the outer JSON structure
-            logger.info("Attempting to parse outer JSON structure");
-            try (JsonReader jsonReader = Json.createReader(new StringReader(jsonData))) {
-                JsonObject jsonObject = jsonReader.readObject();
-                logger.info("Successfully parsed outer JSON object");
-                
-                // Extract the text content that should contain our recommendations
-                JsonArray candidatesArray = jsonObject.getJsonArray("candidates");
-                if (candidatesArray == null || candidatesArray.isEmpty()) {
-                    logger.error("No candidates found in Gemini response");
-                    return recommendations;
-                }
-                
-                logger.info("Found {} candidates in Gemini response", candidatesArray.size());
-                
-                JsonObject firstCandidate = candidatesArray.getJsonObject(0);
-                JsonObject content = firstCandidate.getJsonObject("content");
-                JsonArray parts = content.getJsonArray("parts");
-                
-                if (parts == null || parts.isEmpty()) {
-                    logger.error("No parts found in Gemini response content");
-                    return recommendations;
-                }
-                
-                JsonObject firstPart = parts.getJsonObject(0);
-                
-                // Get the text which should contain our JSON array of recommendations
-                String text = firstPart.getString("text");
-                
-                // Log the inner text content (truncate if very long)
-                if (text != null) {
-                    int maxTextLogLength = 1000;
-                    String logText = text.length() > maxTextLogLength ? 
-                        text.substring(0, maxTextLogLength) + "... (truncated, full length: " + text.length() + ")" : text;
-                    logger.info("Inner text content: {}", logText);
-                    
-                    // Check if it looks like a valid JSON array
-                    boolean startsWithBracket = text.trim().startsWith("[");
-                    boolean endsWithBracket = text.trim().endsWith("]");
-                    logger.info("Inner text format check - starts with '[': {}, ends with ']': {}", 
-                        startsWithBracket, endsWithBracket);
-                    
-                    // Check for markdown code blocks
-                    if (text.contains("```")) {
-                        logger.info("Text contains markdown code blocks that need to be removed");
-                        // Remove markdown code blocks
-                        text = text.replaceAll("```json", "")
-                                .replaceAll("```", "")
-                                .trim();
-                    }
-                }
+            return Math.max(0, Long.parseLong(retryAfter.trim()) * 1000);
+        } catch (NumberFormatException e) {
+            // Not a number of seconds, try the HTTP date form
+        }
+        
+        try {
+            ZonedDateTime retryAt = ZonedDateTime.parse(retryAfter.trim(), DateTimeFormatter.RFC_1123_DATE_TIME);
+            return Math.max(0, Duration.between(ZonedDateTime.now(), retryAt).toMillis());
+        } catch (DateTimeParseException e) {
+            logger.warn("Ignoring unreadable Retry-After header: {}", retryAfter);
+            return null;
+        }
+    }
+    
+    /**
+     * Streaming variant of getGeminiSongRecommendations. Cached pages are delivered straight
+     * from Redis. Otherwise, if this caller wins the generation lease, the batch is requested
+     * with streamGenerateContent and delivered as it arrives. If another caller is already
+     * generating, this waits for it like the blocking path does.
+     * 
+     * @param trackTitles List of track titles to base recommendations on
+     * @param playlistId Playlist ID or cache key for storing recommendations
+     * @param limit Maximum number of recommendations to deliver
+     * @param offset Starting index for pagination
+     * @param customPrompt Optional custom prompt to influence recommendations
+     * @param onRecommendation Receives each recommendation in the requested page, in order
+     */
+    public void streamGeminiSongRecommendations(List<String> trackTitles, String playlistId, int limit, int offset,
+            String customPrompt, Consumer<Map<String, String>> onRecommendation) {
+        
+        if (offset < redisService.getCachedRecommendationCount(playlistId)) {
+            logger.info("Streaming cached recommendations for playlist {} (offset {})", playlistId, offset);
+            recordCacheHit(playlistId);
+            redisService.getCachedRecommendationsPage(playlistId, offset, limit).forEach(onRecommendation);
+            return;
+        }
+        
+        String generationKey = generationKey(playlistId, customPrompt);
+        CompletableFuture<Void> generation = new CompletableFuture<>();
+        if (inFlightGenerations.putIfAbsent(generationKey, generation) != null) {
+            // Another request in this JVM is generating, wait for it through the blocking path
+            getGeminiSongRecommendations(trackTitles, playlistId, limit, offset, customPrompt).forEach(onRecommendation);
+            return;
+        }
+        
+        cacheMetricsService.incrementLookup(playlistId, false);
+        
+        Timer.Sample methodTimer = Timer.start();
+        String leaseToken = UUID.randomUUID().toString();
+        ScheduledFuture<?> leaseRenewal = null;
+        boolean generated = true;
+        int delivered = 0;
+        AtomicBoolean consumerFailed = new AtomicBoolean();
+        
+        try {
+            if (!redisService.tryAcquireGenerationLease(generationKey, leaseToken, generationLeaseTtlMs)) {
+                // Another node is generating, wait for its lease like the blocking path
+                leaseToken = null;
+                generated = generateWithLease(trackTitles, playlistId, generationKey, offset, customPrompt,
+                        System.currentTimeMillis() + generationWaitMs);
+            } else {
+                leaseRenewal = scheduleLeaseRenewal(generationKey, leaseToken);
                 
-                // Try to find and extract just the JSON array
-                if (text != null) {
-                    int startIndex = text.indexOf('[');
-                    int endIndex = text.lastIndexOf(']');
+                if (offset >= redisService.getCachedRecommendationCount(playlistId)) {
+                    delivered = streamRecommendations(trackTitles, playlistId, limit, offset, customPrompt,
+                            onRecommendation, consumerFailed);
                     
-                    if (startIndex >= 0 && endIndex > startIndex) {
-                        // Extract just the JSON array part
-                        text = text.substring(startIndex, endIndex + 1);
-                        logger.info("Extracted JSON array from text, length: {}", text.length());
+                    if (delivered == 0 && offset >= redisService.getCachedRecommendationCount(playlistId)) {
+                        // Streaming failed before anything usable arrived, use the retrying path with fallback
+                        logger.warn("Streaming produced no recommendations for playlist {}, using blocking generation", playlistId);
+                        generateRecommendations(trackTitles, playlistId, customPrompt);
                     }
                 }
-                
-                // Now try to parse the inner JSON array
+            }
+            generation.complete(null);
+        } catch (RuntimeException e) {
+            generation.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlightGenerations.remove(generationKey, generation);
+            if (leaseRenewal != null) {
+                leaseRenewal.cancel(false);
+            }
+            if (leaseToken != null) {
+                redisService.releaseGenerationLease(generationKey, leaseToken);
+            }
+            methodTimer.stop(apiMetricsService.getGeminiResponseTimer());
+        }
+        
+        if (consumerFailed.get()) {
+            // The client is gone, the batch is cached and there is no one left to deliver to
+            return;
+        }
+        
+        if (!generated) {
+            logger.warn("Gave up waiting for the generation for playlist {}, using fallback recommendations", playlistId);
+            getFallbackPage(trackTitles, limit).forEach(onRecommendation);
+            return;
+        }
+        
+        // Deliver the part of the page that was not streamed (fallback results or a short stream)
+        List<Map<String, String>> page = redisService.getCachedRecommendationsPage(playlistId, offset, limit);
+        if (delivered < page.size()) {
+            page.subList(delivered, page.size()).forEach(onRecommendation);
+        }
+    }
+    
+    /**
+     * Requests a batch from Gemini's streamGenerateContent endpoint and parses song titles
+     * out of the text as the chunks arrive. Titles that land in the requested page are
+     * delivered immediately. The whole batch is cached once the stream ends.
+     * 
+     * @param consumerFailed Set once the consumer has thrown, after which nothing more is delivered
+     * @return The number of recommendations delivered to the consumer
+     */
+    private int streamRecommendations(List<String> trackTitles, String playlistId, int limit, int offset,
+            String customPrompt, Consumer<Map<String, String>> onRecommendation, AtomicBoolean consumerFailed) {
+        
+        int recommendationsToGenerate = 30;
+        List<Map<String, String>> cachedRecommendations = null;
+        if (redisService.getCachedRecommendationCount(playlistId) > 0) {
+            cachedRecommendations = redisService.getCachedRecommendations(playlistId);
+        }
+        int cachedSize = cachedRecommendations != null ? cachedRecommendations.size() : 0;
+        
+        String baseUrl = geminiBaseUrl + "/v1beta/models/gemini-2.0-flash:streamGenerateContent";
+        String fullUrl = UriComponentsBuilder.fromUriString(baseUrl)
+                .queryParam("alt", "sse")
+                .queryParam("key", geminiApiKey)
+                .build()
+                .toUriString();
+        
+        String prompt = buildRecommendationPrompt(trackTitles, cachedRecommendations, customPrompt, recommendationsToGenerate);
+        String jsonPayload = buildGeminiPayload(prompt);
+        
+        // Lower-cased titles already cached or streamed, to skip duplicates as they arrive
+        Set<String> seenTitles = new HashSet<>();
+        if (cachedRecommendations != null) {
+            cachedRecommendations.forEach(rec -> seenTitles.add(rec.get("song_title").toLowerCase()));
+        }
+        
+        List<Map<String, String>> newRecommendations = new ArrayList<>();
+        AtomicInteger delivered = new AtomicInteger();
+        
+        Consumer<String> onTitle = title -> {
+            if (!seenTitles.add(title.toLowerCase())) {
+                return;
+            }
+            
+            Map<String, String> songInfo = new LinkedHashMap<>();
+            songInfo.put("song_title", title);
+            songInfo.put("artist", "");
+            
+            int position = cachedSize + newRecommendations.size();
+            newRecommendations.add(songInfo);
+            
+            if (position >= offset && position < offset + limit && !consumerFailed.get()) {
                 try {
-                    logger.info("Attempting to parse inner JSON content as array");
-                    try (JsonReader nestedReader = Json.createReader(new StringReader(text))) {
-                        JsonArray songsArray = nestedReader.readArray();
-                        logger.info("Successfully parsed inner JSON array with {} elements", songsArray.size());
-                        
-                        for (JsonValue value : songsArray) {
-                            if (value.getValueType() == JsonValue.ValueType.OBJECT) {
-                                JsonObject songObject = value.asJsonObject();
-                                Map<String, String> songInfo = new LinkedHashMap<>();
-                                
-                                // Safely extract song title with fallback
-                                try {
-                                    songInfo.put("song_title", songObject.getString("song_title", "Unknown Title"));
-                                } catch (Exception e) {
-                                    logger.warn("Error extracting song_title: {}", e.getMessage());
-                                    songInfo.put("song_title", "Unknown Title");
-                                }
-                                
-                                // We're not extracting artist anymore, but adding a placeholder
-                                // This is to maintain compatibility with existing code until it's updated
-                                songInfo.put("artist", ""); 
-                                
-                                recommendations.add(songInfo);
-                                logger.debug("Added recommendation: {}", songInfo.get("song_title"));
-                            } else {
-                                logger.warn("Unexpected value type in songs array: {}", value.getValueType());
-                            }
-                        }
-                    }
-                } catch (Exception e) {
-                    logger.error("Error parsing inner JSON array: {}", e.getMessage());
-                    
-                    // Fallback: Try to parse with regex if JSON parsing fails
-                    logger.info("Attempting fallback parsing with regex");
-                    recommendations = parseRecommendationsWithRegex(text);
+                    onRecommendation.accept(songInfo);
+                    delivered.incrementAndGet();
+                } catch (RuntimeException e) {
+                    // Client went away, keep reading so the rest still reaches the cache
+                    logger.warn("Stopped delivering streamed recommendations for playlist {}: {}", playlistId, e.getMessage());
+                    consumerFailed.set(true);
                 }
             }
+        };
+        
+        GeminiCircuitBreaker.Permission permission = circuitBreaker.tryAcquirePermission();
+        if (permission == null) {
+            logger.warn("Gemini circuit breaker is {}, not streaming recommendations for playlist {}",
+                    circuitBreaker.getState(), playlistId);
+            return 0;
+        }
+        
+        long geminiCallStartTime = System.currentTimeMillis();
+        
+        try {
+            logger.info("Streaming {} song recommendations for playlist {} with prompt length: {}",
+                    recommendationsToGenerate, playlistId, prompt.length());
+            
+            restTemplate.execute(fullUrl, HttpMethod.POST,
+                request -> {
+                    request.getHeaders().setContentType(MediaType.APPLICATION_JSON);
+                    request.getBody().write(jsonPayload.getBytes(StandardCharsets.UTF_8));
+                },
+                response -> {
+                    readRecommendationStream(response.getBody(), onTitle);
+                    return null;
+                });
+            circuitBreaker.recordSuccess(permission);
         } catch (Exception e) {
-            logger.error("Error parsing Gemini response: {}", e.getMessage());
-            logger.error("Exception type: {}", e.getClass().getName());
+            logger.error("Error streaming recommendations from Gemini API: {}", e.getMessage());
             
-            // Detailed logging for JSON parsing errors
-            if (e.getMessage() != null && e.getMessage().contains("Unexpected char")) {
-                logger.error("JSON parsing error details: {}", e.getMessage());
-                
-                // Try to locate the problem area
-                if (jsonData != null) {
-                    try {
-                        String[] errorParts = e.getMessage().split("at \\(line no=|, column no=|, offset=|\\)");
-                        if (errorParts.length >= 4) {
-                            int offset = Integer.parseInt(errorParts[3].trim());
-                            int contextSize = 50; // Characters before and after the problem
-                            int start = Math.max(0, offset - contextSize);
-                            int end = Math.min(jsonData.length(), offset + contextSize);
-                            
-                            String context = jsonData.substring(start, end).replace("\n", "\\n");
-                            logger.error("Context around problematic character (offset {}): \"{}\"", offset, context);
-                            
-                            // Mark the exact position with a pointer
-                            StringBuilder pointer = new StringBuilder();
-                            for (int i = 0; i < (offset - start); i++) {
-                                pointer.append(" ");
-                            }
-                            pointer.append("^");
-                            logger.error("Problem position: {}", pointer.toString());
-                        }
-                    } catch (Exception ex) {
-                        logger.error("Error while trying to locate problem area: {}", ex.getMessage());
-                    }
-                }
+            // A stream cut off after delivering recommendations still counts as Gemini answering
+            if (newRecommendations.isEmpty()) {
+                circuitBreaker.recordFailure(permission);
+            } else {
+                circuitBreaker.recordSuccess(permission);
             }
-            
-            // Try fallback parsing with regex
-            logger.info("Attempting fallback parsing with regex after outer JSON parse failure");
-            recommendations = parseRecommendationsWithRegex(jsonData);
+        } finally {
+            apiMetricsService.recordGeminiResponseTime(System.currentTimeMillis() - geminiCallStartTime);
+        }
+        
+        logger.info("Streamed {} recommendations for playlist {}, delivered {} immediately",
+                newRecommendations.size(), playlistId, delivered.get());
+        
+        if (!newRecommendations.isEmpty()) {
+            storeGeneratedRecommendations(playlistId, cachedRecommendations, newRecommendations);
         }
         
-        logger.info("Finished parsing, extracted {} recommendations", recommendations.size());
-        return recommendations;
+        return delivered.get();
     }
     
     /**
-     * Fallback method to extract recommendations using regex when JSON parsing fails
-     * Modified to focus on extracting just song titles
+     * Reads a server-sent event stream of generateContent chunks and reports every
+     * song title as soon as its closing quote has arrived
      * 
-     * @param text The text to parse
-     * @return List of extracted recommendations
+     * @param body The response body stream
+     * @param onTitle Receives each song title in order
      */
-    private List<Map<String, String>> parseRecommendationsWithRegex(String text) {
-        List<Map<String, String>> recommendations = new ArrayList<>();
+    private void readRecommendationStream(InputStream body, Consumer<String> onTitle) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(body, StandardCharsets.UTF_8));
+        SongTitleStream titles = responseParser.streamSongTitles(onTitle);
+        String line;
         
-        if (text == null || text.isEmpty()) {
-            logger.warn("Empty text provided for regex parsing");
-            return recommendations;
+        while ((line = reader.readLine()) != null) {
+            if (line.startsWith("data:")) {
+                titles.acceptChunk(line.substring("data:".length()).trim());
+            }
         }
         
-        try {
-            logger.info("Parsing recommendations with regex from {} characters of text", text.length());
-            
-            // Pattern 1: Look for JSON-like objects with song_title
-            Pattern pattern = Pattern.compile("\"song_title\"\\s*:\\s*\"([^\"]+)\"");
-            Matcher matcher = pattern.matcher(text);
+        // Picks up titles the text only gave away once it was complete, such as a plain list
+        titles.finish();
+    }
+    
+    /**
+     * Builds the Gemini prompt for an initial or follow-up batch of recommendations
+     * 
+     * @param trackTitles List of track titles to base recommendations on
+     * @param cachedRecommendations Recommendations already cached for this key, or null
+     * @param customPrompt Optional custom prompt to influence recommendations
+     * @param recommendationsToGenerate Number of songs to ask for
+     * @return The prompt text
+     */
+    private String buildRecommendationPrompt(List<String> trackTitles, List<Map<String, String>> cachedRecommendations,
+            String customPrompt, int recommendationsToGenerate) {
+        
+        // Limit to at most 20 tracks to keep the prompt size reasonable
+        List<String> limitedTracks = trackTitles.stream().limit(20).collect(Collectors.toList());
+        
+        // Create the playlist tracks list as a string
+        String tracksString = limitedTracks.stream()
+                .map(title -> "- " + title)
+                .collect(Collectors.joining("\n"));
+        
+        // Build the prompt differently based on whether this is an initial or follow-up request
+        String prompt;
+        
+        if (cachedRecommendations == null || cachedRecommendations.isEmpty()) {
+            prompt = "Based on the following playlist tracks:\n\n" + 
+                    tracksString + 
+                    "\n\nRecommend " + recommendationsToGenerate + " new songs that would fit well with this playlist. ";
             
-            while (matcher.find()) {
-                Map<String, String> songInfo = new LinkedHashMap<>();
-                songInfo.put("song_title", matcher.group(1));
-                songInfo.put("artist", ""); // Empty placeholder
-                recommendations.add(songInfo);
+            // Add custom prompt instruction if provided
+            if (customPrompt != null && !customPrompt.trim().isEmpty()) {
+                prompt += "I want you to " + customPrompt.trim() + ". ";
             }
             
-            // If we found recommendations with the first pattern, return them
-            if (!recommendations.isEmpty()) {
-                logger.info("Found {} recommendations using JSON-like pattern", recommendations.size());
-                return recommendations;
+            prompt += """
+                    Only provide the song titles without artists. The recommendations should feel cohesive with the existing playlist.
+                    DO NOT recommend songs that are already in the input list.
+                    
+                    Your response should be a JSON array with objects containing only 'song_title' field. For example:
+                    [
+                        { "song_title": "Example Song" },
+                        { "song_title": "Another Song" }
+                    ]""";
+        } else {
+            // Follow-up request - ask for more recommendations, avoiding previous ones
+            String previousRecommendations = cachedRecommendations.stream()
+                .map(rec -> rec.get("song_title"))
+                .collect(Collectors.joining("\n- ", "- ", ""));
+            
+            prompt = "Based on the following playlist tracks:\n\n" + 
+                    tracksString + 
+                    "\n\nI already recommended these songs:\n\n" +
+                    previousRecommendations +
+                    "\n\nRecommend " + recommendationsToGenerate + " MORE new songs that would fit well with this playlist. ";
+            
+            // Add custom prompt instruction if provided
+            if (customPrompt != null && !customPrompt.trim().isEmpty()) {
+                prompt += "I want you to " + customPrompt.trim() + ". ";
             }
             
-            // Pattern 2: Look for lines with numbered items
-            String[] lines = text.split("\n");
-            for (String line : lines) {
-                line = line.trim();
-                if (line.isEmpty() || line.startsWith("{") || line.startsWith("[") || 
-                    line.startsWith("}") || line.startsWith("]")) {
-                    continue;
-                }
-                
-                // Remove bullet points or numbers at the start
-                line = line.replaceAll("^\\d+\\.\\s*", "").replaceAll("^-\\s*", "").trim();
+            prompt += """
+                    Only provide the song titles without artists. The recommendations should feel cohesive with the existing playlist.
+                    DO NOT recommend songs that are already in the input list or in the previously recommended songs list.
+                    
+                    Your response should be a JSON array with objects containing only 'song_title' field. For example:
+                    [
+                        { "song_title": "Example Song" },
+                        { "song_title": "Another Song" }
+                    ]""";
+        }
+        
+        return prompt;
+    }
+    
+    /**
+     * Builds the request body for a prompt, asking for a JSON array of song titles
+     * 
+     * @param prompt The prompt text
+     * @return The JSON request payload
+     */
+    private String buildGeminiPayload(String prompt) {
+        // Create the request payload using Jakarta JSON
+        JsonObjectBuilder payloadBuilder = Json.createObjectBuilder();
+        
+        // Build "contents" array
+        JsonArrayBuilder contentsBuilder = Json.createArrayBuilder();
+        JsonObjectBuilder contentItemBuilder = Json.createObjectBuilder();
+        
+        // Build "parts" array
+        JsonArrayBuilder partsBuilder = Json.createArrayBuilder();
+        JsonObjectBuilder partBuilder = Json.createObjectBuilder();
+        partBuilder.add("text", prompt);
+        partsBuilder.add(partBuilder);
+        
+        contentItemBuilder.add("parts", partsBuilder);
+        contentsBuilder.add(contentItemBuilder);
+        payloadBuilder.add("contents", contentsBuilder);
+        
+        // Build "generationConfig" object
+        JsonObjectBuilder generationConfigBuilder = Json.createObjectBuilder();
+        generationConfigBuilder.add("response_mime_type", "application/json");
+        
+        // Build "response_schema" object
+        JsonObjectBuilder responseSchemaBuilder = Json.createObjectBuilder();
+        responseSchemaBuilder.add("type", "ARRAY");
+        
+        // Build "items" object
+        JsonObjectBuilder itemsBuilder = Json.createObjectBuilder();
+        itemsBuilder.add("type", "OBJECT");
+        
+        // Build "properties" object
+        JsonObjectBuilder propertiesBuilder = Json.createObjectBuilder();
+        
+        // Build "song_title" object (no artist property now)
+        JsonObjectBuilder songTitleBuilder = Json.createObjectBuilder();
+        songTitleBuilder.add("type", "STRING");
+        
+        propertiesBuilder.add("song_title", songTitleBuilder);
+        itemsBuilder.add("properties", propertiesBuilder);
+        responseSchemaBuilder.add("items", itemsBuilder);
+        
+        generationConfigBuilder.add("response_schema", responseSchemaBuilder);
+        
+        // Set a lower temperature for more predictable responses
+        generationConfigBuilder.add("temperature", 0.2);
+        
+        payloadBuilder.add("generationConfig", generationConfigBuilder);
+        
+        // Build the final payload
+        JsonObject payload = payloadBuilder.build();
+        return payload.toString();
+    }
+    
+    /**
+     * Adds a newly generated batch to the cache, skipping songs that are already cached
+     * 
+     * @param playlistId Playlist ID or cache key for storing recommendations
+     * @param cachedRecommendations Recommendations already cached for this key, or null
+     * @param newRecommendations The newly generated recommendations
+     */
+    private void storeGeneratedRecommendations(String playlistId, List<Map<String, String>> cachedRecommendations,
+            List<Map<String, String>> newRecommendations) {
+        if (cachedRecommendations == null) {
+            // First time, just store the new recommendations
+            redisService.cacheRecommendations(playlistId, newRecommendations);
+            
+            cacheMetricsService.incrementGeneration(playlistId, false);
+            cacheMetricsService.recordCachedSize(playlistId, newRecommendations.size());
+        } else {
+            // Append only the recommendations we haven't already cached
+            List<Map<String, String>> uniqueRecommendations = new ArrayList<>();
+            
+            // Filter out duplicates
+            for (Map<String, String> newRec : newRecommendations) {
+                boolean isDuplicate = cachedRecommendations.stream().anyMatch(existing -> 
+                    existing.get("song_title").equalsIgnoreCase(newRec.get("song_title"))
+                ) || uniqueRecommendations.stream().anyMatch(existing -> 
+                    existing.get("song_title").equalsIgnoreCase(newRec.get("song_title"))
+                );
                 
-                // If line has any content after cleaning, add it as a song title
-                if (!line.isEmpty()) {
-                    Map<String, String> songInfo = new LinkedHashMap<>();
-                    songInfo.put("song_title", line);
-                    songInfo.put("artist", ""); // Empty placeholder
-                    recommendations.add(songInfo);
+                if (!isDuplicate) {
+                    uniqueRecommendations.add(newRec);
                 }
             }
             
-            logger.info("Found {} recommendations using line-by-line parsing", recommendations.size());
+            // Append to the cached list
+            redisService.appendRecommendations(playlistId, uniqueRecommendations);
             
-        } catch (Exception e) {
-            logger.error("Error during regex parsing: {}", e.getMessage());
+            cacheMetricsService.incrementGeneration(playlistId, true);
+            cacheMetricsService.recordCachedSize(playlistId, cachedRecommendations.size() + uniqueRecommendations.size());
         }
+    }
+    
+    /**
+     * Counts a cache hit and, for the first hit since the latest batch was stored,
+     * records how long the batch waited to be read
+     * 
+     * @param playlistId Playlist ID or cache key
+     */
+    private void recordCacheHit(String playlistId) {
+        cacheMetricsService.incrementLookup(playlistId, true);
         
-        return recommendations;
+        Long generatedAt = redisService.takeGeneratedAt(playlistId);
+        if (generatedAt != null) {
+            cacheMetricsService.recordTimeToFirstHit(playlistId, System.currentTimeMillis() - generatedAt);
+        }
     }
 
     /**
@@ -724,13 +1095,28 @@ public class GeminiService {
      * @param playlistId The ID of the playlist to clear recommendations for
      */
     public void clearRecommendationsCache(String playlistId) {
-        if (playlistId != null) {
-            redisService.clearCachedRecommendations(playlistId);
+        if (playlistId != null && redisService.clearCachedRecommendations(playlistId)) {
+            cacheMetricsService.incrementInvalidation(playlistId, "clear_cache");
         }
     }
 
-    public void clearAllRecommendationsCache() {
-        redisService.clearAllCaches();
+    /**
+     * Clears every cached recommendation list and custom prompt in the background
+     * 
+     * @return Future completed with the number of deleted keys
+     */
+    public CompletableFuture<Long> clearAllRecommendationsCache() {
+        return redisService.clearAllCaches();
+    }
+    
+    /**
+     * Clears the top tracks recommendation caches of a single user in the background
+     * 
+     * @param userId The user whose caches should be cleared
+     * @return Future completed with the number of deleted keys
+     */
+    public CompletableFuture<Long> clearUserRecommendationsCache(String userId) {
+        return redisService.clearUserCaches(userId);
     }
     
     /**
@@ -755,22 +1141,8 @@ public class GeminiService {
         
         logger.info("Extracted {} track titles from top tracks", trackTitles.size());
         
-        // Check if the custom prompt has changed
-        String cachedPrompt = redisService.getCachedCustomPrompt(cacheKey);
-        boolean promptChanged = (customPrompt != null && !customPrompt.equals(cachedPrompt)) || 
-                            (customPrompt == null && cachedPrompt != null);
-        
-        // If the prompt has changed, clear the cache for this key
-        if (promptChanged) {
-            redisService.clearCachedRecommendations(cacheKey);
-            
-            // Update the cached prompt
-            if (customPrompt != null && !customPrompt.trim().isEmpty()) {
-                redisService.cacheCustomPrompt(cacheKey, customPrompt);
-            } else {
-                redisService.clearCachedCustomPrompt(cacheKey);
-            }
-        }
+        // Clear the cache for this key if the custom prompt has changed
+        resetCacheIfPromptChanged(cacheKey, customPrompt);
         
         // Get recommendations based on these tracks
         List<Map<String, String>> recommendations = getGeminiSongRecommendations(
@@ -0,0 +1,127 @@
+package vttp.final_project.services;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.stereotype.Service;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+
+import jakarta.annotation.PostConstruct;
+
+@Service
+public class PreviewUrlCacheService {
+
+    private static final Logger logger = LoggerFactory.getLogger(PreviewUrlCacheService.class);
+
+    // Redis key prefix
+    private static final String PREVIEW_URLS_KEY_PREFIX = "preview_urls:";
+
+    // Metric tag for this cache
+    private static final String CACHE_NAME = "preview_urls";
+
+    // TTL for tracks with preview URLs (7 days)
+    @Value("${app.cache.preview.ttl:604800}")
+    private long previewTtl;
+
+    // TTL for tracks known to have no preview (6 hours)
+    @Value("${app.cache.preview.negative-ttl:21600}")
+    private long negativeTtl;
+
+    @Value("${app.cache.preview.local.max-size:10000}")
+    private long localMaxSize;
+
+    @Value("${app.cache.preview.local.ttl:600}")
+    private long localTtl;
+
+    @Autowired
+    private RedisTemplate<String, Object> redisTemplate;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @Autowired
+    private ApiMetricsService apiMetricsService;
+
+    // Hot layer in front of Redis, holds empty lists for negative entries too
+    private Cache<String, List<String>> localCache;
+
+    @PostConstruct
+    public void init() {
+        localCache = Caffeine.newBuilder()
+                .maximumSize(localMaxSize)
+                .expireAfterWrite(Duration.ofSeconds(localTtl))
+                .build();
+    }
+
+    /**
+     * Looks up the preview URLs for a track
+     *
+     * @param trackId The Spotify track ID
+     * @return The cached preview URLs (empty if the track is known to have none), or null on a miss
+     */
+    public List<String> getPreviewUrls(String trackId) {
+        List<String> previewUrls = localCache.getIfPresent(trackId);
+
+        if (previewUrls == null) {
+            previewUrls = readFromRedis(trackId);
+            if (previewUrls != null) {
+                localCache.put(trackId, previewUrls);
+            }
+        }
+
+        if (previewUrls == null) {
+            apiMetricsService.incrementCacheCounter(CACHE_NAME, "miss");
+        } else if (previewUrls.isEmpty()) {
+            apiMetricsService.incrementCacheCounter(CACHE_NAME, "negative_hit");
+        } else {
+            apiMetricsService.incrementCacheCounter(CACHE_NAME, "hit");
+        }
+
+        return previewUrls;
+    }
+
+    /**
+     * Stores the scraped preview URLs for a track. An empty list is cached
+     * as "no preview available" with the shorter negative TTL.
+     *
+     * @param trackId The Spotify track ID
+     * @param previewUrls The preview URLs found for the track
+     */
+    public void cachePreviewUrls(String trackId, List<String> previewUrls) {
+        List<String> urls = List.copyOf(previewUrls);
+        localCache.put(trackId, urls);
+
+        long ttl = urls.isEmpty() ? negativeTtl : previewTtl;
+
+        try {
+            String previewUrlsJson = objectMapper.writeValueAsString(urls);
+            redisTemplate.opsForValue().set(PREVIEW_URLS_KEY_PREFIX + trackId, previewUrlsJson, ttl, TimeUnit.SECONDS);
+        } catch (Exception e) {
+            logger.warn("Error caching preview URLs for track {}: {}", trackId, e.getMessage());
+        }
+    }
+
+    private List<String> readFromRedis(String trackId) {
+        try {
+            String previewUrlsJson = (String) redisTemplate.opsForValue().get(PREVIEW_URLS_KEY_PREFIX + trackId);
+            if (previewUrlsJson == null) {
+                return null;
+            }
+            return objectMapper.readValue(previewUrlsJson, new TypeReference<List<String>>() {});
+        } catch (Exception e) {
+            // Treat an unreachable or corrupt entry as a miss so the caller scrapes instead
+            logger.warn("Error reading cached preview URLs for track {}: {}", trackId, e.getMessage());
+            return null;
+        }
+    }
+}
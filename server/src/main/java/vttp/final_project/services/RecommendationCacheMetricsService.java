@@ -0,0 +1,128 @@
+package vttp.final_project.services;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.springframework.stereotype.Service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+/**
+ * Metrics for the Redis recommendation cache, tagged by source (playlist or top_tracks)
+ * so TTLs can be sized per source and the Gemini calls saved by the cache can be seen.
+ */
+@Service
+public class RecommendationCacheMetricsService {
+
+    private static final String SOURCE_PLAYLIST = "playlist";
+    private static final String SOURCE_TOP_TRACKS = "top_tracks";
+
+    // Top tracks cache keys are <userId>_top_tracks_<timeRange>, everything else is a playlist ID
+    private static final String TOP_TRACKS_KEY_MARKER = "_top_tracks_";
+
+    private final MeterRegistry meterRegistry;
+    private final Map<String, Counter> lookupCounters = new ConcurrentHashMap<>();
+    private final Map<String, Counter> invalidationCounters = new ConcurrentHashMap<>();
+    private final Map<String, Counter> generationCounters = new ConcurrentHashMap<>();
+    private final Map<String, DistributionSummary> sizeSummaries = new ConcurrentHashMap<>();
+    private final Map<String, Timer> firstHitTimers = new ConcurrentHashMap<>();
+
+    public RecommendationCacheMetricsService(MeterRegistry meterRegistry) {
+        this.meterRegistry = meterRegistry;
+    }
+
+    /**
+     * Increment counter for a cache lookup
+     * @param cacheKey The playlist ID or cache key
+     * @param hit true if the requested page was served from the cache
+     */
+    public void incrementLookup(String cacheKey, boolean hit) {
+        String source = sourceOf(cacheKey);
+        String result = hit ? "hit" : "miss";
+        lookupCounters.computeIfAbsent(source + ":" + result, key ->
+            Counter.builder("app.recommendations.cache.requests")
+                .description("Recommendation cache lookups by result")
+                .tag("source", source)
+                .tag("result", result)
+                .register(meterRegistry)
+        ).increment();
+    }
+
+    /**
+     * Increment counter for cached recommendations being thrown away
+     * @param cacheKey The playlist ID or cache key
+     * @param reason Why the cache was cleared (prompt_change, clear_cache)
+     */
+    public void incrementInvalidation(String cacheKey, String reason) {
+        String source = sourceOf(cacheKey);
+        invalidationCounters.computeIfAbsent(source + ":" + reason, key ->
+            Counter.builder("app.recommendations.cache.invalidations")
+                .description("Recommendation cache invalidations by reason")
+                .tag("source", source)
+                .tag("reason", reason)
+                .register(meterRegistry)
+        ).increment();
+    }
+
+    /**
+     * Increment counter for a batch generated into the cache
+     * @param cacheKey The playlist ID or cache key
+     * @param loadMore true if the batch was appended to an existing list ("load more")
+     */
+    public void incrementGeneration(String cacheKey, boolean loadMore) {
+        String source = sourceOf(cacheKey);
+        String type = loadMore ? "load_more" : "initial";
+        generationCounters.computeIfAbsent(source + ":" + type, key ->
+            Counter.builder("app.recommendations.cache.generations")
+                .description("Recommendation batches generated into the cache")
+                .tag("source", source)
+                .tag("type", type)
+                .register(meterRegistry)
+        ).increment();
+    }
+
+    /**
+     * Record the length of a cached list after a batch was stored
+     * @param cacheKey The playlist ID or cache key
+     * @param size Number of recommendations now cached
+     */
+    public void recordCachedSize(String cacheKey, long size) {
+        String source = sourceOf(cacheKey);
+        sizeSummaries.computeIfAbsent(source, key ->
+            DistributionSummary.builder("app.recommendations.cache.size")
+                .description("Number of recommendations in a cached list after a batch is stored")
+                .baseUnit("recommendations")
+                .tag("source", source)
+                .publishPercentileHistogram()
+                .minimumExpectedValue(1.0)
+                .maximumExpectedValue(1000.0)
+                .register(meterRegistry)
+        ).record(size);
+    }
+
+    /**
+     * Record the time between a batch being stored and the first cache hit on it
+     * @param cacheKey The playlist ID or cache key
+     * @param elapsedMs Time since the batch was stored in milliseconds
+     */
+    public void recordTimeToFirstHit(String cacheKey, long elapsedMs) {
+        String source = sourceOf(cacheKey);
+        firstHitTimers.computeIfAbsent(source, key ->
+            Timer.builder("app.recommendations.cache.first_hit")
+                .description("Time from storing a generated batch to its first cache hit")
+                .tag("source", source)
+                .publishPercentileHistogram()
+                .maximumExpectedValue(Duration.ofDays(1))
+                .register(meterRegistry)
+        ).record(Math.max(0, elapsedMs), TimeUnit.MILLISECONDS);
+    }
+
+    private String sourceOf(String cacheKey) {
+        return cacheKey != null && cacheKey.contains(TOP_TRACKS_KEY_MARKER) ? SOURCE_TOP_TRACKS : SOURCE_PLAYLIST;
+    }
+}
@@ -0,0 +1,278 @@
+package vttp.final_project.services;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Service;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import vttp.final_project.models.SpotifyAuthContext;
+import vttp.final_project.models.SpotifyDTO.PlaylistDTO;
+import vttp.final_project.models.SpotifyDTO.PlaylistsDTO;
+
+/**
+ * Warms the recommendation cache for a user's top playlists and top tracks after login,
+ * so the first view doesn't wait on Gemini. Warm-up runs on a small fixed pool with a
+ * bounded queue, each user gets a limited number of tasks, and work still queued for a
+ * user is cancelled when they log out. Warm-up is skipped while Gemini's circuit is not closed.
+ */
+@Service
+public class RecommendationWarmupService {
+
+    private static final Logger logger = LoggerFactory.getLogger(RecommendationWarmupService.class);
+
+    private static final String[] TOP_TRACKS_TIME_RANGES = { "short_term", "medium_term", "long_term" };
+
+    @Value("${app.warmup.enabled:false}")
+    private boolean enabled;
+
+    // Number of the user's playlists to warm
+    @Value("${app.warmup.playlists:5}")
+    private int playlistCount;
+
+    // Concurrent warm-up generations across all users
+    @Value("${app.warmup.workers:2}")
+    private int workers;
+
+    // Warm-up tasks that may wait for a worker across all users, extra tasks are dropped
+    @Value("${app.warmup.queue-capacity:100}")
+    private int queueCapacity;
+
+    // Warm-up tasks queued per login, including the one that lists the playlists
+    @Value("${app.warmup.per-user-limit:10}")
+    private int perUserLimit;
+
+    // Recommendations requested per warmed key, matches the first page the client asks for
+    @Value("${app.warmup.page-size:10}")
+    private int pageSize;
+
+    @Autowired
+    private SpotifyService spotifyService;
+
+    @Autowired
+    private SpotifyAuthService spotifyAuthService;
+
+    @Autowired
+    private GeminiService geminiService;
+
+    @Autowired
+    private GeminiRedisService redisService;
+
+    @Autowired
+    private GeminiCircuitBreaker circuitBreaker;
+
+    private ThreadPoolExecutor warmupExecutor;
+
+    // Warm-up of each user with queued or running tasks, so it can be cancelled on logout.
+    // The entry is removed once the user's last task has finished.
+    private final Map<String, UserWarmup> userTasks = new ConcurrentHashMap<>();
+
+    /**
+     * Tasks submitted for one login. Access is synchronized on the instance.
+     */
+    private static final class UserWarmup {
+        private final List<Future<?>> tasks = new ArrayList<>();
+        // Submitted tasks that have not finished yet
+        private int pending;
+    }
+
+    @PostConstruct
+    public void init() {
+        AtomicInteger threadCount = new AtomicInteger();
+        warmupExecutor = new ThreadPoolExecutor(workers, workers, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity),
+                runnable -> {
+                    Thread thread = new Thread(runnable, "recommendation-warmup-" + threadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+    }
+
+    @PreDestroy
+    public void shutdownWarmupExecutor() {
+        warmupExecutor.shutdownNow();
+    }
+
+    /**
+     * Queues cache warm-up for a user who just logged in. Does nothing if warm-up is disabled.
+     *
+     * @param userId The user ID the Spotify tokens are stored under
+     */
+    public void scheduleWarmup(String userId) {
+        if (!enabled) {
+            return;
+        }
+
+        // Replace anything left over from a previous login with the same ID
+        cancelWarmup(userId);
+        userTasks.put(userId, new UserWarmup());
+        submit(userId, () -> planWarmup(userId));
+    }
+
+    /**
+     * Cancels queued warm-up work for a user. A generation already talking to Gemini
+     * is left to finish so its result still reaches the cache.
+     *
+     * @param userId The user ID the Spotify tokens are stored under
+     */
+    public void cancelWarmup(String userId) {
+        UserWarmup warmup = userTasks.remove(userId);
+        if (warmup == null) {
+            return;
+        }
+
+        int cancelled = 0;
+        synchronized (warmup) {
+            for (Future<?> task : warmup.tasks) {
+                if (task.cancel(false)) {
+                    cancelled++;
+                }
+            }
+        }
+
+        // Drop the cancelled tasks from the queue now instead of when a worker reaches them
+        warmupExecutor.purge();
+
+        if (cancelled > 0) {
+            logger.info("Cancelled {} warm-up tasks for user {}", cancelled, userId);
+        }
+    }
+
+    private void planWarmup(String userId) {
+        Optional<SpotifyAuthContext> auth = spotifyAuthService.resolveAuthContext(userId);
+        if (auth.isEmpty()) {
+            logger.info("Skipping warm-up for user {}: no valid token", userId);
+            return;
+        }
+
+        ResponseEntity<?> playlistsResponse = spotifyService.getUserPlaylists(auth.get(), playlistCount, 0);
+
+        if (!playlistsResponse.getStatusCode().is2xxSuccessful() || playlistsResponse.getBody() == null) {
+            logger.info("Skipping playlist warm-up for user {}: {}", userId, playlistsResponse.getStatusCode());
+        } else {
+            PlaylistsDTO playlists = (PlaylistsDTO) playlistsResponse.getBody();
+            if (playlists.getItems() != null) {
+                for (PlaylistDTO playlist : playlists.getItems()) {
+                    if (playlist != null && playlist.getId() != null) {
+                        String playlistId = playlist.getId();
+                        submit(userId, () -> warmPlaylist(userId, playlistId));
+                    }
+                }
+            }
+        }
+
+        for (String timeRange : TOP_TRACKS_TIME_RANGES) {
+            submit(userId, () -> warmTopTracks(userId, timeRange));
+        }
+    }
+
+    private void warmPlaylist(String userId, String playlistId) {
+        if (!needsWarmup(playlistId)) {
+            return;
+        }
+
+        // Resolved per task, the token may have been refreshed since the warm-up was planned
+        Optional<SpotifyAuthContext> auth = spotifyAuthService.resolveAuthContext(userId);
+        if (auth.isEmpty()) {
+            return;
+        }
+
+        ResponseEntity<?> playlistResponse = spotifyService.getPlaylistById(auth.get(), playlistId);
+        if (!playlistResponse.getStatusCode().is2xxSuccessful()) {
+            return;
+        }
+
+        logger.info("Warming recommendations for playlist {} of user {}", playlistId, userId);
+        geminiService.getSongRecommendationsForPlaylist(playlistResponse.getBody(), pageSize, 0, null);
+    }
+
+    private void warmTopTracks(String userId, String timeRange) {
+        // Same cache key the top tracks endpoint uses
+        String cacheKey = userId + "_top_tracks_" + timeRange;
+        if (!needsWarmup(cacheKey)) {
+            return;
+        }
+
+        Optional<SpotifyAuthContext> auth = spotifyAuthService.resolveAuthContext(userId);
+        if (auth.isEmpty()) {
+            return;
+        }
+
+        ResponseEntity<?> topTracksResponse = spotifyService.getUserTopTracks(auth.get(), timeRange, 20, 0);
+        if (!topTracksResponse.getStatusCode().is2xxSuccessful()) {
+            return;
+        }
+
+        logger.info("Warming top tracks recommendations for user {} ({})", userId, timeRange);
+        geminiService.getSongRecommendationsForTopTracks(topTracksResponse.getBody(), cacheKey, pageSize, 0, null);
+    }
+
+    /**
+     * Only cold keys without a custom prompt are warmed, warming with the default
+     * prompt would otherwise clear recommendations generated for a custom one
+     */
+    private boolean needsWarmup(String cacheKey) {
+        if (circuitBreaker.getState() != GeminiCircuitBreaker.State.CLOSED) {
+            return false;
+        }
+        return redisService.getCachedRecommendationCount(cacheKey) == 0
+                && redisService.getCachedCustomPrompt(cacheKey) == null;
+    }
+
+    private void submit(String userId, Runnable task) {
+        UserWarmup warmup = userTasks.get(userId);
+        if (warmup == null) {
+            // The user logged out (or warm-up finished) before this task was queued
+            return;
+        }
+
+        synchronized (warmup) {
+            if (warmup.tasks.size() >= perUserLimit) {
+                logger.debug("Warm-up limit reached for user {}", userId);
+                return;
+            }
+
+            try {
+                warmup.pending++;
+                warmup.tasks.add(warmupExecutor.submit(() -> runTask(userId, warmup, task)));
+            } catch (RejectedExecutionException e) {
+                // Queue is full, warm-up is best effort so just drop it
+                warmup.pending--;
+                logger.info("Warm-up queue full, dropping task for user {}", userId);
+            }
+        }
+    }
+
+    private void runTask(String userId, UserWarmup warmup, Runnable task) {
+        try {
+            // Skip work for a login that has been cancelled or replaced since it was queued
+            if (userTasks.get(userId) == warmup) {
+                task.run();
+            }
+        } catch (Exception e) {
+            logger.warn("Warm-up task failed for user {}: {}", userId, e.getMessage());
+        } finally {
+            synchronized (warmup) {
+                // Tasks queued by this one were counted before it finished, so 0 means the warm-up is done
+                if (--warmup.pending == 0) {
+                    userTasks.remove(userId, warmup);
+                }
+            }
+        }
+    }
+}
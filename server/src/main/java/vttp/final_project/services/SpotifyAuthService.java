@@ -3,15 +3,24 @@ package vttp.final_project.services;
 import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
 import java.security.SecureRandom;
+import java.time.Duration;
 import java.time.Instant;
 import java.util.Base64;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.core.script.RedisScript;
 import org.springframework.http.HttpEntity;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
@@ -20,8 +29,10 @@ import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Service;
 import org.springframework.util.LinkedMultiValueMap;
 import org.springframework.util.MultiValueMap;
+import org.springframework.web.client.HttpClientErrorException;
 import org.springframework.web.client.RestTemplate;
 
+import vttp.final_project.models.SpotifyAuthContext;
 import vttp.final_project.models.SpotifyTokens;
 import vttp.final_project.repositories.SpotifyTokenRepository;
 
@@ -36,6 +47,10 @@ public class SpotifyAuthService {
     
     @Value("${spotify.redirect.uri}")
     private String redirectUri;
+    
+    // Overridden to point at a local stand-in for load testing
+    @Value("${app.spotify.accounts-base-url:https://accounts.spotify.com}")
+    private String accountsBaseUrl;
 
     @Autowired
     private SpotifyTokenRepository tokenRepository;
@@ -43,9 +58,33 @@ public class SpotifyAuthService {
     @Autowired
     private TokenEncryptionService encryptionService;
 
-    RestTemplate restTemplate = new RestTemplate();
+    @Autowired
+    private AccessTokenCacheService accessTokenCache;
+
+    @Autowired
+    @Qualifier("spotifyAccountsRestTemplate")
+    private RestTemplate restTemplate;
     
     private static final Logger logger = LoggerFactory.getLogger(SpotifyAuthService.class);
+    
+    // Redis lock serializing token refreshes for a user across nodes
+    private static final String REFRESH_LOCK_KEY_PREFIX = "token_refresh_lock:";
+    private static final long REFRESH_LOCK_POLL_INTERVAL_MS = 100;
+    
+    // Deletes the lock only if it still belongs to the caller
+    private static final RedisScript<Long> RELEASE_REFRESH_LOCK_SCRIPT = new DefaultRedisScript<>(
+            "if redis.call('get', KEYS[1]) == ARGV[1] then return redis.call('del', KEYS[1]) else return 0 end",
+            Long.class);
+    
+    // How long a node may hold the refresh lock, and how long others wait for it
+    @Value("${app.spotify.refresh-lock-ttl:10000}")
+    private long refreshLockTtlMs;
+    
+    @Autowired
+    private RedisTemplate<String, Object> redisTemplate;
+    
+    // Refreshes currently running in this JVM, keyed by user ID
+    private final ConcurrentHashMap<String, CompletableFuture<Optional<String>>> inFlightRefreshes = new ConcurrentHashMap<>();
 
     public String generateCodeVerifier() {
         SecureRandom secureRandom = new SecureRandom();
@@ -67,7 +106,7 @@ public class SpotifyAuthService {
     }
     
     public String getAuthorizationUrl(String codeChallenge, String state) {
-        return "https://accounts.spotify.com/authorize" +
+        return accountsBaseUrl + "/authorize" +
                "?client_id=" + clientId +
                "&response_type=code" +
                "&redirect_uri=" + redirectUri +
@@ -99,7 +138,7 @@ public class SpotifyAuthService {
         try {
             logger.info("Sending token request to Spotify API...");
             ResponseEntity<Map> response = restTemplate.postForEntity(
-                    "https://accounts.spotify.com/api/token",
+                    accountsBaseUrl + "/api/token",
                     request,
                     Map.class
             );
@@ -144,7 +183,7 @@ public class SpotifyAuthService {
         HttpEntity<MultiValueMap<String, String>> request = new HttpEntity<>(body, headers);
         
         ResponseEntity<Map> response = restTemplate.postForEntity(
-                "https://accounts.spotify.com/api/token",
+                accountsBaseUrl + "/api/token",
                 request,
                 Map.class
         );
@@ -160,7 +199,8 @@ public class SpotifyAuthService {
             if (tokenResponse.containsKey("refresh_token")) {
                 tokens.setRefreshToken(encryptionService.encrypt((String) tokenResponse.get("refresh_token")));
             } else {
-                tokens.setRefreshToken(refreshToken);
+                // Upgrade a refresh token stored in the old format while we're saving anyway
+                tokens.setRefreshToken(encryptionService.reencryptIfLegacy(refreshToken));
             }
             
             Integer expiresIn = (Integer) tokenResponse.get("expires_in");
@@ -176,6 +216,12 @@ public class SpotifyAuthService {
     }
     
     public Optional<String> getValidAccessToken(String userId) {
+        // Serve the decrypted token from memory while it is not due for refresh
+        String cachedAccessToken = accessTokenCache.getAccessToken(userId);
+        if (cachedAccessToken != null) {
+            return Optional.of(cachedAccessToken);
+        }
+        
         Optional<SpotifyTokens> tokensOpt = tokenRepository.findByUserId(userId);
         
         if (tokensOpt.isEmpty()) {
@@ -184,26 +230,158 @@ public class SpotifyAuthService {
         
         SpotifyTokens tokens = tokensOpt.get();
         
-        // If token is expired or about to expire, refresh it
+        // If token is expired or about to expire, refresh it (once per user, however many requests ask)
         if (tokens.isAlmostExpired()) {
+            return refreshAccessTokenOnce(userId);
+        }
+        
+        // Return the existing valid token
+        return Optional.of(decryptAndCache(tokens));
+    }
+    
+    /**
+     * Resolves a user's credentials outside of a request, e.g. for background jobs
+     * 
+     * @param userId The user ID the Spotify tokens are stored under
+     * @return The auth context, or empty if the user has no usable tokens
+     */
+    public Optional<SpotifyAuthContext> resolveAuthContext(String userId) {
+        return getValidAccessToken(userId).map(accessToken -> new SpotifyAuthContext(userId, accessToken));
+    }
+    
+    /**
+     * Refreshes a user's access token, sharing one refresh between concurrent callers.
+     * Callers in this JVM join the in-flight future and nodes are serialized by a Redis lock.
+     */
+    private Optional<String> refreshAccessTokenOnce(String userId) {
+        CompletableFuture<Optional<String>> refresh = new CompletableFuture<>();
+        CompletableFuture<Optional<String>> inFlight = inFlightRefreshes.putIfAbsent(userId, refresh);
+        
+        if (inFlight != null) {
+            logger.debug("Waiting for in-flight token refresh for user {}", userId);
+            return inFlight.join();
+        }
+        
+        try {
+            Optional<String> accessToken = refreshWithLock(userId);
+            refresh.complete(accessToken);
+            return accessToken;
+        } catch (RuntimeException e) {
+            logger.warn("Token refresh failed for user {}: {}", userId, e.getMessage());
+            refresh.complete(Optional.empty());
+            return Optional.empty();
+        } finally {
+            inFlightRefreshes.remove(userId, refresh);
+        }
+    }
+    
+    private Optional<String> refreshWithLock(String userId) {
+        String lockToken = UUID.randomUUID().toString();
+        long deadline = System.currentTimeMillis() + refreshLockTtlMs;
+        
+        while (!tryAcquireRefreshLock(userId, lockToken)) {
+            // Another node is refreshing, pick up its result from the database
+            Optional<SpotifyTokens> tokensOpt = tokenRepository.findByUserId(userId);
+            if (tokensOpt.isEmpty()) {
+                return Optional.empty();
+            }
+            if (!tokensOpt.get().isAlmostExpired()) {
+                return Optional.of(decryptAndCache(tokensOpt.get()));
+            }
+            
+            if (System.currentTimeMillis() >= deadline) {
+                logger.warn("Timed out waiting for token refresh lock for user {}", userId);
+                return Optional.empty();
+            }
+            
             try {
-                SpotifyTokens refreshedTokens = refreshAccessToken(userId, tokens.getRefreshToken());
-                refreshedTokens.setUserId(userId);
-                tokenRepository.save(refreshedTokens);
-                return Optional.of(encryptionService.decrypt(refreshedTokens.getAccessToken()));
-            } catch (Exception e) {
-                // If refresh fails, token might be invalid - remove it
-                tokenRepository.delete(userId);
+                Thread.sleep(REFRESH_LOCK_POLL_INTERVAL_MS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
                 return Optional.empty();
             }
         }
         
-        // Return the existing valid token
-        return Optional.of(encryptionService.decrypt(tokens.getAccessToken()));
+        try {
+            // The previous lock holder may have refreshed already
+            Optional<SpotifyTokens> tokensOpt = tokenRepository.findByUserId(userId);
+            if (tokensOpt.isEmpty()) {
+                return Optional.empty();
+            }
+            
+            SpotifyTokens tokens = tokensOpt.get();
+            if (!tokens.isAlmostExpired()) {
+                return Optional.of(decryptAndCache(tokens));
+            }
+            
+            SpotifyTokens refreshedTokens;
+            try {
+                refreshedTokens = refreshAccessToken(userId, tokens.getRefreshToken());
+            } catch (HttpClientErrorException e) {
+                if (isRefreshTokenRejected(e)) {
+                    // Spotify rejected the refresh token, it is no longer usable - remove it
+                    logger.warn("Spotify rejected refresh token for user {}: {}", userId, e.getStatusCode());
+                    deleteUserTokens(userId);
+                } else {
+                    // Throttled (429) or another client error, the refresh token is kept for the next try
+                    logger.warn("Token refresh for user {} failed with {}, keeping refresh token", userId, e.getStatusCode());
+                }
+                return Optional.empty();
+            }
+            
+            refreshedTokens.setUserId(userId);
+            tokenRepository.save(refreshedTokens);
+            return Optional.of(decryptAndCache(refreshedTokens));
+        } finally {
+            releaseRefreshLock(userId, lockToken);
+        }
+    }
+    
+    /**
+     * Whether a failed refresh means the refresh token itself is dead: 400 invalid_grant
+     * (revoked or expired) or 401. Other client errors such as 429 are worth retrying.
+     */
+    boolean isRefreshTokenRejected(HttpClientErrorException e) {
+        int status = e.getStatusCode().value();
+        if (status == HttpStatus.UNAUTHORIZED.value()) {
+            return true;
+        }
+        return status == HttpStatus.BAD_REQUEST.value() && e.getResponseBodyAsString().contains("invalid_grant");
+    }
+    
+    /**
+     * Takes the cross-node refresh lock for a user
+     * 
+     * @return true if the lock was acquired
+     */
+    boolean tryAcquireRefreshLock(String userId, String lockToken) {
+        Boolean acquired = redisTemplate.opsForValue()
+                .setIfAbsent(REFRESH_LOCK_KEY_PREFIX + userId, lockToken, Duration.ofMillis(refreshLockTtlMs));
+        return Boolean.TRUE.equals(acquired);
+    }
+    
+    void releaseRefreshLock(String userId, String lockToken) {
+        redisTemplate.execute(RELEASE_REFRESH_LOCK_SCRIPT, List.of(REFRESH_LOCK_KEY_PREFIX + userId), lockToken);
+    }
+    
+    private String decryptAndCache(SpotifyTokens tokens) {
+        String accessToken = encryptionService.decrypt(tokens.getAccessToken());
+        accessTokenCache.cacheAccessToken(tokens.getUserId(), accessToken, tokens.getAccessTokenExpiry());
+        return accessToken;
+    }
+    
+    public String decryptAccessToken(SpotifyTokens tokens) {
+        return encryptionService.decrypt(tokens.getAccessToken());
     }
     
     public void saveUserTokens(String userId, SpotifyTokens tokens) {
         tokens.setUserId(userId);
         tokenRepository.save(tokens);
+        accessTokenCache.invalidate(userId);
+    }
+    
+    public void deleteUserTokens(String userId) {
+        tokenRepository.delete(userId);
+        accessTokenCache.invalidate(userId);
     }
 }
@@ -6,6 +6,12 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -16,15 +22,21 @@ import org.jsoup.select.Elements;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.http.HttpEntity;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpMethod;
 import org.springframework.http.ResponseEntity;
+import org.springframework.context.annotation.Lazy;
 import org.springframework.stereotype.Service;
 import org.springframework.web.client.RestTemplate;
 
-import jakarta.servlet.http.HttpServletRequest;
+import jakarta.annotation.PreDestroy;
+import vttp.final_project.models.SpotifyAuthContext;
 
+// The Jsoup scraping path and its executor are created on the first preview lookup rather than at startup
+@Lazy
 @Service
 public class SpotifyPreviewService {
     
@@ -33,7 +45,15 @@ public class SpotifyPreviewService {
     @Autowired
     private SpotifyService spotifyService;
     
-    private RestTemplate restTemplate = new RestTemplate();
+    @Autowired
+    private PreviewUrlCacheService previewUrlCacheService;
+    
+    @Autowired
+    private TrackSearchCacheService trackSearchCacheService;
+    
+    @Autowired
+    @Qualifier("spotifyWebRestTemplate")
+    private RestTemplate restTemplate;
     
     // Regular expression to find preview URLs in Spotify page source
     private static final Pattern PREVIEW_URL_PATTERN = Pattern.compile("https://p\\.scdn\\.co/mp3-preview/[a-zA-Z0-9]+");
@@ -41,46 +61,63 @@ public class SpotifyPreviewService {
     // Maximum query length for Spotify search (conservative value)
     private static final int MAX_QUERY_LENGTH = 200;
     
+    // Maximum number of preview lookups running at once for a single batch
+    @Value("${app.preview.parallelism:8}")
+    private int previewParallelism;
+    
+    // Time allowed for one recommendation's search and scrape before it is dropped, counted
+    // from when the lookup gets a slot. Kept at or above the Spotify clients' read timeouts.
+    @Value("${app.preview.item-timeout:5000}")
+    private long previewItemTimeoutMs;
+    
+    private final ExecutorService previewExecutor = Executors.newVirtualThreadPerTaskExecutor();
+    
     /**
      * Search for a track on Spotify and get its preview URL
      * 
-     * @param request The HTTP request
+     * @param auth The user's resolved Spotify credentials
      * @param query The search query (song title and artist)
      * @return A map containing track information and preview URL
      */
-    public Map<String, Object> getTrackPreviewUrl(HttpServletRequest request, String query) {
+    public Map<String, Object> getTrackPreviewUrl(SpotifyAuthContext auth, String query) {
         logger.info("Searching for track, query length: {}", query != null ? query.length() : 0);
         
         // Sanitize the query to prevent excessively long requests
         String sanitizedQuery = sanitizeSearchQuery(query);
         logger.info("Sanitized query length: {}", sanitizedQuery.length());
         
-        // Step 1: Search Spotify API for the track
-        ResponseEntity<?> searchResponse = spotifyService.searchTracks(request, sanitizedQuery, 1);
-        
-        if (!searchResponse.getStatusCode().is2xxSuccessful()) {
-            logger.error("Failed to search for track: {}", sanitizedQuery);
-            return createErrorResponse("Failed to search for track on Spotify API");
-        }
-        
-        // Process the search results to get the track ID
-        Map<String, Object> searchResults = (Map<String, Object>) searchResponse.getBody();
-        List<Map<String, Object>> tracks = extractTracksFromSearchResults(searchResults);
+        // Step 1: Use the shared search cache, or search Spotify API for the track
+        Map<String, Object> track = trackSearchCacheService.getTopTrack(sanitizedQuery);
         
-        if (tracks.isEmpty()) {
-            logger.warn("No tracks found for query: {}", sanitizedQuery);
-            return createErrorResponse("No tracks found matching the query");
+        if (track == null) {
+            ResponseEntity<?> searchResponse = spotifyService.searchTracks(auth, sanitizedQuery, 1);
+            
+            if (!searchResponse.getStatusCode().is2xxSuccessful()) {
+                logger.error("Failed to search for track: {}", sanitizedQuery);
+                return createErrorResponse("Failed to search for track on Spotify API");
+            }
+            
+            // Process the search results to get the track ID
+            Map<String, Object> searchResults = (Map<String, Object>) searchResponse.getBody();
+            List<Map<String, Object>> tracks = extractTracksFromSearchResults(searchResults);
+            
+            if (tracks.isEmpty()) {
+                logger.warn("No tracks found for query: {}", sanitizedQuery);
+                return createErrorResponse("No tracks found matching the query");
+            }
+            
+            // Hand out the same trimmed track a cache hit would, so the response shape doesn't depend on the cache
+            track = trackSearchCacheService.cacheTopTrack(sanitizedQuery, tracks.get(0));
         }
         
-        Map<String, Object> track = tracks.get(0);
         String trackId = (String) track.get("id");
         Map<String, Object> externalUrls = (Map<String, Object>) track.get("external_urls");
         String spotifyUrl = (String) externalUrls.get("spotify");
         
         logger.info("Found track: {} with URL: {}", track.get("name"), spotifyUrl);
         
-        // Step 2: Scrape the Spotify web page to find preview URLs
-        Set<String> previewUrls = scrapePreviewUrls(spotifyUrl);
+        // Step 2: Use the cached preview URLs, or scrape the Spotify web page to find them
+        List<String> previewUrls = getPreviewUrls(trackId, spotifyUrl);
         
         if (previewUrls.isEmpty()) {
             logger.warn("No preview URLs found for track: {}", track.get("name"));
@@ -153,14 +190,21 @@ public class SpotifyPreviewService {
      * Get preview URLs for multiple tracks based on recommendations
      * Modified to handle recommendations with song titles only
      * 
-     * @param request The HTTP request
+     * Each recommendation is resolved on its own virtual thread, with at most
+     * app.preview.parallelism lookups in flight per batch. Results keep the
+     * input order and items that fail or exceed app.preview.item-timeout are dropped.
+     * A lookup that times out is interrupted, which aborts its blocking HTTP call and
+     * frees its slot for the rest of the batch.
+     * 
+     * @param auth The user's resolved Spotify credentials
      * @param recommendations List of recommended tracks with song_title
      * @return List of track information with preview URLs
      */
     public List<Map<String, Object>> getPreviewUrlsForRecommendations(
-            HttpServletRequest request, List<Map<String, String>> recommendations) {
+            SpotifyAuthContext auth, List<Map<String, String>> recommendations) {
         
-        List<Map<String, Object>> results = new ArrayList<>();
+        Semaphore permits = new Semaphore(previewParallelism);
+        List<CompletableFuture<Map<String, Object>>> futures = new ArrayList<>();
         
         for (Map<String, String> recommendation : recommendations) {
             String songTitle = recommendation.get("song_title");
@@ -170,45 +214,140 @@ public class SpotifyPreviewService {
                 continue;
             }
             
-            // Use song title as the query
-            String query = songTitle;
+            CompletableFuture<Map<String, Object>> lookup = new CompletableFuture<>();
+            previewExecutor.execute(() -> lookUpPreview(auth, recommendation, permits, lookup));
             
-            try {
-                Map<String, Object> result = getTrackPreviewUrl(request, query);
-                if ((boolean) result.get("success")) {
-                    // Add the original recommendation data
-                    result.put("recommendation", recommendation);
-                    
-                    // Extract artist from Spotify track for display (if available)
-                    if (result.containsKey("track")) {
-                        Map<String, Object> track = (Map<String, Object>) result.get("track");
-                        if (track.containsKey("artists") && track.get("artists") instanceof List) {
-                            List<Map<String, Object>> artists = (List<Map<String, Object>>) track.get("artists");
-                            if (!artists.isEmpty()) {
-                                String spotifyArtist = (String) artists.get(0).get("name");
-                                // Update the recommendation with the artist from Spotify
-                                ((Map<String, String>)result.get("recommendation")).put("artist", spotifyArtist);
-                            }
-                        }
-                    }
-                    
-                    results.add(result);
+            futures.add(lookup.exceptionally(e -> {
+                if (e instanceof TimeoutException) {
+                    logger.warn("Timed out after {} ms getting preview URL for: {}", previewItemTimeoutMs, songTitle);
                 } else {
-                    logger.warn("Failed to get preview URL for: {}", query);
+                    logger.error("Error getting preview URL for: {}", songTitle, e);
                 }
-            } catch (Exception e) {
-                logger.error("Error getting preview URL for: {}", query, e);
+                return null;
+            }));
+        }
+        
+        List<Map<String, Object>> results = new ArrayList<>();
+        
+        for (CompletableFuture<Map<String, Object>> future : futures) {
+            Map<String, Object> result = future.join();
+            if (result != null) {
+                results.add(result);
             }
         }
         
         return results;
     }
     
+    /**
+     * Runs one lookup of a batch on the calling virtual thread once a slot is free. The
+     * item timeout starts when the slot is taken, and on timeout this thread is interrupted
+     * so the slot is given back without waiting for the HTTP read timeout.
+     * 
+     * @param auth The user's resolved Spotify credentials
+     * @param recommendation The recommendation with song_title
+     * @param permits Slots shared by the batch
+     * @param lookup Completed with the result, or exceptionally on error or timeout
+     */
+    private void lookUpPreview(SpotifyAuthContext auth, Map<String, String> recommendation,
+            Semaphore permits, CompletableFuture<Map<String, Object>> lookup) {
+        
+        try {
+            permits.acquire();
+        } catch (InterruptedException e) {
+            lookup.completeExceptionally(e);
+            return;
+        }
+        
+        try {
+            Thread worker = Thread.currentThread();
+            lookup.orTimeout(previewItemTimeoutMs, TimeUnit.MILLISECONDS)
+                .whenComplete((result, e) -> {
+                    if (e instanceof TimeoutException) {
+                        worker.interrupt();
+                    }
+                });
+            
+            lookup.complete(getPreviewForRecommendation(auth, recommendation));
+        } catch (RuntimeException e) {
+            lookup.completeExceptionally(e);
+        } finally {
+            permits.release();
+        }
+    }
+    
+    /**
+     * Look up a single recommendation and attach its preview URLs
+     * 
+     * @param auth The user's resolved Spotify credentials
+     * @param recommendation The recommendation with song_title
+     * @return Track information with preview URLs, or null if the lookup failed
+     */
+    private Map<String, Object> getPreviewForRecommendation(
+            SpotifyAuthContext auth, Map<String, String> recommendation) {
+        
+        // Use song title as the query
+        String query = recommendation.get("song_title");
+        
+        Map<String, Object> result = getTrackPreviewUrl(auth, query);
+        if (!(boolean) result.get("success")) {
+            logger.warn("Failed to get preview URL for: {}", query);
+            return null;
+        }
+        
+        // Add the original recommendation data
+        result.put("recommendation", recommendation);
+        
+        // Extract artist from Spotify track for display (if available)
+        if (result.containsKey("track")) {
+            Map<String, Object> track = (Map<String, Object>) result.get("track");
+            if (track.containsKey("artists") && track.get("artists") instanceof List) {
+                List<Map<String, Object>> artists = (List<Map<String, Object>>) track.get("artists");
+                if (!artists.isEmpty()) {
+                    String spotifyArtist = (String) artists.get(0).get("name");
+                    // Update the recommendation with the artist from Spotify
+                    ((Map<String, String>)result.get("recommendation")).put("artist", spotifyArtist);
+                }
+            }
+        }
+        
+        return result;
+    }
+    
+    @PreDestroy
+    public void shutdownPreviewExecutor() {
+        previewExecutor.shutdownNow();
+    }
+    
+    /**
+     * Get preview URLs for a track from the cache, scraping and caching them on a miss
+     * 
+     * @param trackId The Spotify track ID
+     * @param spotifyUrl The Spotify track URL
+     * @return List of preview URLs (empty if the track has none)
+     */
+    private List<String> getPreviewUrls(String trackId, String spotifyUrl) {
+        List<String> cachedUrls = previewUrlCacheService.getPreviewUrls(trackId);
+        if (cachedUrls != null) {
+            return cachedUrls;
+        }
+        
+        Set<String> scrapedUrls = scrapePreviewUrls(spotifyUrl);
+        if (scrapedUrls == null) {
+            // Page could not be fetched, so don't record the track as having no preview
+            return new ArrayList<>();
+        }
+        
+        List<String> previewUrls = new ArrayList<>(scrapedUrls);
+        previewUrlCacheService.cachePreviewUrls(trackId, previewUrls);
+        return previewUrls;
+    }
+    
     /**
      * Scrape the Spotify web page to find preview URLs
      * 
      * @param spotifyUrl The Spotify track URL
-     * @return Set of preview URLs found
+     * @return Set of preview URLs found, or null if the page could not be fetched
      */
     private Set<String> scrapePreviewUrls(String spotifyUrl) {
         Set<String> previewUrls = new HashSet<>();
@@ -249,9 +388,13 @@ public class SpotifyPreviewService {
                         }
                     }
                 }
+            } else {
+                logger.warn("Unexpected status {} scraping preview URLs from: {}", response.getStatusCode(), spotifyUrl);
+                return null;
             }
         } catch (Exception e) {
             logger.error("Error scraping preview URLs from: {}", spotifyUrl, e);
+            return null;
         }
         
         return previewUrls;
@@ -1,11 +1,12 @@
 package vttp.final_project.services;
 
 import java.util.Map;
-import java.util.Optional;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.http.HttpEntity;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpMethod;
@@ -16,8 +17,7 @@ import org.springframework.stereotype.Service;
 import org.springframework.web.client.RestTemplate;
 import org.springframework.web.util.UriComponentsBuilder;
 
-import jakarta.servlet.http.HttpServletRequest;
-import jakarta.servlet.http.HttpSession;
+import vttp.final_project.models.SpotifyAuthContext;
 import vttp.final_project.models.SpotifyDTO;
 import vttp.final_project.models.SpotifyDTO.PlaylistsDTO;
 
@@ -25,34 +25,23 @@ import vttp.final_project.models.SpotifyDTO.PlaylistsDTO;
 public class SpotifyService {
 
     @Autowired
-    private SpotifyAuthService spotifyAuthService;
+    @Qualifier("spotifyApiRestTemplate")
+    private RestTemplate restTemplate;
 
-    RestTemplate restTemplate = new RestTemplate();
+    // Overridden to point at local stand-ins for load testing
+    @Value("${app.spotify.api-base-url:https://api.spotify.com}")
+    private String apiBaseUrl;
 
     Logger logger = LoggerFactory.getLogger(this.getClass().getSimpleName());
     
-    public ResponseEntity<?> getUserProfile(HttpServletRequest request) {
-        HttpSession session = request.getSession(false);
-        if (session == null || session.getAttribute("authenticated") == null) {
-            return ResponseEntity.status(HttpStatus.UNAUTHORIZED).body("Not authenticated");
-        }
-        
-        String userId = (String) session.getAttribute("userId");
-        Optional<String> accessTokenOpt = spotifyAuthService.getValidAccessToken(userId);
-        
-        if (accessTokenOpt.isEmpty()) {
-            session.invalidate();
-            return ResponseEntity.status(HttpStatus.UNAUTHORIZED).body("Invalid token");
-        }
-        
-        HttpHeaders headers = new HttpHeaders();
-        headers.set("Authorization", "Bearer " + accessTokenOpt.get());
+    public ResponseEntity<?> getUserProfile(SpotifyAuthContext auth) {
+        HttpHeaders headers = auth.createHeaders();
         
         HttpEntity<Void> entity = new HttpEntity<>(headers);
         
         try {
             ResponseEntity<Map> response = restTemplate.exchange(
-                    "https://api.spotify.com/v1/me",
+                    apiBaseUrl + "/v1/me",
                     HttpMethod.GET,
                     entity,
                     Map.class
@@ -64,27 +53,38 @@ public class SpotifyService {
         }
     }
 
-    public ResponseEntity<?> getUserPlaylists(HttpServletRequest request, int limit, int offset) {
-        HttpSession session = request.getSession(false);
-        if (session == null || session.getAttribute("authenticated") == null) {
-            return ResponseEntity.status(HttpStatus.UNAUTHORIZED).body("Not authenticated");
-        }
+    /**
+     * Looks up the Spotify user ID for an access token, used once at login to key
+     * tokens and caches by the person rather than the session
+     * 
+     * @param accessToken A decrypted access token
+     * @return The Spotify user ID
+     */
+    public String getCurrentUserId(String accessToken) {
+        HttpHeaders headers = new HttpHeaders();
+        headers.set("Authorization", "Bearer " + accessToken);
         
-        String userId = (String) session.getAttribute("userId");
-        Optional<String> accessTokenOpt = spotifyAuthService.getValidAccessToken(userId);
+        ResponseEntity<Map> response = restTemplate.exchange(
+                apiBaseUrl + "/v1/me",
+                HttpMethod.GET,
+                new HttpEntity<>(headers),
+                Map.class
+        );
         
-        if (accessTokenOpt.isEmpty()) {
-            session.invalidate();
-            return ResponseEntity.status(HttpStatus.UNAUTHORIZED).body("Invalid token");
+        Object spotifyUserId = response.getBody() != null ? response.getBody().get("id") : null;
+        if (spotifyUserId == null) {
+            throw new IllegalStateException("Spotify profile response has no user ID");
         }
-        
-        HttpHeaders headers = new HttpHeaders();
-        headers.set("Authorization", "Bearer " + accessTokenOpt.get());
+        return spotifyUserId.toString();
+    }
+
+    public ResponseEntity<?> getUserPlaylists(SpotifyAuthContext auth, int limit, int offset) {
+        HttpHeaders headers = auth.createHeaders();
         
         HttpEntity<Void> entity = new HttpEntity<>(headers);
         
         try {
-            String url = String.format("https://api.spotify.com/v1/me/playlists?limit=%d&offset=%d", limit, offset);
+            String url = String.format(apiBaseUrl + "/v1/me/playlists?limit=%d&offset=%d", limit, offset);
             
             ResponseEntity<PlaylistsDTO> response = restTemplate.exchange(
                     url,
@@ -103,27 +103,13 @@ public class SpotifyService {
         }
     }
 
-    public ResponseEntity<?> getPlaylistById(HttpServletRequest request, String playlistId) {
-        HttpSession session = request.getSession(false);
-        if (session == null || session.getAttribute("authenticated") == null) {
-            return ResponseEntity.status(HttpStatus.UNAUTHORIZED).body("Not authenticated");
-        }
-        
-        String userId = (String) session.getAttribute("userId");
-        Optional<String> accessTokenOpt = spotifyAuthService.getValidAccessToken(userId);
-        
-        if (accessTokenOpt.isEmpty()) {
-            session.invalidate();
-            return ResponseEntity.status(HttpStatus.UNAUTHORIZED).body("Invalid token");
-        }
-        
-        HttpHeaders headers = new HttpHeaders();
-        headers.set("Authorization", "Bearer " + accessTokenOpt.get());
+    public ResponseEntity<?> getPlaylistById(SpotifyAuthContext auth, String playlistId) {
+        HttpHeaders headers = auth.createHeaders();
         
         HttpEntity<Void> entity = new HttpEntity<>(headers);
         
         try {
-            String url = String.format("https://api.spotify.com/v1/playlists/%s", playlistId);
+            String url = String.format(apiBaseUrl + "/v1/playlists/%s", playlistId);
             
             ResponseEntity<Map> response = restTemplate.exchange(
                     url,
@@ -140,22 +126,8 @@ public class SpotifyService {
         }
     }
 
-    public ResponseEntity<?> searchTracks(HttpServletRequest request, String query, int limit) {
-        HttpSession session = request.getSession(false);
-        if (session == null || session.getAttribute("authenticated") == null) {
-            return ResponseEntity.status(HttpStatus.UNAUTHORIZED).body("Not authenticated");
-        }
-        
-        String userId = (String) session.getAttribute("userId");
-        Optional<String> accessTokenOpt = spotifyAuthService.getValidAccessToken(userId);
-        
-        if (accessTokenOpt.isEmpty()) {
-            session.invalidate();
-            return ResponseEntity.status(HttpStatus.UNAUTHORIZED).body("Invalid token");
-        }
-        
-        HttpHeaders headers = new HttpHeaders();
-        headers.set("Authorization", "Bearer " + accessTokenOpt.get());
+    public ResponseEntity<?> searchTracks(SpotifyAuthContext auth, String query, int limit) {
+        HttpHeaders headers = auth.createHeaders();
         
         HttpEntity<Void> entity = new HttpEntity<>(headers);
         
@@ -167,7 +139,7 @@ public class SpotifyService {
                 .substring(2); // Remove "q=" prefix
             
             String url = String.format(
-                "https://api.spotify.com/v1/search?q=%s&type=track&limit=%d",
+                apiBaseUrl + "/v1/search?q=%s&type=track&limit=%d",
                 encodedQuery,
                 limit
             );
@@ -187,27 +159,13 @@ public class SpotifyService {
         }
     }
 
-    public ResponseEntity<?> getSeveralTracks(HttpServletRequest request, String ids) {
-        HttpSession session = request.getSession(false);
-        if (session == null || session.getAttribute("authenticated") == null) {
-            return ResponseEntity.status(HttpStatus.UNAUTHORIZED).body("Not authenticated");
-        }
-        
-        String userId = (String) session.getAttribute("userId");
-        Optional<String> accessTokenOpt = spotifyAuthService.getValidAccessToken(userId);
-        
-        if (accessTokenOpt.isEmpty()) {
-            session.invalidate();
-            return ResponseEntity.status(HttpStatus.UNAUTHORIZED).body("Invalid token");
-        }
-        
-        HttpHeaders headers = new HttpHeaders();
-        headers.set("Authorization", "Bearer " + accessTokenOpt.get());
+    public ResponseEntity<?> getSeveralTracks(SpotifyAuthContext auth, String ids) {
+        HttpHeaders headers = auth.createHeaders();
         
         HttpEntity<Void> entity = new HttpEntity<>(headers);
         
         try {
-            String url = String.format("https://api.spotify.com/v1/tracks?ids=%s", ids);
+            String url = String.format(apiBaseUrl + "/v1/tracks?ids=%s", ids);
             
             ResponseEntity<SpotifyDTO.TracksResponseDTO> response = restTemplate.exchange(
                 url,
@@ -224,31 +182,17 @@ public class SpotifyService {
         }
     }
 
-    public ResponseEntity<?> getUserTopTracks(HttpServletRequest request,
+    public ResponseEntity<?> getUserTopTracks(SpotifyAuthContext auth,
                                     String timeRange,
                                     int limit,
                                     int offset) {
-        HttpSession session = request.getSession(false);
-        if (session == null || session.getAttribute("authenticated") == null) {
-            return ResponseEntity.status(HttpStatus.UNAUTHORIZED).body("Not authenticated");
-        }
-        
-        String userId = (String) session.getAttribute("userId");
-        Optional<String> accessTokenOpt = spotifyAuthService.getValidAccessToken(userId);
-        
-        if (accessTokenOpt.isEmpty()) {
-            session.invalidate();
-            return ResponseEntity.status(HttpStatus.UNAUTHORIZED).body("Invalid token");
-        }
-        
-        HttpHeaders headers = new HttpHeaders();
-        headers.set("Authorization", "Bearer " + accessTokenOpt.get());
+        HttpHeaders headers = auth.createHeaders();
         
         HttpEntity<Void> entity = new HttpEntity<>(headers);
         
         try {
             // Build the URL with query parameters
-            String url = UriComponentsBuilder.fromUriString("https://api.spotify.com/v1/me/top/tracks")
+            String url = UriComponentsBuilder.fromUriString(apiBaseUrl + "/v1/me/top/tracks")
                 .queryParam("time_range", timeRange)
                 .queryParam("limit", limit)
                 .queryParam("offset", offset)
@@ -270,22 +214,8 @@ public class SpotifyService {
         }
     }
 
-    public ResponseEntity<?> addTrackToPlaylist(HttpServletRequest request, String playlistId, String trackUri) {
-        HttpSession session = request.getSession(false);
-        if (session == null || session.getAttribute("authenticated") == null) {
-            return ResponseEntity.status(HttpStatus.UNAUTHORIZED).body("Not authenticated");
-        }
-        
-        String userId = (String) session.getAttribute("userId");
-        Optional<String> accessTokenOpt = spotifyAuthService.getValidAccessToken(userId);
-        
-        if (accessTokenOpt.isEmpty()) {
-            session.invalidate();
-            return ResponseEntity.status(HttpStatus.UNAUTHORIZED).body("Invalid token");
-        }
-        
-        HttpHeaders headers = new HttpHeaders();
-        headers.set("Authorization", "Bearer " + accessTokenOpt.get());
+    public ResponseEntity<?> addTrackToPlaylist(SpotifyAuthContext auth, String playlistId, String trackUri) {
+        HttpHeaders headers = auth.createHeaders();
         headers.setContentType(MediaType.APPLICATION_JSON);
         
         // Create request body
@@ -295,7 +225,7 @@ public class SpotifyService {
         
         try {
             // Spotify API endpoint to add tracks to a playlist
-            String url = String.format("https://api.spotify.com/v1/playlists/%s/tracks", playlistId);
+            String url = String.format(apiBaseUrl + "/v1/playlists/%s/tracks", playlistId);
             
             ResponseEntity<Map> response = restTemplate.exchange(
                     url,
@@ -1,42 +1,109 @@
 package vttp.final_project.services;
 
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
-import java.security.Key;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
 import java.util.Base64;
 
 import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
+/**
+ * Encrypts Spotify tokens at rest with AES-GCM.
+ *
+ * The key is built once and each thread keeps its own Cipher instances, so a call only
+ * pays for cipher init and the crypto itself. New values are written as "v2:" followed by
+ * Base64(IV + ciphertext + tag). Values without the prefix were written by the previous
+ * AES/ECB scheme and are still decrypted, see isLegacy and reencryptIfLegacy.
+ */
 @Service
 public class TokenEncryptionService {
-    
-    @Value("${app.encryption.secret}")
-    private String encryptionKey;
-    
+
+    private static final String GCM_PREFIX = "v2:";
+    private static final String GCM_TRANSFORMATION = "AES/GCM/NoPadding";
+    private static final String LEGACY_TRANSFORMATION = "AES/ECB/PKCS5Padding";
+    private static final int GCM_IV_LENGTH = 12;
+    private static final int GCM_TAG_BITS = 128;
+
+    private final SecretKey key;
+    private final SecureRandom secureRandom = new SecureRandom();
+
+    // Cipher instances aren't thread-safe, keep one of each per thread. Callers run on the
+    // Tomcat and scheduler pools, whose threads are reused, so the lookup is paid once per thread.
+    private final ThreadLocal<Cipher> gcmCipher = ThreadLocal.withInitial(() -> newCipher(GCM_TRANSFORMATION));
+    private final ThreadLocal<Cipher> legacyCipher = ThreadLocal.withInitial(() -> newCipher(LEGACY_TRANSFORMATION));
+
+    public TokenEncryptionService(@Value("${app.encryption.secret}") String encryptionKey) {
+        this.key = new SecretKeySpec(encryptionKey.getBytes(StandardCharsets.UTF_8), "AES");
+    }
+
     public String encrypt(String data) {
         try {
-            Key key = new SecretKeySpec(encryptionKey.getBytes(StandardCharsets.UTF_8), "AES");
-            Cipher cipher = Cipher.getInstance("AES");
-            cipher.init(Cipher.ENCRYPT_MODE, key);
+            byte[] iv = new byte[GCM_IV_LENGTH];
+            secureRandom.nextBytes(iv);
+
+            Cipher cipher = gcmCipher.get();
+            cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(GCM_TAG_BITS, iv));
             byte[] encryptedBytes = cipher.doFinal(data.getBytes(StandardCharsets.UTF_8));
-            return Base64.getEncoder().encodeToString(encryptedBytes);
+
+            byte[] payload = ByteBuffer.allocate(iv.length + encryptedBytes.length)
+                    .put(iv)
+                    .put(encryptedBytes)
+                    .array();
+            return GCM_PREFIX + Base64.getEncoder().encodeToString(payload);
         } catch (Exception e) {
             throw new RuntimeException("Error encrypting data", e);
         }
     }
-    
+
     public String decrypt(String encryptedData) {
         try {
-            Key key = new SecretKeySpec(encryptionKey.getBytes(StandardCharsets.UTF_8), "AES");
-            Cipher cipher = Cipher.getInstance("AES");
-            cipher.init(Cipher.DECRYPT_MODE, key);
-            byte[] decryptedBytes = cipher.doFinal(Base64.getDecoder().decode(encryptedData));
+            if (isLegacy(encryptedData)) {
+                Cipher cipher = legacyCipher.get();
+                cipher.init(Cipher.DECRYPT_MODE, key);
+                byte[] decryptedBytes = cipher.doFinal(Base64.getDecoder().decode(encryptedData));
+                return new String(decryptedBytes, StandardCharsets.UTF_8);
+            }
+
+            byte[] payload = Base64.getDecoder().decode(encryptedData.substring(GCM_PREFIX.length()));
+
+            Cipher cipher = gcmCipher.get();
+            cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(GCM_TAG_BITS, payload, 0, GCM_IV_LENGTH));
+            byte[] decryptedBytes = cipher.doFinal(payload, GCM_IV_LENGTH, payload.length - GCM_IV_LENGTH);
             return new String(decryptedBytes, StandardCharsets.UTF_8);
         } catch (Exception e) {
             throw new RuntimeException("Error decrypting data", e);
         }
     }
+
+    /**
+     * Whether a value was written by the old AES/ECB scheme
+     */
+    public boolean isLegacy(String encryptedData) {
+        return !encryptedData.startsWith(GCM_PREFIX);
+    }
+
+    /**
+     * Re-encrypts an old AES/ECB value with AES-GCM, so it gets upgraded the next time it is saved
+     *
+     * @param encryptedData A stored value in either format
+     * @return The value in the current format
+     */
+    public String reencryptIfLegacy(String encryptedData) {
+        return isLegacy(encryptedData) ? encrypt(decrypt(encryptedData)) : encryptedData;
+    }
+
+    private static Cipher newCipher(String transformation) {
+        try {
+            return Cipher.getInstance(transformation);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Cipher " + transformation + " is not available", e);
+        }
+    }
 }
@@ -0,0 +1,103 @@
+package vttp.final_project.services;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.function.IntSupplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import vttp.final_project.repositories.SpotifyTokenRepository;
+
+/**
+ * Deletes spotify_tokens rows that haven't been refreshed for a while, and rows left
+ * over from when tokens were keyed by session ID. issued_at is rewritten on every
+ * successful refresh, so an old issued_at means nobody has used the tokens since.
+ * Rows are deleted in small chunks to keep locks and undo short.
+ */
+@Service
+public class TokenPurgeScheduler {
+
+    private static final Logger logger = LoggerFactory.getLogger(TokenPurgeScheduler.class);
+
+    @Value("${app.tokens.purge.enabled:true}")
+    private boolean enabled;
+
+    // Rows whose tokens were last issued more than this many days ago are deleted
+    @Value("${app.tokens.purge.max-age-days:30}")
+    private long maxAgeDays;
+
+    // Rows deleted per statement
+    @Value("${app.tokens.purge.chunk-size:500}")
+    private int chunkSize;
+
+    // Upper bound on chunks per run, the rest is picked up by the next run
+    @Value("${app.tokens.purge.max-chunks:100}")
+    private int maxChunks;
+
+    // Pause between chunks in milliseconds, leaves room for interactive queries
+    @Value("${app.tokens.purge.chunk-pause:50}")
+    private long chunkPauseMs;
+
+    @Autowired
+    private SpotifyTokenRepository tokenRepository;
+
+    private final Counter purgedCounter;
+
+    public TokenPurgeScheduler(MeterRegistry meterRegistry) {
+        this.purgedCounter = Counter.builder("app.tokens.purged")
+            .description("Stale token rows deleted by the purge job")
+            .register(meterRegistry);
+    }
+
+    @Scheduled(fixedDelayString = "${app.tokens.purge.interval:3600000}",
+               initialDelayString = "${app.tokens.purge.initial-delay:300000}")
+    public void purgeStaleTokens() {
+        if (!enabled) {
+            return;
+        }
+
+        Instant cutoff = Instant.now().minus(Duration.ofDays(maxAgeDays));
+
+        long staleDeleted = deleteInChunks(() -> tokenRepository.deleteIssuedBefore(cutoff, chunkSize));
+        if (staleDeleted > 0) {
+            logger.info("Purged {} token rows issued before {}", staleDeleted, cutoff);
+        }
+
+        // Rows keyed by session ID are never used again now that tokens are keyed by Spotify user ID
+        long sessionKeyedDeleted = deleteInChunks(() -> tokenRepository.deleteSessionKeyedRows(chunkSize));
+        if (sessionKeyedDeleted > 0) {
+            logger.info("Purged {} token rows keyed by session ID", sessionKeyedDeleted);
+        }
+    }
+
+    private long deleteInChunks(IntSupplier deleteChunk) {
+        long totalDeleted = 0;
+
+        try {
+            for (int chunk = 0; chunk < maxChunks; chunk++) {
+                int deleted = deleteChunk.getAsInt();
+                totalDeleted += deleted;
+                purgedCounter.increment(deleted);
+
+                if (deleted < chunkSize) {
+                    break;
+                }
+
+                Thread.sleep(chunkPauseMs);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            logger.error("Error purging stale tokens", e);
+        }
+
+        return totalDeleted;
+    }
+}
@@ -0,0 +1,247 @@
+package vttp.final_project.services;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.web.client.HttpClientErrorException;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import vttp.final_project.models.SpotifyTokens;
+import vttp.final_project.repositories.SpotifyTokenRepository;
+
+/**
+ * Refreshes access tokens of users with a live session shortly before they expire,
+ * so requests don't pay for the refresh round trip and database write.
+ *
+ * Each user's row is read again under their refresh lock, the same lock the request path
+ * takes, so a token someone else refreshed in the meantime is skipped. Refreshed tokens
+ * are saved in bounded JDBC batches and every lock is held until its row is saved. A batch
+ * is saved early once half the lock TTL has passed since its first lock was taken.
+ *
+ * Exports app.tokens.refresh.lag (time between a token entering the look-ahead
+ * window and being refreshed) and app.tokens.proactive.refresh{result}.
+ */
+@Service
+public class TokenRefreshScheduler {
+
+    private static final Logger logger = LoggerFactory.getLogger(TokenRefreshScheduler.class);
+
+    @Value("${app.tokens.proactive-refresh.enabled:true}")
+    private boolean enabled;
+
+    // Tokens expiring within this many seconds are refreshed
+    @Value("${app.tokens.proactive-refresh.look-ahead:600}")
+    private long lookAheadSeconds;
+
+    // Tokens that expired longer ago than this are left to the lazy path
+    @Value("${app.tokens.proactive-refresh.max-staleness:3600}")
+    private long maxStalenessSeconds;
+
+    // Rows read per run
+    @Value("${app.tokens.proactive-refresh.max-rows:1000}")
+    private int maxRows;
+
+    // Refreshed tokens saved together, their refresh locks are held until the batch is saved
+    @Value("${app.tokens.proactive-refresh.batch-size:10}")
+    private int batchSize;
+
+    @Value("${app.spotify.refresh-lock-ttl:10000}")
+    private long refreshLockTtlMs;
+
+    @Autowired
+    private SpotifyTokenRepository tokenRepository;
+
+    @Autowired
+    private SpotifyAuthService spotifyAuthService;
+
+    @Autowired
+    private AccessTokenCacheService accessTokenCache;
+
+    @Autowired
+    private ActiveSessionRegistry activeSessionRegistry;
+
+    private final Timer refreshLagTimer;
+    private final Counter refreshSuccessCounter;
+    private final Counter refreshFailureCounter;
+    private final Counter refreshRevokedCounter;
+
+    /**
+     * Refreshed tokens waiting for the batch save, with the lock that protects them
+     */
+    private record PendingRefresh(SpotifyTokens tokens, String lockToken, Instant windowStart) {}
+
+    public TokenRefreshScheduler(MeterRegistry meterRegistry) {
+        this.refreshLagTimer = Timer.builder("app.tokens.refresh.lag")
+            .description("Time between a token entering the refresh window and being refreshed")
+            .register(meterRegistry);
+        this.refreshSuccessCounter = refreshCounter(meterRegistry, "success");
+        this.refreshFailureCounter = refreshCounter(meterRegistry, "failure");
+        this.refreshRevokedCounter = refreshCounter(meterRegistry, "revoked");
+    }
+
+    private static Counter refreshCounter(MeterRegistry meterRegistry, String result) {
+        return Counter.builder("app.tokens.proactive.refresh")
+            .description("Access tokens refreshed ahead of expiry by result")
+            .tag("result", result)
+            .register(meterRegistry);
+    }
+
+    @Scheduled(fixedDelayString = "${app.tokens.proactive-refresh.interval:60000}",
+               initialDelayString = "${app.tokens.proactive-refresh.interval:60000}")
+    public void refreshExpiringTokens() {
+        if (!enabled) {
+            return;
+        }
+
+        Set<String> activeUserIds = activeSessionRegistry.getActiveUserIds();
+        if (activeUserIds.isEmpty()) {
+            return;
+        }
+
+        Instant now = Instant.now();
+        List<SpotifyTokens> expiring = tokenRepository.findExpiringBetween(
+                now.minusSeconds(maxStalenessSeconds), now.plusSeconds(lookAheadSeconds), maxRows);
+
+        int refreshed = 0;
+        List<PendingRefresh> batch = new ArrayList<>();
+        long batchStartedAt = 0;
+        for (SpotifyTokens tokens : expiring) {
+            if (!activeUserIds.contains(tokens.getUserId())) {
+                continue;
+            }
+
+            long lockedAt = System.currentTimeMillis();
+            PendingRefresh pending = refreshUser(tokens.getUserId());
+            if (pending == null) {
+                continue;
+            }
+
+            if (batch.isEmpty()) {
+                batchStartedAt = lockedAt;
+            }
+            batch.add(pending);
+
+            if (batch.size() >= batchSize || System.currentTimeMillis() - batchStartedAt >= refreshLockTtlMs / 2) {
+                refreshed += saveBatch(batch);
+            }
+        }
+        refreshed += saveBatch(batch);
+
+        if (refreshed > 0) {
+            logger.info("Proactively refreshed {} access tokens", refreshed);
+        }
+    }
+
+    /**
+     * Takes the user's refresh lock and refreshes their tokens if they still need it.
+     * The lock is only kept when refreshed tokens are returned, saveBatch releases it.
+     *
+     * @return The refreshed tokens, or null if there is nothing to save
+     */
+    private PendingRefresh refreshUser(String userId) {
+        String lockToken = UUID.randomUUID().toString();
+
+        // Someone else is refreshing this user right now
+        if (!spotifyAuthService.tryAcquireRefreshLock(userId, lockToken)) {
+            return null;
+        }
+
+        boolean keepLock = false;
+        try {
+            // The row read by the sweep may be stale: a previous lock holder could have refreshed
+            // and rotated the refresh token since
+            Optional<SpotifyTokens> current = tokenRepository.findByUserId(userId);
+            if (current.isEmpty()
+                    || current.get().getAccessTokenExpiry().isAfter(Instant.now().plusSeconds(lookAheadSeconds))) {
+                return null;
+            }
+
+            SpotifyTokens tokens = current.get();
+            SpotifyTokens refreshedTokens = spotifyAuthService.refreshAccessToken(userId, tokens.getRefreshToken());
+            refreshedTokens.setUserId(userId);
+
+            keepLock = true;
+            return new PendingRefresh(refreshedTokens, lockToken, tokens.getAccessTokenExpiry().minusSeconds(lookAheadSeconds));
+        } catch (HttpClientErrorException e) {
+            if (spotifyAuthService.isRefreshTokenRejected(e)) {
+                // Refresh token was revoked, same handling as the lazy path
+                logger.warn("Spotify rejected refresh token for user {}: {}", userId, e.getStatusCode());
+                spotifyAuthService.deleteUserTokens(userId);
+                refreshRevokedCounter.increment();
+            } else {
+                // Throttled or another client error, the lazy path or the next run tries again
+                logger.warn("Proactive token refresh failed for user {}: {}", userId, e.getStatusCode());
+                refreshFailureCounter.increment();
+            }
+            return null;
+        } catch (Exception e) {
+            logger.warn("Proactive token refresh failed for user {}: {}", userId, e.getMessage());
+            refreshFailureCounter.increment();
+            return null;
+        } finally {
+            if (!keepLock) {
+                spotifyAuthService.releaseRefreshLock(userId, lockToken);
+            }
+        }
+    }
+
+    /**
+     * Saves a batch of refreshed tokens and releases their locks. If the batch fails the
+     * rows are saved one by one, so a bad row doesn't lose the rotated refresh tokens of the others.
+     *
+     * @return The number of tokens saved
+     */
+    private int saveBatch(List<PendingRefresh> batch) {
+        if (batch.isEmpty()) {
+            return 0;
+        }
+
+        int saved = 0;
+        try {
+            try {
+                tokenRepository.batchSave(batch.stream().map(PendingRefresh::tokens).toList());
+                batch.forEach(this::recordSaved);
+                saved = batch.size();
+            } catch (Exception e) {
+                logger.warn("Batched save of {} refreshed tokens failed, saving them one by one: {}",
+                        batch.size(), e.getMessage());
+                for (PendingRefresh pending : batch) {
+                    try {
+                        tokenRepository.save(pending.tokens());
+                        recordSaved(pending);
+                        saved++;
+                    } catch (Exception saveError) {
+                        logger.warn("Saving refreshed tokens failed for user {}: {}",
+                                pending.tokens().getUserId(), saveError.getMessage());
+                        refreshFailureCounter.increment();
+                    }
+                }
+            }
+        } finally {
+            for (PendingRefresh pending : batch) {
+                spotifyAuthService.releaseRefreshLock(pending.tokens().getUserId(), pending.lockToken());
+            }
+            batch.clear();
+        }
+        return saved;
+    }
+
+    private void recordSaved(PendingRefresh pending) {
+        accessTokenCache.invalidate(pending.tokens().getUserId());
+        refreshLagTimer.record(Duration.between(pending.windowStart(), Instant.now()));
+        refreshSuccessCounter.increment();
+    }
+}
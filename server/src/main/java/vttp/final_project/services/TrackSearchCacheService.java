@@ -0,0 +1,179 @@
+package vttp.final_project.services;
+
+import java.text.Normalizer;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.stereotype.Service;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+
+import jakarta.annotation.PostConstruct;
+
+/**
+ * Shared cache of the top Spotify search result for a track query.
+ * Search results don't depend on the user, so entries are reused across users.
+ */
+@Service
+public class TrackSearchCacheService {
+
+    private static final Logger logger = LoggerFactory.getLogger(TrackSearchCacheService.class);
+
+    // Redis key prefix
+    private static final String TRACK_SEARCH_KEY_PREFIX = "track_search:";
+
+    // Metric tag for this cache
+    private static final String CACHE_NAME = "track_search";
+
+    // TTL for cached search results (7 days)
+    @Value("${app.cache.track-search.ttl:604800}")
+    private long searchTtl;
+
+    @Value("${app.cache.track-search.local.max-size:20000}")
+    private long localMaxSize;
+
+    @Value("${app.cache.track-search.local.ttl:3600}")
+    private long localTtl;
+
+    @Autowired
+    private RedisTemplate<String, Object> redisTemplate;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @Autowired
+    private ApiMetricsService apiMetricsService;
+
+    private Cache<String, Map<String, Object>> localCache;
+
+    @PostConstruct
+    public void init() {
+        localCache = Caffeine.newBuilder()
+                .maximumSize(localMaxSize)
+                .expireAfterWrite(Duration.ofSeconds(localTtl))
+                .build();
+    }
+
+    /**
+     * Looks up the cached top track for a search query
+     *
+     * @param query The search query
+     * @return The cached track, or null on a miss
+     */
+    public Map<String, Object> getTopTrack(String query) {
+        String normalizedQuery = normalizeQuery(query);
+        Map<String, Object> track = localCache.getIfPresent(normalizedQuery);
+
+        if (track == null) {
+            track = readFromRedis(normalizedQuery);
+            if (track != null) {
+                localCache.put(normalizedQuery, track);
+            }
+        }
+
+        apiMetricsService.incrementCacheCounter(CACHE_NAME, track != null ? "hit" : "miss");
+
+        // Callers add fields to the track, so hand out a copy
+        return track != null ? new LinkedHashMap<>(track) : null;
+    }
+
+    /**
+     * Stores the top track for a search query, keeping only the fields the client uses
+     *
+     * @param query The search query
+     * @param track The track object from the Spotify search response
+     * @return A copy of the trimmed track, the same shape getTopTrack returns
+     */
+    public Map<String, Object> cacheTopTrack(String query, Map<String, Object> track) {
+        String normalizedQuery = normalizeQuery(query);
+        Map<String, Object> trimmedTrack = trimTrack(track);
+        localCache.put(normalizedQuery, trimmedTrack);
+
+        try {
+            String trackJson = objectMapper.writeValueAsString(trimmedTrack);
+            redisTemplate.opsForValue().set(TRACK_SEARCH_KEY_PREFIX + normalizedQuery, trackJson, searchTtl, TimeUnit.SECONDS);
+        } catch (Exception e) {
+            logger.warn("Error caching search result for query '{}': {}", normalizedQuery, e.getMessage());
+        }
+
+        return new LinkedHashMap<>(trimmedTrack);
+    }
+
+    /**
+     * Normalize a query so that case, accents and spacing variants share one entry
+     *
+     * @param query The search query
+     * @return The normalized query
+     */
+    static String normalizeQuery(String query) {
+        if (query == null) {
+            return "";
+        }
+        return Normalizer.normalize(query, Normalizer.Form.NFKC)
+                .toLowerCase(Locale.ROOT)
+                .replaceAll("\\s+", " ")
+                .trim();
+    }
+
+    private Map<String, Object> readFromRedis(String normalizedQuery) {
+        try {
+            String trackJson = (String) redisTemplate.opsForValue().get(TRACK_SEARCH_KEY_PREFIX + normalizedQuery);
+            if (trackJson == null) {
+                return null;
+            }
+            return objectMapper.readValue(trackJson, new TypeReference<Map<String, Object>>() {});
+        } catch (Exception e) {
+            // Treat an unreachable or corrupt entry as a miss so the caller searches instead
+            logger.warn("Error reading cached search result for query '{}': {}", normalizedQuery, e.getMessage());
+            return null;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private Map<String, Object> trimTrack(Map<String, Object> track) {
+        Map<String, Object> trimmed = new LinkedHashMap<>();
+        copyFields(track, trimmed, "id", "name", "uri", "duration_ms", "explicit", "popularity",
+                "preview_url", "external_urls");
+
+        Object artists = track.get("artists");
+        if (artists instanceof List) {
+            List<Map<String, Object>> trimmedArtists = new ArrayList<>();
+            for (Map<String, Object> artist : (List<Map<String, Object>>) artists) {
+                Map<String, Object> trimmedArtist = new LinkedHashMap<>();
+                copyFields(artist, trimmedArtist, "id", "name", "uri", "external_urls");
+                trimmedArtists.add(trimmedArtist);
+            }
+            trimmed.put("artists", trimmedArtists);
+        }
+
+        Object album = track.get("album");
+        if (album instanceof Map) {
+            Map<String, Object> trimmedAlbum = new LinkedHashMap<>();
+            copyFields((Map<String, Object>) album, trimmedAlbum, "id", "name", "images", "release_date", "uri");
+            trimmed.put("album", trimmedAlbum);
+        }
+
+        return trimmed;
+    }
+
+    private void copyFields(Map<String, Object> source, Map<String, Object> target, String... fields) {
+        for (String field : fields) {
+            if (source.containsKey(field)) {
+                target.put(field, source.get(field));
+            }
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package vttp.final_project.services;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.springframework.stereotype.Service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+/**
+ * Metrics for calls to upstream dependencies (Spotify API, Spotify accounts, Spotify web
+ * and Gemini). Call timings, 429s and Retry-After responses are recorded by the HTTP
+ * client interceptor for every outbound request; retries are recorded by the services
+ * that decide to retry.
+ */
+@Service
+public class UpstreamMetricsService {
+
+    private final MeterRegistry meterRegistry;
+    private final Map<String, Timer> requestTimers = new ConcurrentHashMap<>();
+    private final Map<String, Counter> throttledCounters = new ConcurrentHashMap<>();
+    private final Map<String, Counter> retryAfterCounters = new ConcurrentHashMap<>();
+    private final Map<String, Counter> retryCounters = new ConcurrentHashMap<>();
+
+    public UpstreamMetricsService(MeterRegistry meterRegistry) {
+        this.meterRegistry = meterRegistry;
+    }
+
+    /**
+     * Record one outbound request, timed until the response headers arrived
+     * @param upstream The upstream client name (e.g. spotify-api)
+     * @param operation The method and templated path (e.g. GET /v1/playlists/{id})
+     * @param status The status class (2xx, 4xx, 5xx) or IO_ERROR when no response arrived
+     * @param durationNanos Time taken in nanoseconds
+     */
+    public void recordRequest(String upstream, String operation, String status, long durationNanos) {
+        requestTimers.computeIfAbsent(upstream + ":" + operation + ":" + status, key ->
+            Timer.builder("app.upstream.requests")
+                .description("Outbound requests to upstream dependencies")
+                .tag("upstream", upstream)
+                .tag("operation", operation)
+                .tag("status", status)
+                .register(meterRegistry)
+        ).record(durationNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Increment counter for a 429 Too Many Requests response
+     * @param upstream The upstream client name
+     * @param operation The method and templated path
+     */
+    public void incrementThrottled(String upstream, String operation) {
+        throttledCounters.computeIfAbsent(upstream + ":" + operation, key ->
+            Counter.builder("app.upstream.throttled")
+                .description("Upstream responses with status 429")
+                .tag("upstream", upstream)
+                .tag("operation", operation)
+                .register(meterRegistry)
+        ).increment();
+    }
+
+    /**
+     * Increment counter for a response carrying a Retry-After header
+     * @param upstream The upstream client name
+     * @param operation The method and templated path
+     */
+    public void incrementRetryAfter(String upstream, String operation) {
+        retryAfterCounters.computeIfAbsent(upstream + ":" + operation, key ->
+            Counter.builder("app.upstream.retry_after")
+                .description("Upstream responses asking us to retry later")
+                .tag("upstream", upstream)
+                .tag("operation", operation)
+                .register(meterRegistry)
+        ).increment();
+    }
+
+    /**
+     * Increment counter for a retried upstream call
+     * @param upstream The upstream client name
+     * @param reason Why the previous attempt is being retried (e.g. throttled, server_error)
+     */
+    public void incrementRetry(String upstream, String reason) {
+        retryCounters.computeIfAbsent(upstream + ":" + reason, key ->
+            Counter.builder("app.upstream.retries")
+                .description("Upstream calls retried after a failed attempt")
+                .tag("upstream", upstream)
+                .tag("reason", reason)
+                .register(meterRegistry)
+        ).increment();
+    }
+}
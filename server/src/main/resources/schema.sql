@@ -9,5 +9,7 @@ CREATE TABLE IF NOT EXISTS spotify_tokens (
     refresh_token TEXT NOT NULL,
     access_token_expiry TIMESTAMP NOT NULL,
     scope TEXT,
-    issued_at TIMESTAMP NOT NULL
+    issued_at TIMESTAMP NOT NULL,
+    INDEX idx_spotify_tokens_expiry (access_token_expiry),
+    INDEX idx_spotify_tokens_issued_at (issued_at)
 );
\ No newline at end of file
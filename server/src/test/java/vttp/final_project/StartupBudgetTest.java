@@ -0,0 +1,61 @@
+package vttp.final_project;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Fails the build when a cold start takes longer than startup.budget-ms (set in the pom,
+ * override with -Dstartup.budget-ms=...). The application is started in a fresh JVM that
+ * exits as soon as the context has refreshed, with the same placeholder settings as the
+ * CDS training run in the Dockerfile, so no MySQL, Redis or secrets.properties are needed.
+ * MySQL and Redis point at a closed port, so the schema init fails straight away.
+ * The output of the run is kept in target/startup-check.log.
+ */
+class StartupBudgetTest {
+
+	private static final long DEFAULT_BUDGET_MS = 30000;
+
+	@Test
+	void contextRefreshesWithinBudget() throws Exception {
+		long budgetMs = Long.getLong("startup.budget-ms", DEFAULT_BUDGET_MS);
+		File log = Path.of("target", "startup-check.log").toFile();
+
+		List<String> command = List.of(
+				Path.of(System.getProperty("java.home"), "bin", "java").toString(),
+				"-cp", System.getProperty("java.class.path"),
+				"-Dspring.context.exit=onRefresh",
+				"-Dspring.devtools.restart.enabled=false",
+				"-Dspring.datasource.url=jdbc:mysql://127.0.0.1:1/spotify_auth_db",
+				"-Dspring.data.redis.port=1",
+				"-Dspring.session.redis.configure-action=none",
+				"-Dspotify.client.id=startup-check",
+				"-Dspotify.client.secret=startup-check",
+				"-Dgemini.api-key=startup-check",
+				"-Dapp.encryption.secret=startup-check-secret-0123456789",
+				FinalProjectApplication.class.getName());
+
+		long start = System.nanoTime();
+		Process process = new ProcessBuilder(command)
+				.redirectErrorStream(true)
+				.redirectOutput(log)
+				.start();
+
+		// Give a slow start room to finish, so the failure reports how long it actually took
+		boolean exited = process.waitFor(budgetMs * 3, TimeUnit.MILLISECONDS);
+		long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+		if (!exited) {
+			process.destroyForcibly();
+		}
+
+		System.out.printf("Cold start to context refresh took %d ms (budget %d ms)%n", elapsedMs, budgetMs);
+		assertThat(exited).isTrue();
+		assertThat(process.exitValue()).isZero();
+		assertThat(elapsedMs).isLessThanOrEqualTo(budgetMs);
+	}
+}
@@ -0,0 +1,72 @@
+package vttp.final_project.configurations;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.serializer.SerializationException;
+
+class CompactSessionSerializerTest {
+
+	private final CompactSessionSerializer serializer = new CompactSessionSerializer();
+
+	@Test
+	void stringsRoundTrip() {
+		assertThat(roundTrip("spotify-user-1")).isEqualTo("spotify-user-1");
+		assertThat(roundTrip("")).isEqualTo("");
+		assertThat(roundTrip("héllo ✓")).isEqualTo("héllo ✓");
+	}
+
+	@Test
+	void booleansRoundTrip() {
+		assertThat(roundTrip(true)).isEqualTo(true);
+		assertThat(roundTrip(false)).isEqualTo(false);
+	}
+
+	@Test
+	void numbersKeepTheirType() {
+		// Spring Session reads creationTime back as a Long and maxInactiveInterval as an Integer
+		assertThat(roundTrip(1_700_000_000_000L)).isInstanceOf(Long.class).isEqualTo(1_700_000_000_000L);
+		assertThat(roundTrip(1800)).isInstanceOf(Integer.class).isEqualTo(1800);
+		assertThat(roundTrip(Long.MIN_VALUE)).isEqualTo(Long.MIN_VALUE);
+		assertThat(roundTrip(-1)).isEqualTo(-1);
+	}
+
+	@Test
+	void compactValuesAreSmall() {
+		assertThat(serializer.serialize(true)).hasSize(2);
+		assertThat(serializer.serialize(1800)).hasSize(5);
+		assertThat(serializer.serialize(1_700_000_000_000L)).hasSize(9);
+		assertThat(serializer.serialize("abc")).hasSize(4);
+	}
+
+	@Test
+	void otherTypesFallBackToJdkSerialization() {
+		List<String> list = new ArrayList<>(List.of("a", "b"));
+		Instant instant = Instant.parse("2024-01-01T00:00:00Z");
+
+		assertThat(roundTrip(list)).isEqualTo(list);
+		assertThat(roundTrip(instant)).isEqualTo(instant);
+	}
+
+	@Test
+	void nullAndEmptyAreNull() {
+		assertThat(serializer.serialize(null)).isNull();
+		assertThat(serializer.deserialize(null)).isNull();
+		assertThat(serializer.deserialize(new byte[0])).isNull();
+	}
+
+	@Test
+	void unknownTagIsRejected() {
+		assertThatThrownBy(() -> serializer.deserialize(new byte[] { 'x', 1 }))
+				.isInstanceOf(SerializationException.class);
+	}
+
+	private Object roundTrip(Object value) {
+		return serializer.deserialize(serializer.serialize(value));
+	}
+}
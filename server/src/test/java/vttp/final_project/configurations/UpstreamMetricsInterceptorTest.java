@@ -0,0 +1,50 @@
+package vttp.final_project.configurations;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import org.junit.jupiter.api.Test;
+
+class UpstreamMetricsInterceptorTest {
+
+	@Test
+	void replacesIdAfterKnownParentSegment() {
+		assertThat(UpstreamMetricsInterceptor.templatePath("/v1/playlists/37i9dQZF1DXcBWIGoYBM5M/tracks"))
+				.isEqualTo("/v1/playlists/{id}/tracks");
+		assertThat(UpstreamMetricsInterceptor.templatePath("/v1/users/alice/playlists"))
+				.isEqualTo("/v1/users/{id}/playlists");
+		assertThat(UpstreamMetricsInterceptor.templatePath("/v1/tracks/4uLU6hMCjMI75M1A2tKUQC"))
+				.isEqualTo("/v1/tracks/{id}");
+	}
+
+	@Test
+	void replacesEveryIdInPath() {
+		assertThat(UpstreamMetricsInterceptor.templatePath("/v1/artists/0OdUWJ0sBjDrqHygGUXeCF/albums/abc"))
+				.isEqualTo("/v1/artists/{id}/albums/{id}");
+	}
+
+	@Test
+	void keepsParentSegmentAtEndOfPath() {
+		assertThat(UpstreamMetricsInterceptor.templatePath("/v1/me/playlists")).isEqualTo("/v1/me/playlists");
+		assertThat(UpstreamMetricsInterceptor.templatePath("/v1/me/top/tracks")).isEqualTo("/v1/me/top/tracks");
+	}
+
+	@Test
+	void leavesPathsWithoutIdsUnchanged() {
+		assertThat(UpstreamMetricsInterceptor.templatePath("/api/token")).isEqualTo("/api/token");
+		assertThat(UpstreamMetricsInterceptor.templatePath("/v1beta/models/gemini-2.0-flash:generateContent"))
+				.isEqualTo("/v1beta/models/gemini-2.0-flash:generateContent");
+	}
+
+	@Test
+	void dropsTrailingSlash() {
+		assertThat(UpstreamMetricsInterceptor.templatePath("/v1/playlists/abc/tracks/"))
+				.isEqualTo("/v1/playlists/{id}/tracks");
+	}
+
+	@Test
+	void emptyPathIsRoot() {
+		assertThat(UpstreamMetricsInterceptor.templatePath(null)).isEqualTo("/");
+		assertThat(UpstreamMetricsInterceptor.templatePath("")).isEqualTo("/");
+		assertThat(UpstreamMetricsInterceptor.templatePath("/")).isEqualTo("/");
+	}
+}
@@ -0,0 +1,162 @@
+package vttp.final_project.services;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import vttp.final_project.services.GeminiCircuitBreaker.Permission;
+import vttp.final_project.services.GeminiCircuitBreaker.State;
+
+class GeminiCircuitBreakerTest {
+
+	private SimpleMeterRegistry meterRegistry;
+	private GeminiCircuitBreaker breaker;
+
+	@BeforeEach
+	void setUp() {
+		meterRegistry = new SimpleMeterRegistry();
+		breaker = new GeminiCircuitBreaker(meterRegistry);
+		breaker.registerStateGauge();
+		ReflectionTestUtils.setField(breaker, "failureRateThreshold", 50);
+		ReflectionTestUtils.setField(breaker, "windowSize", 4);
+		ReflectionTestUtils.setField(breaker, "minimumCalls", 4);
+		ReflectionTestUtils.setField(breaker, "openDurationMs", 60000L);
+	}
+
+	@Test
+	void staysClosedBelowMinimumCalls() {
+		recordFailure();
+		recordFailure();
+		recordFailure();
+
+		assertThat(breaker.getState()).isEqualTo(State.CLOSED);
+		assertThat(breaker.tryAcquirePermission()).isNotNull();
+	}
+
+	@Test
+	void opensWhenFailureRateReachesThreshold() {
+		recordSuccess();
+		recordSuccess();
+		recordFailure();
+		recordFailure();
+
+		assertThat(breaker.getState()).isEqualTo(State.OPEN);
+		assertThat(breaker.tryAcquirePermission()).isNull();
+	}
+
+	@Test
+	void oldestOutcomeLeavesTheWindow() {
+		recordFailure();
+		recordFailure();
+		recordSuccess();
+		recordSuccess();
+		recordSuccess();
+		recordSuccess();
+
+		// Both early failures have been overwritten, so this is 1 failure in 4
+		recordFailure();
+		assertThat(breaker.getState()).isEqualTo(State.CLOSED);
+
+		recordFailure();
+		assertThat(breaker.getState()).isEqualTo(State.OPEN);
+	}
+
+	@Test
+	void getStateMovesToHalfOpenOnceOpenDurationHasPassed() {
+		trip();
+		assertThat(breaker.getState()).isEqualTo(State.OPEN);
+
+		ReflectionTestUtils.setField(breaker, "openDurationMs", 0L);
+
+		assertThat(breaker.getState()).isEqualTo(State.HALF_OPEN);
+	}
+
+	@Test
+	void halfOpenLetsOneProbeThroughAndClosesOnSuccess() {
+		trip();
+		ReflectionTestUtils.setField(breaker, "openDurationMs", 0L);
+
+		Permission probe = breaker.tryAcquirePermission();
+		assertThat(probe).isNotNull();
+		assertThat(breaker.tryAcquirePermission()).isNull();
+
+		breaker.recordSuccess(probe);
+
+		assertThat(breaker.getState()).isEqualTo(State.CLOSED);
+		assertThat(breaker.tryAcquirePermission()).isNotNull();
+	}
+
+	@Test
+	void failedProbeReopens() {
+		trip();
+		ReflectionTestUtils.setField(breaker, "openDurationMs", 0L);
+		Permission probe = breaker.tryAcquirePermission();
+		ReflectionTestUtils.setField(breaker, "openDurationMs", 60000L);
+
+		breaker.recordFailure(probe);
+
+		assertThat(breaker.getState()).isEqualTo(State.OPEN);
+		assertThat(breaker.tryAcquirePermission()).isNull();
+	}
+
+	@Test
+	void lateResultFromBeforeTheBreakerOpenedIsIgnored() {
+		Permission late = breaker.tryAcquirePermission();
+		trip();
+		ReflectionTestUtils.setField(breaker, "openDurationMs", 0L);
+		Permission probe = breaker.tryAcquirePermission();
+
+		breaker.recordSuccess(late);
+		breaker.recordFailure(late);
+
+		// Neither closed nor reopened the breaker, and the probe is still the only call let through
+		assertThat(breaker.getState()).isEqualTo(State.HALF_OPEN);
+		assertThat(breaker.tryAcquirePermission()).isNull();
+
+		breaker.recordSuccess(probe);
+		assertThat(breaker.getState()).isEqualTo(State.CLOSED);
+	}
+
+	@Test
+	void lateResultDoesNotCountInTheNextClosedWindow() {
+		Permission late = breaker.tryAcquirePermission();
+		trip();
+		ReflectionTestUtils.setField(breaker, "openDurationMs", 0L);
+		breaker.recordSuccess(breaker.tryAcquirePermission());
+
+		breaker.recordFailure(late);
+		recordSuccess();
+		recordSuccess();
+		recordFailure();
+
+		// Counting the late failure would make this 2 failures in 4 calls
+		assertThat(breaker.getState()).isEqualTo(State.CLOSED);
+	}
+
+	@Test
+	void stateGaugeFollowsTheBreaker() {
+		assertThat(meterRegistry.get("app.gemini.circuit.state").gauge().value()).isEqualTo(0.0);
+
+		trip();
+
+		assertThat(meterRegistry.get("app.gemini.circuit.state").gauge().value()).isEqualTo(1.0);
+	}
+
+	private void trip() {
+		for (int i = 0; i < 4; i++) {
+			recordFailure();
+		}
+		assertThat(breaker.getState()).isEqualTo(State.OPEN);
+	}
+
+	private void recordSuccess() {
+		breaker.recordSuccess(breaker.tryAcquirePermission());
+	}
+
+	private void recordFailure() {
+		breaker.recordFailure(breaker.tryAcquirePermission());
+	}
+}
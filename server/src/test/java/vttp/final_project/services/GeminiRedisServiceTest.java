@@ -0,0 +1,198 @@
+package vttp.final_project.services;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoInteractions;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.data.redis.core.Cursor;
+import org.springframework.data.redis.core.HashOperations;
+import org.springframework.data.redis.core.ListOperations;
+import org.springframework.data.redis.core.RedisOperations;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.ScanOptions;
+import org.springframework.data.redis.core.SessionCallback;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+@ExtendWith(MockitoExtension.class)
+class GeminiRedisServiceTest {
+
+	private static final String LIST_KEY = "recommendations:list:pl1";
+	private static final String LEGACY_KEY = "recommendations:pl1";
+
+	@Mock
+	private RedisTemplate<String, Object> redisTemplate;
+
+	@Mock
+	private ListOperations<String, Object> listOps;
+
+	@Mock
+	private HashOperations<String, String, String> hashOps;
+
+	@Mock
+	private RedisOperations<String, Object> transactionOps;
+
+	@Mock
+	private ListOperations<String, Object> transactionListOps;
+
+	private GeminiRedisService service;
+
+	@BeforeEach
+	void setUp() {
+		service = new GeminiRedisService();
+		ReflectionTestUtils.setField(service, "redisTemplate", redisTemplate);
+		ReflectionTestUtils.setField(service, "objectMapper", new ObjectMapper());
+		ReflectionTestUtils.setField(service, "recommendationsTtl", 86400L);
+	}
+
+	@AfterEach
+	void tearDown() {
+		service.shutdownSweepExecutor();
+	}
+
+	@Test
+	void pageIsReadWithOneRangeCall() {
+		when(redisTemplate.opsForList()).thenReturn(listOps);
+		when(listOps.range(LIST_KEY, 10, 14)).thenReturn(List.of(
+				"{\"song_title\":\"Song A\"}",
+				"{\"song_title\":\"Song B\"}"));
+
+		List<Map<String, String>> page = service.getCachedRecommendationsPage("pl1", 10, 5);
+
+		assertThat(page).extracting(recommendation -> recommendation.get("song_title"))
+				.containsExactly("Song A", "Song B");
+	}
+
+	@Test
+	void pageOutOfRangeIsEmpty() {
+		when(redisTemplate.opsForList()).thenReturn(listOps);
+		when(listOps.range(LIST_KEY, 30, 39)).thenReturn(List.of());
+
+		assertThat(service.getCachedRecommendationsPage("pl1", 30, 10)).isEmpty();
+	}
+
+	@Test
+	void emptyPageDoesNotTouchRedis() {
+		assertThat(service.getCachedRecommendationsPage("pl1", 0, 0)).isEmpty();
+
+		verifyNoInteractions(redisTemplate);
+	}
+
+	@Test
+	void countUsesListLengthWhenListExists() {
+		when(redisTemplate.opsForList()).thenReturn(listOps);
+		when(listOps.size(LIST_KEY)).thenReturn(25L);
+
+		assertThat(service.getCachedRecommendationCount("pl1")).isEqualTo(25);
+
+		verify(redisTemplate, never()).opsForHash();
+	}
+
+	@Test
+	@SuppressWarnings("unchecked")
+	void legacyBlobIsMigratedIntoList() {
+		when(redisTemplate.opsForList()).thenReturn(listOps);
+		when(listOps.size(LIST_KEY)).thenReturn(0L);
+		when(redisTemplate.<String, String>opsForHash()).thenReturn(hashOps);
+		when(hashOps.get(LEGACY_KEY, "recommendations_data"))
+				.thenReturn("[{\"song_title\":\"Song A\"},{\"song_title\":\"Song B\"}]");
+		when(redisTemplate.execute(any(SessionCallback.class)))
+				.thenAnswer(invocation -> invocation.<SessionCallback<?>>getArgument(0).execute(transactionOps));
+		when(transactionOps.opsForList()).thenReturn(transactionListOps);
+
+		assertThat(service.getCachedRecommendationCount("pl1")).isEqualTo(2);
+
+		verify(transactionOps).multi();
+		verify(transactionOps).delete(LIST_KEY);
+		verify(transactionListOps).rightPushAll(LIST_KEY, (Collection<Object>) List.<Object>of(
+				"{\"song_title\":\"Song A\"}",
+				"{\"song_title\":\"Song B\"}"));
+		verify(transactionOps).exec();
+		verify(redisTemplate).delete(LEGACY_KEY);
+		// A migrated list is not a new generation, so no generated_at marker is written
+		verify(transactionOps, never()).opsForValue();
+	}
+
+	@Test
+	@SuppressWarnings("unchecked")
+	void missingLegacyBlobCountsAsEmpty() {
+		when(redisTemplate.opsForList()).thenReturn(listOps);
+		when(listOps.size(LIST_KEY)).thenReturn(0L);
+		when(redisTemplate.<String, String>opsForHash()).thenReturn(hashOps);
+
+		assertThat(service.getCachedRecommendationCount("pl1")).isZero();
+
+		verify(redisTemplate, never()).execute(any(SessionCallback.class));
+		verify(redisTemplate, never()).delete(LEGACY_KEY);
+	}
+
+	@Test
+	@SuppressWarnings("unchecked")
+	void corruptLegacyBlobIsDiscarded() {
+		when(redisTemplate.opsForList()).thenReturn(listOps);
+		when(listOps.size(LIST_KEY)).thenReturn(null);
+		when(redisTemplate.<String, String>opsForHash()).thenReturn(hashOps);
+		when(hashOps.get(LEGACY_KEY, "recommendations_data")).thenReturn("[{\"song_title\":");
+
+		assertThat(service.getCachedRecommendationCount("pl1")).isZero();
+
+		verify(redisTemplate, never()).execute(any(SessionCallback.class));
+		verify(redisTemplate).delete(LEGACY_KEY);
+	}
+
+	@Test
+	@SuppressWarnings("unchecked")
+	void userSweepEscapesGlobCharactersInUserId() {
+		Cursor<String> emptyCursor = mock(Cursor.class);
+		when(redisTemplate.scan(any(ScanOptions.class))).thenReturn(emptyCursor);
+
+		assertThat(service.clearUserCaches("dj*[mix]?\\").join()).isZero();
+
+		ArgumentCaptor<ScanOptions> options = ArgumentCaptor.forClass(ScanOptions.class);
+		verify(redisTemplate, times(4)).scan(options.capture());
+		assertThat(options.getAllValues()).extracting(ScanOptions::getPattern).containsExactly(
+				"recommendations:dj\\*\\[mix\\]\\?\\\\_top_tracks_*",
+				"recommendations:list:dj\\*\\[mix\\]\\?\\\\_top_tracks_*",
+				"recommendations:generated_at:dj\\*\\[mix\\]\\?\\\\_top_tracks_*",
+				"custom_prompt:dj\\*\\[mix\\]\\?\\\\_top_tracks_*");
+	}
+
+	@Test
+	@SuppressWarnings("unchecked")
+	void sweepUnlinksMatchedKeysAndReportsCount() {
+		Cursor<String> cursor = mock(Cursor.class);
+		Cursor<String> emptyCursor = mock(Cursor.class);
+		when(cursor.hasNext()).thenReturn(true, true, false);
+		when(cursor.next()).thenReturn("recommendations:list:pl1", "recommendations:list:pl2");
+		when(redisTemplate.scan(any(ScanOptions.class))).thenReturn(cursor, emptyCursor);
+
+		List<List<String>> unlinked = new ArrayList<>();
+		when(redisTemplate.unlink(any(Collection.class))).thenAnswer(invocation -> {
+			Collection<String> keys = invocation.getArgument(0);
+			unlinked.add(new ArrayList<>(keys));
+			return (long) keys.size();
+		});
+
+		assertThat(service.clearAllCaches().join()).isEqualTo(2L);
+
+		assertThat(unlinked).containsExactly(List.of("recommendations:list:pl1", "recommendations:list:pl2"));
+	}
+}
@@ -0,0 +1,190 @@
+package vttp.final_project.services;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import vttp.final_project.services.GeminiResponseParser.SongTitleStream;
+
+class GeminiResponseParserTest {
+
+	// Every title in the payloads under src/test/resources/gemini, in order
+	private static final List<String> TITLES = List.of(
+			"Midnight City", "Electric Feel", "Kids", "Dog Days Are Over", "Take a Walk",
+			"Feel It Still", "Tongue Tied", "Young Folks", "1901", "Little Talks",
+			"Sweater Weather", "Somebody Else", "Do I Wanna Know?", "The Less I Know the Better", "Breezeblocks",
+			"Pumped Up Kicks", "Shut Up and Dance", "Riptide", "Ho Hey", "Home",
+			"Electric Love", "Oxygen", "Stolen Dance", "Youth", "Cough Syrup",
+			"Mountain Sound", "Tightrope", "Safe and Sound", "Lisztomania", "Ocean Eyes");
+
+	private final GeminiResponseParser parser = new GeminiResponseParser();
+	private final ObjectMapper objectMapper = new ObjectMapper();
+
+	// The expected titles below are what the previous DOM and regex parser returned for each payload
+
+	@Test
+	void readsTextThatIsAJsonArray() throws IOException {
+		assertThat(parsePayload("clean")).isEqualTo(TITLES);
+	}
+
+	@Test
+	void readsArrayInsideCodeFence() throws IOException {
+		assertThat(parsePayload("fenced")).isEqualTo(TITLES);
+	}
+
+	@Test
+	void recoversCompleteTitlesFromTextCutOffAtTokenLimit() throws IOException {
+		assertThat(parsePayload("truncated")).isEqualTo(TITLES.subList(0, 26));
+	}
+
+	@Test
+	void readsPlainLines() throws IOException {
+		assertThat(parsePayload("lines")).isEqualTo(TITLES.subList(0, 10));
+	}
+
+	@Test
+	void recoversTitlesFromBodyCutOffInsideText() throws IOException {
+		// The old parser split the raw envelope into lines here, these are the titles that arrived
+		assertThat(parsePayload("malformed")).isEqualTo(TITLES.subList(0, 28));
+	}
+
+	@Test
+	void bodyThatIsNotAnEnvelopeIsReadAsText() throws IOException {
+		String body = "1. Midnight City\n2. Kids\n";
+
+		assertThat(titles(parser.parseSongRecommendations(stream(body)))).containsExactly("Midnight City", "Kids");
+		assertThat(titles(parser.parseSongRecommendations(body))).containsExactly("Midnight City", "Kids");
+	}
+
+	@Test
+	void envelopeWithoutTextGivesNoRecommendations() throws IOException {
+		String blocked = "{\"promptFeedback\": {\"blockReason\": \"SAFETY\"}}";
+		String noCandidates = "{\"candidates\": []}";
+
+		assertThat(parser.parseSongRecommendations(stream(blocked))).isEmpty();
+		assertThat(parser.parseSongRecommendations(stream(noCandidates))).isEmpty();
+		assertThat(parser.parseSongRecommendations(blocked)).isEmpty();
+		assertThat(parser.parseSongRecommendations(stream(""))).isEmpty();
+		assertThat(parser.parseSongRecommendations((String) null)).isEmpty();
+	}
+
+	@Test
+	void decodesEscapesInTitles() throws IOException {
+		String body = envelope("[{\"song_title\": \"Say \\\"Hi\\\"\"}, {\"song_title\": \"Caf\\u00e9\"}]");
+
+		assertThat(titles(parser.parseSongRecommendations(stream(body)))).containsExactly("Say \"Hi\"", "Café");
+		assertThat(titles(parser.parseSongRecommendations(body))).containsExactly("Say \"Hi\"", "Café");
+	}
+
+	@Test
+	void bodyCutOffInsideEscapeKeepsEarlierTitles() throws IOException {
+		String body = envelope("[{\"song_title\": \"Kids\"}, {\"song_title\": \"Home\"}]");
+		// Ends on the backslash of the escaped quote before Home
+		String cut = body.substring(0, body.indexOf("Home") - 1);
+
+		assertThat(titles(parser.parseSongRecommendations(stream(cut)))).containsExactly("Kids");
+		assertThat(titles(parser.parseSongRecommendations(cut))).containsExactly("Kids");
+	}
+
+	@Test
+	void streamReportsEachTitleOnceItIsComplete() throws IOException {
+		List<String> reported = new ArrayList<>();
+		SongTitleStream titles = parser.streamSongTitles(reported::add);
+
+		titles.acceptChunk(envelope("[{\"song_title\": \"Mid"));
+		assertThat(reported).isEmpty();
+
+		titles.acceptChunk(envelope("night City\"}, {\"song_title\": \"Kids\"}"));
+		assertThat(reported).containsExactly("Midnight City", "Kids");
+
+		titles.acceptChunk(envelope(", {\"song_title\": \"Home\"}]"));
+		titles.finish();
+		assertThat(reported).containsExactly("Midnight City", "Kids", "Home");
+	}
+
+	@Test
+	void streamReadsArrayInsideCodeFence() throws IOException {
+		List<String> reported = new ArrayList<>();
+		SongTitleStream titles = parser.streamSongTitles(reported::add);
+
+		titles.acceptChunk(envelope("```json\n[{\"song_title\": \"Kids\"},"));
+		titles.acceptChunk(envelope(" {\"song_title\": \"Home\"}]\n```"));
+		titles.finish();
+
+		assertThat(reported).containsExactly("Kids", "Home");
+	}
+
+	@Test
+	void streamOfPlainLinesIsReportedWhenFinished() throws IOException {
+		List<String> reported = new ArrayList<>();
+		SongTitleStream titles = parser.streamSongTitles(reported::add);
+
+		titles.acceptChunk(envelope("1. Midnight City\n"));
+		titles.acceptChunk(envelope("2. Kids\n"));
+		assertThat(reported).isEmpty();
+
+		titles.finish();
+		assertThat(reported).containsExactly("Midnight City", "Kids");
+	}
+
+	@Test
+	void streamCutOffKeepsCompleteTitles() throws IOException {
+		List<String> reported = new ArrayList<>();
+		SongTitleStream titles = parser.streamSongTitles(reported::add);
+
+		titles.acceptChunk(envelope("[{\"song_title\": \"Kids\"}, {\"song_title\": \"Ho"));
+		titles.finish();
+
+		assertThat(reported).containsExactly("Kids");
+	}
+
+	@Test
+	void streamSkipsUnreadableChunks() throws IOException {
+		List<String> reported = new ArrayList<>();
+		SongTitleStream titles = parser.streamSongTitles(reported::add);
+
+		titles.acceptChunk(envelope("[{\"song_title\": \"Kids\"},"));
+		titles.acceptChunk("{\"candidates\": [");
+		titles.acceptChunk(envelope(" {\"song_title\": \"Home\"}]"));
+		titles.finish();
+
+		assertThat(reported).containsExactly("Kids", "Home");
+	}
+
+	/**
+	 * Parses a payload both from a stream and from a String, which must agree
+	 */
+	private List<String> parsePayload(String name) throws IOException {
+		byte[] body;
+		try (InputStream in = getClass().getResourceAsStream("/gemini/" + name + ".json")) {
+			body = in.readAllBytes();
+		}
+
+		List<String> streamed = titles(parser.parseSongRecommendations(new ByteArrayInputStream(body)));
+		assertThat(titles(parser.parseSongRecommendations(new String(body, StandardCharsets.UTF_8)))).isEqualTo(streamed);
+		return streamed;
+	}
+
+	private String envelope(String text) throws IOException {
+		return objectMapper.writeValueAsString(
+				Map.of("candidates", List.of(Map.of("content", Map.of("parts", List.of(Map.of("text", text)))))));
+	}
+
+	private static InputStream stream(String body) {
+		return new ByteArrayInputStream(body.getBytes(StandardCharsets.UTF_8));
+	}
+
+	private static List<String> titles(List<Map<String, String>> recommendations) {
+		return recommendations.stream().map(recommendation -> recommendation.get("song_title")).toList();
+	}
+}
@@ -0,0 +1,77 @@
+package vttp.final_project.services;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.junit.jupiter.api.Test;
+
+class TokenEncryptionServiceTest {
+
+	private static final String SECRET = "0123456789abcdef";
+
+	private final TokenEncryptionService service = new TokenEncryptionService(SECRET);
+
+	@Test
+	void encryptedValueRoundTrips() {
+		String encrypted = service.encrypt("access-token");
+
+		assertThat(encrypted).startsWith("v2:");
+		assertThat(service.isLegacy(encrypted)).isFalse();
+		assertThat(service.decrypt(encrypted)).isEqualTo("access-token");
+	}
+
+	@Test
+	void sameValueEncryptsDifferentlyEachTime() {
+		assertThat(service.encrypt("access-token")).isNotEqualTo(service.encrypt("access-token"));
+	}
+
+	@Test
+	void legacyValueIsDecrypted() throws Exception {
+		String legacy = encryptLegacy("refresh-token");
+
+		assertThat(service.isLegacy(legacy)).isTrue();
+		assertThat(service.decrypt(legacy)).isEqualTo("refresh-token");
+	}
+
+	@Test
+	void legacyValueIsReencryptedAsV2() throws Exception {
+		String reencrypted = service.reencryptIfLegacy(encryptLegacy("refresh-token"));
+
+		assertThat(reencrypted).startsWith("v2:");
+		assertThat(service.decrypt(reencrypted)).isEqualTo("refresh-token");
+	}
+
+	@Test
+	void currentValueIsNotReencrypted() {
+		String encrypted = service.encrypt("refresh-token");
+
+		assertThat(service.reencryptIfLegacy(encrypted)).isSameAs(encrypted);
+	}
+
+	@Test
+	void failedDecryptDoesNotBreakTheThreadsCipher() {
+		String encrypted = service.encrypt("access-token");
+		// Changes a byte of the IV, so the tag no longer matches
+		char ivChar = encrypted.charAt(10);
+		String tampered = encrypted.substring(0, 10) + (ivChar == 'A' ? 'B' : 'A') + encrypted.substring(11);
+
+		assertThatThrownBy(() -> service.decrypt(tampered)).isInstanceOf(RuntimeException.class);
+		assertThat(service.decrypt(encrypted)).isEqualTo("access-token");
+		assertThat(service.decrypt(service.encrypt("refresh-token"))).isEqualTo("refresh-token");
+	}
+
+	/**
+	 * Encrypts the way values were stored before the switch to AES-GCM
+	 */
+	private static String encryptLegacy(String data) throws Exception {
+		Cipher cipher = Cipher.getInstance("AES/ECB/PKCS5Padding");
+		cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(SECRET.getBytes(StandardCharsets.UTF_8), "AES"));
+		return Base64.getEncoder().encodeToString(cipher.doFinal(data.getBytes(StandardCharsets.UTF_8)));
+	}
+}
@@ -0,0 +1,159 @@
+package vttp.final_project.services;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import vttp.final_project.models.SpotifyTokens;
+import vttp.final_project.repositories.SpotifyTokenRepository;
+
+@ExtendWith(MockitoExtension.class)
+class TokenRefreshSchedulerTest {
+
+	@Mock
+	private SpotifyTokenRepository tokenRepository;
+
+	@Mock
+	private SpotifyAuthService spotifyAuthService;
+
+	@Mock
+	private AccessTokenCacheService accessTokenCache;
+
+	@Mock
+	private ActiveSessionRegistry activeSessionRegistry;
+
+	private TokenRefreshScheduler scheduler;
+
+	@BeforeEach
+	void setUp() {
+		scheduler = new TokenRefreshScheduler(new SimpleMeterRegistry());
+		ReflectionTestUtils.setField(scheduler, "enabled", true);
+		ReflectionTestUtils.setField(scheduler, "lookAheadSeconds", 600L);
+		ReflectionTestUtils.setField(scheduler, "maxStalenessSeconds", 3600L);
+		ReflectionTestUtils.setField(scheduler, "maxRows", 1000);
+		ReflectionTestUtils.setField(scheduler, "batchSize", 10);
+		ReflectionTestUtils.setField(scheduler, "refreshLockTtlMs", 10000L);
+		ReflectionTestUtils.setField(scheduler, "tokenRepository", tokenRepository);
+		ReflectionTestUtils.setField(scheduler, "spotifyAuthService", spotifyAuthService);
+		ReflectionTestUtils.setField(scheduler, "accessTokenCache", accessTokenCache);
+		ReflectionTestUtils.setField(scheduler, "activeSessionRegistry", activeSessionRegistry);
+	}
+
+	@Test
+	void skipsTokenRefreshedSinceTheSweepRead() {
+		sweepFinds(tokens("alice", "old-refresh", Instant.now().plusSeconds(60)));
+		when(spotifyAuthService.tryAcquireRefreshLock(eq("alice"), anyString())).thenReturn(true);
+		// The previous lock holder already refreshed
+		when(tokenRepository.findByUserId("alice"))
+				.thenReturn(Optional.of(tokens("alice", "rotated-refresh", Instant.now().plusSeconds(3600))));
+
+		scheduler.refreshExpiringTokens();
+
+		verify(spotifyAuthService, never()).refreshAccessToken(anyString(), anyString());
+		verify(tokenRepository, never()).batchSave(anyList());
+		verify(spotifyAuthService).releaseRefreshLock(eq("alice"), anyString());
+	}
+
+	@Test
+	void refreshesWithTheRefreshTokenReadUnderTheLock() {
+		sweepFinds(tokens("alice", "old-refresh", Instant.now().plusSeconds(60)));
+		when(spotifyAuthService.tryAcquireRefreshLock(eq("alice"), anyString())).thenReturn(true);
+		when(tokenRepository.findByUserId("alice"))
+				.thenReturn(Optional.of(tokens("alice", "rotated-refresh", Instant.now().plusSeconds(60))));
+		SpotifyTokens refreshed = tokens("alice", "rotated-refresh", Instant.now().plusSeconds(3600));
+		when(spotifyAuthService.refreshAccessToken("alice", "rotated-refresh")).thenReturn(refreshed);
+
+		scheduler.refreshExpiringTokens();
+
+		// The lock is held until the row is saved
+		InOrder order = inOrder(tokenRepository, accessTokenCache, spotifyAuthService);
+		order.verify(tokenRepository).batchSave(List.of(refreshed));
+		order.verify(accessTokenCache).invalidate("alice");
+		order.verify(spotifyAuthService).releaseRefreshLock(eq("alice"), anyString());
+	}
+
+	@Test
+	@SuppressWarnings("unchecked")
+	void savesRefreshedTokensInBatches() {
+		ReflectionTestUtils.setField(scheduler, "batchSize", 2);
+		Instant expiry = Instant.now().plusSeconds(60);
+		sweepFinds(tokens("alice", "a", expiry), tokens("bob", "b", expiry), tokens("carol", "c", expiry));
+		when(spotifyAuthService.tryAcquireRefreshLock(anyString(), anyString())).thenReturn(true);
+		when(tokenRepository.findByUserId(anyString()))
+				.thenAnswer(invocation -> Optional.of(tokens(invocation.getArgument(0), "refresh", expiry)));
+		when(spotifyAuthService.refreshAccessToken(anyString(), eq("refresh")))
+				.thenAnswer(invocation -> tokens(invocation.getArgument(0), "refresh", expiry.plusSeconds(3600)));
+
+		scheduler.refreshExpiringTokens();
+
+		ArgumentCaptor<List<SpotifyTokens>> batches = ArgumentCaptor.forClass(List.class);
+		verify(tokenRepository, times(2)).batchSave(batches.capture());
+		assertThat(batches.getAllValues())
+				.extracting(batch -> batch.stream().map(SpotifyTokens::getUserId).toList())
+				.containsExactly(List.of("alice", "bob"), List.of("carol"));
+	}
+
+	@Test
+	void failedBatchIsSavedRowByRow() {
+		Instant expiry = Instant.now().plusSeconds(60);
+		sweepFinds(tokens("alice", "a", expiry), tokens("bob", "b", expiry));
+		when(spotifyAuthService.tryAcquireRefreshLock(anyString(), anyString())).thenReturn(true);
+		when(tokenRepository.findByUserId(anyString()))
+				.thenAnswer(invocation -> Optional.of(tokens(invocation.getArgument(0), "refresh", expiry)));
+		when(spotifyAuthService.refreshAccessToken(anyString(), eq("refresh")))
+				.thenAnswer(invocation -> tokens(invocation.getArgument(0), "refresh", expiry.plusSeconds(3600)));
+		doThrow(new IllegalStateException("batch failed")).when(tokenRepository).batchSave(anyList());
+
+		scheduler.refreshExpiringTokens();
+
+		verify(tokenRepository, times(2)).save(any(SpotifyTokens.class));
+		verify(accessTokenCache).invalidate("alice");
+		verify(accessTokenCache).invalidate("bob");
+		verify(spotifyAuthService).releaseRefreshLock(eq("alice"), anyString());
+		verify(spotifyAuthService).releaseRefreshLock(eq("bob"), anyString());
+	}
+
+	private void sweepFinds(SpotifyTokens... rows) {
+		Set<String> userIds = Arrays.stream(rows).map(SpotifyTokens::getUserId)
+				.collect(Collectors.toSet());
+		when(activeSessionRegistry.getActiveUserIds()).thenReturn(userIds);
+		when(tokenRepository.findExpiringBetween(any(Instant.class), any(Instant.class), anyInt()))
+				.thenReturn(List.of(rows));
+	}
+
+	private static SpotifyTokens tokens(String userId, String refreshToken, Instant expiry) {
+		SpotifyTokens tokens = new SpotifyTokens();
+		tokens.setUserId(userId);
+		tokens.setAccessToken("access");
+		tokens.setRefreshToken(refreshToken);
+		tokens.setAccessTokenExpiry(expiry);
+		tokens.setIssuedAt(Instant.now());
+		return tokens;
+	}
+}